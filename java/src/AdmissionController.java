@@ -0,0 +1,213 @@
+/*
+ * Admission control for DBproject
+ * =============================
+ *
+ * Caps how much work of each kind may run at once, puts a timeout on every
+ * statement and lets in-flight statements be cancelled.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.core.BaseConnection;
+
+/**
+ * This class admits database work by operation class. Every class has its
+ * own weighted semaphore, so a burst of expensive reports can use up the
+ * report permits without taking anything away from bookings. Work that
+ * cannot get its permits within a short wait is shed with an SQLException
+ * (SQLSTATE 53000) instead of queueing behind the work already running.
+ *
+ * Admitted work gets a Ticket. Statements prepared through the ticket carry
+ * the class's timeout and are registered so cancelAll() can abort them from
+ * another thread; closing the ticket closes them and returns the permits.
+ *
+ * Timeouts (seconds) and permits can be overridden with system properties
+ * dbproject.timeout.booking, dbproject.timeout.report,
+ * dbproject.permits.booking and dbproject.permits.report.
+ *
+ */
+
+public class AdmissionController {
+
+	/**
+	 * Kinds of database work, with their default limits.
+	 */
+	public enum OpClass {
+		BOOKING("booking", 5, 32, 250),		// single row reads and writes
+		REPORT("report", 60, 4, 0);		// scans and aggregates over whole tables
+
+		final String name;
+		final int timeoutSeconds;
+		final int permits;
+		final long waitMillis;
+
+		OpClass(String name, int timeoutSeconds, int permits, long waitMillis) {
+			this.name = name;
+			this.timeoutSeconds = Integer.getInteger("dbproject.timeout." + name, timeoutSeconds);
+			this.permits = Integer.getInteger("dbproject.permits." + name, permits);
+			this.waitMillis = waitMillis;
+		}
+	}
+
+	private final Semaphore[] pools = new Semaphore[OpClass.values().length];
+	private final Set<Ticket> active = ConcurrentHashMap.newKeySet();
+	private final AtomicLong shed = new AtomicLong();
+
+	public AdmissionController() {
+		for (OpClass c : OpClass.values()) {
+			pools[c.ordinal()] = new Semaphore(c.permits, true);
+		}
+	}
+
+	/**
+	 * @return the number of requests turned away since startup
+	 */
+	public long getShed() {
+		return shed.get();
+	}
+
+	/**
+	 * Method to admit one unit of work.
+	 *
+	 * @param opClass the kind of work
+	 * @param weight the number of the class's permits it uses, more for heavier work
+	 * @return the ticket, which must be closed when the work is done
+	 * @throws java.sql.SQLException when the class is at capacity
+	 */
+	public Ticket enter(OpClass opClass, int weight) throws SQLException {
+		Semaphore pool = pools[opClass.ordinal()];
+		int permits = Math.min(weight, opClass.permits);
+		boolean admitted;
+		try {
+			admitted = pool.tryAcquire(permits, opClass.waitMillis, TimeUnit.MILLISECONDS);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			admitted = false;
+		}
+		if (!admitted) {
+			shed.incrementAndGet();
+			throw new SQLException("Too many " + opClass.name + " requests running, try again shortly", "53000");
+		}
+		Ticket ticket = new Ticket(opClass, permits);
+		active.add(ticket);
+		return ticket;
+	}
+
+	public Ticket enter(OpClass opClass) throws SQLException {
+		return enter(opClass, 1);
+	}
+
+	/**
+	 * Method to abort every statement currently running through a ticket.
+	 *
+	 * @return the number of tickets whose statements were cancelled
+	 */
+	public int cancelAll() {
+		int cancelled = 0;
+		for (Ticket ticket : active) {
+			if (ticket.cancel()) {
+				cancelled++;
+			}
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Admitted work: holds the permits and the statements it runs.
+	 */
+	public class Ticket implements AutoCloseable {
+		private final OpClass opClass;
+		private final int permits;
+		private final List<Statement> statements = new ArrayList<Statement>();
+		private BaseConnection copying = null;
+		private boolean closed = false;
+
+		Ticket(OpClass opClass, int permits) {
+			this.opClass = opClass;
+			this.permits = permits;
+		}
+
+		public int getTimeoutSeconds() {
+			return opClass.timeoutSeconds;
+		}
+
+		/**
+		 * Method to prepare a statement that runs under this ticket's timeout
+		 * and can be cancelled. It is closed with the ticket.
+		 */
+		public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+			return track(conn.prepareStatement(sql));
+		}
+
+		public Statement create(Connection conn) throws SQLException {
+			return track(conn.createStatement());
+		}
+
+		private synchronized <T extends Statement> T track(T stmt) throws SQLException {
+			stmt.setQueryTimeout(opClass.timeoutSeconds);
+			statements.add(stmt);
+			return stmt;
+		}
+
+		/**
+		 * Method to register a COPY running on the connection, which has no
+		 * Statement to cancel; the whole connection's query is cancelled instead.
+		 */
+		public synchronized void copying(Connection conn) throws SQLException {
+			copying = conn.unwrap(BaseConnection.class);
+		}
+
+		synchronized boolean cancel() {
+			boolean any = false;
+			for (Statement stmt : statements) {
+				try {
+					stmt.cancel();
+					any = true;
+				}catch (SQLException e) {
+					// already finished
+				}
+			}
+			if (copying != null) {
+				try {
+					copying.cancelQuery();
+					any = true;
+				}catch (SQLException e) {
+					// already finished
+				}
+			}
+			return any;
+		}
+
+		public void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				for (Statement stmt : statements) {
+					try {
+						stmt.close();
+					}catch (SQLException e) {
+						// ignored.
+					}
+				}
+				statements.clear();
+				copying = null;
+			}
+			active.remove(this);
+			pools[opClass.ordinal()].release(permits);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Memory-mapped append journal for DBproject
+ * =============================
+ *
+ * A fixed size, checksummed, memory-mapped log of byte records with a
+ * persisted "applied up to" offset, used to acknowledge writes before
+ * they reach the database.
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class stores records in a memory-mapped file laid out as
+ *
+ *   header  : magic (int), version (int), applied offset (long)
+ *   records : length (int), crc32 of payload (int), payload (length bytes)
+ *
+ * Every append writes a zero length terminator after the new record, so
+ * recovery scans from the applied offset until it meets a terminator or a
+ * record whose checksum does not match (a torn write). Once every record
+ * has been applied the log rewinds to the start of the record area.
+ *
+ * All methods are synchronized; force() is called after each append and
+ * each change of the applied offset so acknowledged records survive a
+ * crash of the process or the machine.
+ *
+ */
+
+public class AppendJournal {
+	private static final int MAGIC = 0x4442574A;	// "DBWJ"
+	private static final int VERSION = 1;
+	private static final int HEADER = 16;
+	private static final int RECORD_OVERHEAD = 8;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final int capacity;
+	private int applied;		// offset of the first record not yet applied
+	private int written;		// offset just past the last record
+
+	/**
+	 * Opens the journal, creating it if needed, and recovers the positions
+	 * of any records that were appended but never applied.
+	 *
+	 * @param path the journal file
+	 * @param capacity the size of the mapping in bytes
+	 * @throws java.io.IOException when the file cannot be mapped or is not a journal
+	 */
+	public AppendJournal(File path, int capacity) throws IOException {
+		boolean fresh = !path.exists() || path.length() == 0;
+		this.file = new RandomAccessFile(path, "rw");
+		if (!fresh && file.length() != capacity) {
+			capacity = (int) file.length();
+		}
+		this.capacity = capacity;
+		this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+		if (fresh) {
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.putLong(8, HEADER);
+			map.putInt(HEADER, 0);
+			map.force();
+		} else if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+			file.close();
+			throw new IOException(path + " is not a write-behind journal");
+		}
+
+		this.applied = (int) map.getLong(8);
+		this.written = applied;
+		while (true) {
+			byte[] record = readAt(written);
+			if (record == null) {
+				break;
+			}
+			written += RECORD_OVERHEAD + record.length;
+		}
+	}
+
+	/**
+	 * Method to durably append one record.
+	 *
+	 * @param payload the record contents
+	 * @return false if there is no room left until more records are applied
+	 */
+	public synchronized boolean append(byte[] payload) {
+		int end = written + RECORD_OVERHEAD + payload.length;
+		if (end + 4 > capacity) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		map.putInt(end, 0);
+		map.position(written + RECORD_OVERHEAD);
+		map.put(payload);
+		map.putInt(written + 4, (int) crc.getValue());
+		map.putInt(written, payload.length);
+		map.force();
+		written = end;
+		return true;
+	}
+
+	/**
+	 * Method to read records that have been appended but not yet applied.
+	 *
+	 * @param max the most records to return
+	 * @return the pending records, oldest first
+	 */
+	public synchronized List<byte[]> pending(int max) {
+		List<byte[]> records = new ArrayList<byte[]>();
+		int offset = applied;
+		while (offset < written && records.size() < max) {
+			byte[] record = readAt(offset);
+			records.add(record);
+			offset += RECORD_OVERHEAD + record.length;
+		}
+		return records;
+	}
+
+	/**
+	 * Method to mark the oldest records as applied. When nothing is left
+	 * pending the log rewinds so its space is reused.
+	 *
+	 * @param count the number of records, as returned by pending(), that were applied
+	 */
+	public synchronized void markApplied(int count) {
+		for (int i = 0; i < count && applied < written; i++) {
+			applied += RECORD_OVERHEAD + map.getInt(applied);
+		}
+		if (applied == written) {
+			map.putInt(HEADER, 0);
+			applied = written = HEADER;
+		}
+		map.putLong(8, applied);
+		map.force();
+	}
+
+	public synchronized boolean isEmpty() {
+		return applied == written;
+	}
+
+	/**
+	 * @return the number of bytes of records waiting to be applied
+	 */
+	public synchronized int pendingBytes() {
+		return written - applied;
+	}
+
+	public synchronized void close() throws IOException {
+		map.force();
+		file.close();
+	}
+
+	private byte[] readAt(int offset) {
+		if (offset + RECORD_OVERHEAD > capacity) {
+			return null;
+		}
+		int length = map.getInt(offset);
+		if (length <= 0 || offset + RECORD_OVERHEAD + length + 4 > capacity) {
+			return null;
+		}
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = map.get(offset + RECORD_OVERHEAD + i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if ((int) crc.getValue() != map.getInt(offset + 4)) {
+			return null;
+		}
+		return payload;
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Bulk reservation booking for DBproject
+ * =============================
+ *
+ * Books a whole group of (customer, flight, status) tuples in one
+ * transaction instead of one BookFlight prompt cycle per customer.
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class validates and books a list of reservations with a fixed number
+ * of round trips: one capacity lookup for every flight involved, one batched
+ * INSERT and one batched UPDATE of Flight.num_sold, all in one transaction.
+ * When seat maps are loaded every 'R' booking also gets the next free seat.
+ * Committed 'W' bookings join their flight's waitlist queue.
+ *
+ */
+
+public class BulkBooking {
+
+	/**
+	 * A single (customer, flight, status) tuple and the outcome of booking it.
+	 */
+	public static class Booking {
+		public final int cid;
+		public final int fid;
+		public final String status;
+
+		private boolean booked = false;
+		private boolean processed = false;
+		private int rnum = -1;
+		private int seat = 0;
+		private String message = "not processed";
+
+		public Booking(int cid, int fid, String status) {
+			this.cid = cid;
+			this.fid = fid;
+			this.status = status;
+		}
+
+		public boolean isBooked() { return booked; }
+		public int getRnum() { return rnum; }
+		public int getSeat() { return seat; }
+		public String getMessage() { return message; }
+
+		void accept(int rnum) {
+			this.booked = true;
+			this.processed = true;
+			this.rnum = rnum;
+			this.message = "booked as reservation " + rnum;
+		}
+
+		void reject(String message) {
+			this.booked = false;
+			this.processed = true;
+			this.rnum = -1;
+			this.message = message;
+		}
+
+		public String toString() {
+			return "customer " + cid + ", flight " + fid + " (" + status + "): " + message;
+		}
+	}//end Booking
+
+	/**
+	 * Seat capacity and seats already sold for one flight, as read at the
+	 * start of the transaction.
+	 */
+	private static class FlightCapacity {
+		int seats = -1;		// -1 when no plane is assigned in FlightInfo
+		int sold;
+		int added = 0;		// 'R' bookings accepted in this batch
+
+		boolean hasRoom() {
+			return seats >= 0 && sold + added < seats;
+		}
+	}//end FlightCapacity
+
+	/**
+	 * Books every tuple in the list inside a single transaction. Tuples that
+	 * fail validation (bad status, unknown customer or flight, an existing
+	 * reservation for the same customer and flight, or no seats left for an
+	 * 'R' booking) are rejected individually; the rest are inserted together.
+	 * If the transaction itself fails, every accepted tuple is marked failed.
+	 *
+	 * @param esql the database connection wrapper
+	 * @param bookings the tuples to book, in priority order
+	 * @return the number of reservations booked
+	 * @throws java.sql.SQLException when the transaction could not be set up
+	 */
+	public static int book(DBproject esql, List<Booking> bookings) throws SQLException {
+		Connection conn = esql.getConnection();
+
+		Set<Integer> flightIds = new LinkedHashSet<Integer>();
+		Set<Integer> customerIds = new LinkedHashSet<Integer>();
+		for (Booking b : bookings) {
+			if (!"W".equals(b.status) && !"R".equals(b.status) && !"C".equals(b.status)) {
+				b.reject("invalid status, valid inputs are ( W / R / C )");
+				continue;
+			}
+			flightIds.add(b.fid);
+			customerIds.add(b.cid);
+		}
+		if (flightIds.isEmpty()) {
+			return 0;
+		}
+
+		// a batch holds its flight locks for the whole transaction, so it
+		// counts as several bookings against the admission limit
+		AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING, 4);
+		boolean autoCommit = conn.getAutoCommit();
+		List<Booking> accepted = new ArrayList<Booking>();
+		boolean committed = false;
+		conn.setAutoCommit(false);
+		try {
+			Array fids = conn.createArrayOf("integer", flightIds.toArray());
+			Array cids = conn.createArrayOf("integer", customerIds.toArray());
+
+			// lock the flights first so concurrent bookers see a consistent num_sold
+			Map<Integer, FlightCapacity> capacity = new HashMap<Integer, FlightCapacity>();
+			PreparedStatement stmt = ticket.prepare(conn,
+				"SELECT F.fnum, F.num_sold, P.seats FROM Flight F " +
+				"LEFT JOIN FlightInfo I ON I.flight_id = F.fnum LEFT JOIN Plane P ON P.id = I.plane_id " +
+				"WHERE F.fnum = ANY(?) FOR UPDATE OF F");
+			stmt.setArray(1, fids);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				FlightCapacity cap = capacity.get(rs.getInt(1));
+				if (cap == null) {
+					cap = new FlightCapacity();
+					cap.sold = rs.getInt(2);
+					capacity.put(rs.getInt(1), cap);
+				}
+				int seats = rs.getInt(3);
+				if (!rs.wasNull() && (cap.seats < 0 || seats < cap.seats)) {
+					cap.seats = seats;
+				}
+			}
+			stmt.close();
+
+			Set<Integer> customers = new HashSet<Integer>();
+			stmt = ticket.prepare(conn, "SELECT id FROM Customer WHERE id = ANY(?)");
+			stmt.setArray(1, cids);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				customers.add(rs.getInt(1));
+			}
+			stmt.close();
+
+			Set<Long> reserved = new HashSet<Long>();
+			stmt = ticket.prepare(conn, "SELECT cid, fid FROM Reservation WHERE cid = ANY(?) AND fid = ANY(?)");
+			stmt.setArray(1, cids);
+			stmt.setArray(2, fids);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				reserved.add(pairKey(rs.getInt(1), rs.getInt(2)));
+			}
+			stmt.close();
+
+			// reservation numbers are handed out by the application, so keep
+			// other writers out until this transaction commits
+			Statement lock = ticket.create(conn);
+			lock.execute("LOCK TABLE Reservation IN SHARE ROW EXCLUSIVE MODE");
+			rs = lock.executeQuery("SELECT COALESCE(MAX(rnum), -1) FROM Reservation");
+			rs.next();
+			int nextRnum = rs.getInt(1) + 1;
+			lock.close();
+
+			for (Booking b : bookings) {
+				if (b.processed) {
+					continue;
+				}
+				FlightCapacity cap = capacity.get(b.fid);
+				boolean seated = "R".equals(b.status);
+				if (cap == null) {
+					b.reject("flight number does not exist");
+				} else if (!customers.contains(b.cid)) {
+					b.reject("customer does not exist");
+				} else if (reserved.contains(pairKey(b.cid, b.fid))) {
+					b.reject("customer already has a reservation on this flight");
+				} else if (seated && cap.seats < 0) {
+					b.reject("flight info does not exist, no plane assigned");
+				} else if (seated && !cap.hasRoom()) {
+					b.reject("flight is full");
+				} else {
+					if (seated) {
+						cap.added++;
+					}
+					reserved.add(pairKey(b.cid, b.fid));
+					b.accept(nextRnum++);
+					accepted.add(b);
+				}
+			}
+
+			if (!accepted.isEmpty()) {
+				PreparedStatement insert = ticket.prepare(conn,
+					"INSERT INTO Reservation (rnum, cid, fid, status) VALUES (?, ?, ?, ?)");
+				for (Booking b : accepted) {
+					insert.setInt(1, b.getRnum());
+					insert.setInt(2, b.cid);
+					insert.setInt(3, b.fid);
+					insert.setString(4, b.status);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+				insert.close();
+
+				PreparedStatement sold = ticket.prepare(conn,
+					"UPDATE Flight SET num_sold = num_sold + ? WHERE fnum = ?");
+				boolean pending = false;
+				for (Map.Entry<Integer, FlightCapacity> e : capacity.entrySet()) {
+					if (e.getValue().added > 0) {
+						sold.setInt(1, e.getValue().added);
+						sold.setInt(2, e.getKey());
+						sold.addBatch();
+						pending = true;
+					}
+				}
+				if (pending) {
+					sold.executeBatch();
+				}
+				sold.close();
+
+				// seats are claimed in memory and recorded with one more batch
+				SeatMaps seats = esql.getSeatMaps();
+				if (seats != null) {
+					PreparedStatement seat = ticket.prepare(conn, "INSERT INTO ReservationSeat (rnum, fid, seat) VALUES (?, ?, ?)");
+					pending = false;
+					for (Booking b : accepted) {
+						SeatMap map = "R".equals(b.status) ? seats.get(conn, b.fid) : null;
+						int next = map == null ? -1 : map.claimNext();
+						if (next > 0) {
+							b.seat = next;
+							seat.setInt(1, b.getRnum());
+							seat.setInt(2, b.fid);
+							seat.setInt(3, b.seat);
+							seat.addBatch();
+							b.message += ", seat " + b.seat;
+							pending = true;
+						}
+					}
+					if (pending) {
+						seat.executeBatch();
+					}
+					seat.close();
+				}
+			}
+			conn.commit();
+			committed = true;
+		}catch (SQLException e) {
+			esql.getKeeper().failed(conn, e);
+			// a connection lost during the commit leaves its outcome unknown
+			String reason = ConnectionKeeper.isConnectionError(e)
+				? "lost the connection, the batch may or may not have been booked: "
+				: "transaction rolled back: ";
+			for (Booking b : bookings) {
+				if (b.isBooked() || !b.processed) {
+					b.reject(reason + e.getMessage());
+				}
+			}
+		}finally{
+			// anything short of a commit, runtime exceptions included, must
+			// roll back here: restoring autocommit would commit the batch
+			if (!committed) {
+				rollback(conn);
+				for (Booking b : accepted) {
+					if (b.seat > 0) {
+						esql.getSeatMaps().forget(b.fid, b.seat);
+						b.seat = 0;
+					}
+				}
+				accepted.clear();
+			}
+			try {
+				conn.setAutoCommit(autoCommit);
+			}catch (SQLException e) {
+				System.err.println("Bulk booking: could not restore autocommit: " + e.getMessage());
+			}
+			ticket.close();
+		}
+		// accepted is in rnum order, the order the waitlist is served in
+		WaitlistPromoter waitlist = esql.getWaitlist();
+		if (waitlist != null) {
+			for (Booking b : accepted) {
+				if ("W".equals(b.status)) {
+					waitlist.waitlisted(b.fid, b.getRnum());
+				}
+			}
+		}
+		return accepted.size();
+	}//end book
+
+	/*
+	 * Rolls back without throwing, so a dead connection cannot keep the
+	 * claimed seats from being released. The server rolls back on its own
+	 * when the connection is gone.
+	 */
+	private static void rollback(Connection conn) {
+		try {
+			conn.rollback();
+		}catch (SQLException e) {
+			System.err.println("Bulk booking: rollback failed: " + e.getMessage());
+		}
+	}
+
+	private static long pairKey(int cid, int fid) {
+		return ((long) cid << 32) | (fid & 0xffffffffL);
+	}
+}
@@ -0,0 +1,724 @@
+/*
+ * Change data capture for DBproject
+ * =============================
+ *
+ * Streams the inserts, updates and deletes committed to Reservation, Flight
+ * and Repairs from a logical replication slot to in-process subscribers.
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * This class reads a logical replication slot (output plugin test_decoding)
+ * through the driver's replication API on a replication connection of its
+ * own, decodes the changes to Reservation, Flight and Repairs (including
+ * their partitions in the partitioned schema) into typed events and
+ * publishes them to an EventRing. Every subscriber has its own thread and
+ * cursor; a slow subscriber holds the reader back once it is a full ring
+ * behind, and the slot keeps the WAL meanwhile.
+ *
+ * Each transaction's events are followed by a commit marker carrying the
+ * commit LSN. The confirmed LSN is the oldest commit every subscriber has
+ * gone past. It is written to a file and reported to the server as flushed
+ * and applied, and the stream restarts from it, so after a restart a
+ * subscriber gets exactly the transactions it had not finished; only a
+ * transaction it was in the middle of is delivered again, in full.
+ *
+ * An event whose onEvent() throws is tried again RETRY_ATTEMPTS times in
+ * all, with doubling pauses from RETRY_MIN_MILLIS, on the subscriber's own
+ * thread; meanwhile its position stays put. If it still fails it is
+ * appended to the dead-letter file with the subscriber and the error, and
+ * the subscriber moves on. A broken subscriber therefore holds the
+ * confirmed LSN, and the WAL the slot keeps, for a few seconds per event
+ * rather than until someone restarts the stream.
+ *
+ * The server must run with wal_level = logical and a free replication slot.
+ *
+ */
+
+public class ChangeStream {
+	static final String PLUGIN = "test_decoding";
+	static final int RING_SIZE = 8192;
+	static final int BATCH = 256;
+	// how long stop() waits for the reader thread to end
+	static final long READER_JOIN_MILLIS = 5000;
+	// tries of a failing event, the first one included, and the first pause
+	static final int RETRY_ATTEMPTS = 5;
+	static final long RETRY_MIN_MILLIS = 100;
+
+	public enum Op { INSERT, UPDATE, DELETE }
+
+	/**
+	 * A committed change to one row. DELETE events only carry the key.
+	 */
+	public abstract static class Event {
+		public final Op op;
+		public final long xid;
+		public final LogSequenceNumber lsn;
+
+		Event(Op op, long xid, LogSequenceNumber lsn) {
+			this.op = op;
+			this.xid = xid;
+			this.lsn = lsn;
+		}
+
+		public String toString() {
+			return lsn.asString() + " xid " + xid + " " + op;
+		}
+	}
+
+	public static class ReservationEvent extends Event {
+		public final int rnum;
+		public final int cid;
+		public final int fid;
+		public final String status;
+
+		ReservationEvent(Op op, long xid, LogSequenceNumber lsn, Map<String, String> row) {
+			super(op, xid, lsn);
+			this.rnum = intOf(row, "rnum");
+			this.cid = intOf(row, "cid");
+			this.fid = intOf(row, "fid");
+			this.status = row.get("status");
+		}
+
+		public String toString() {
+			return super.toString() + " Reservation rnum=" + rnum + " cid=" + cid + " fid=" + fid + " status=" + status;
+		}
+	}
+
+	public static class FlightEvent extends Event {
+		public final int fnum;
+		public final int cost;
+		public final int numSold;
+		public final int numStops;
+		public final String departureDate;
+		public final String arrivalDate;
+		public final String departureAirport;
+		public final String arrivalAirport;
+
+		FlightEvent(Op op, long xid, LogSequenceNumber lsn, Map<String, String> row) {
+			super(op, xid, lsn);
+			this.fnum = intOf(row, "fnum");
+			this.cost = intOf(row, "cost");
+			this.numSold = intOf(row, "num_sold");
+			this.numStops = intOf(row, "num_stops");
+			this.departureDate = row.get("actual_departure_date");
+			this.arrivalDate = row.get("actual_arrival_date");
+			this.departureAirport = row.get("departure_airport");
+			this.arrivalAirport = row.get("arrival_airport");
+		}
+
+		public String toString() {
+			return super.toString() + " Flight fnum=" + fnum + " cost=" + cost + " num_sold=" + numSold + " num_stops=" + numStops
+				+ " " + departureAirport + " " + departureDate + " -> " + arrivalAirport + " " + arrivalDate;
+		}
+	}
+
+	public static class RepairEvent extends Event {
+		public final int rid;
+		public final String repairDate;
+		public final String repairCode;
+		public final int pilotId;
+		public final int planeId;
+		public final int technicianId;
+
+		RepairEvent(Op op, long xid, LogSequenceNumber lsn, Map<String, String> row) {
+			super(op, xid, lsn);
+			this.rid = intOf(row, "rid");
+			this.repairDate = row.get("repair_date");
+			this.repairCode = row.get("repair_code");
+			this.pilotId = intOf(row, "pilot_id");
+			this.planeId = intOf(row, "plane_id");
+			this.technicianId = intOf(row, "technician_id");
+		}
+
+		public String toString() {
+			return super.toString() + " Repairs rid=" + rid + " date=" + repairDate + " code=" + repairCode
+				+ " pilot=" + pilotId + " plane=" + planeId + " technician=" + technicianId;
+		}
+	}
+
+	// end of a transaction, never handed to subscribers
+	static final class Commit extends Event {
+		Commit(long xid, LogSequenceNumber lsn) {
+			super(null, xid, lsn);
+		}
+	}
+
+	/**
+	 * Receives events in commit order, on the subscription's own thread.
+	 */
+	public interface Subscriber {
+		void onEvent(Event event) throws Exception;
+	}
+
+	/**
+	 * A subscriber with its thread, cursor and counters.
+	 */
+	public class Subscription implements Runnable {
+		final String name;
+		final Subscriber subscriber;
+		final EventRing<Event>.Cursor cursor;
+		final Thread thread;
+		volatile long committed = 0;		// commit LSN of the last transaction fully handled
+		volatile boolean cancelled = false;
+		volatile String lastFailure = null;
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();		// tries that threw
+		final AtomicLong deadLettered = new AtomicLong();
+
+		Subscription(String name, Subscriber subscriber) {
+			this.name = name;
+			this.subscriber = subscriber;
+			this.cursor = ring.subscribe();
+			this.thread = new Thread(this, "cdc-" + name);
+			this.thread.setDaemon(true);
+		}
+
+		public void run() {
+			List<Event> batch = new ArrayList<Event>(BATCH);
+			try {
+				while (!cancelled && cursor.take(batch, BATCH)) {
+					for (Event e : batch) {
+						if (e instanceof Commit) {
+							committed = e.lsn.asLong();
+						} else {
+							deliver(e);
+						}
+					}
+					batch.clear();
+				}
+			}catch (InterruptedException e) {
+				// unsubscribed; an event cut off here is delivered again after a restart
+			}
+		}
+
+		private void deliver(Event e) throws InterruptedException {
+			long pause = RETRY_MIN_MILLIS;
+			for (int attempt = 1; ; attempt++) {
+				try {
+					subscriber.onEvent(e);
+					delivered.incrementAndGet();
+					return;
+				}catch (Exception x) {
+					failed.incrementAndGet();
+					lastFailure = e + ": " + x;
+					if (attempt == RETRY_ATTEMPTS) {
+						deadLettered.incrementAndGet();
+						deadLetter(name, e, x);
+						return;
+					}
+				}
+				Thread.sleep(pause);
+				pause *= 2;
+			}
+		}
+	}
+
+	private final DBproject esql;
+	private final String slot;
+	private final File lsnFile;
+	private final File deadLetterFile;
+	private Writer deadLetters = null;		// guarded by deadLetterFile
+	private final EventRing<Event> ring = new EventRing<Event>(RING_SIZE);
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	private Connection conn = null;
+	private PGReplicationStream stream = null;
+	private Thread reader = null;
+	private volatile boolean running = false;
+	private volatile String lastError = null;
+
+	private long xid = 0;
+	private volatile long lastCommit = 0;		// commit LSN of the last transaction published
+	private volatile long confirmed = 0;
+	private long reportedMillis = 0;
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong transactions = new AtomicLong();
+
+	/**
+	 * @param esql the database connection wrapper
+	 * @param slot the replication slot, created on first start
+	 * @param lsnFile where the confirmed LSN is kept between runs
+	 * @param deadLetterFile where events that kept failing are appended
+	 */
+	public ChangeStream(DBproject esql, String slot, File lsnFile, File deadLetterFile) {
+		this.esql = esql;
+		this.slot = slot;
+		this.lsnFile = lsnFile;
+		this.deadLetterFile = deadLetterFile;
+	}
+
+	/**
+	 * Method to add a subscriber. It receives the events published from now
+	 * on, also after a restart of the stream.
+	 *
+	 * @param name a name for its thread and the status
+	 * @param subscriber the subscriber
+	 * @return the subscription, for unsubscribe()
+	 */
+	public Subscription subscribe(String name, Subscriber subscriber) {
+		Subscription s = new Subscription(name, subscriber);
+		s.committed = lastCommit;
+		subscriptions.add(s);
+		s.thread.start();
+		return s;
+	}
+
+	/**
+	 * @return whether a subscriber of that name is subscribed
+	 */
+	public boolean isSubscribed(String name) {
+		for (Subscription s : subscriptions) {
+			if (s.name.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Method to remove a subscriber, dropping what it has not taken yet.
+	 */
+	public void unsubscribe(Subscription s) {
+		s.cancelled = true;
+		subscriptions.remove(s);
+		ring.unsubscribe(s.cursor);
+		s.thread.interrupt();
+	}
+
+	/**
+	 * Method to start streaming from the confirmed LSN, creating the slot
+	 * if it does not exist yet.
+	 *
+	 * @throws java.sql.SQLException when the slot cannot be created or read
+	 * @throws java.io.IOException when the LSN file cannot be read
+	 */
+	public synchronized void start() throws SQLException, IOException {
+		if (running) {
+			return;
+		}
+		if (reader != null) {
+			// the reader stopped on an error, clean up after it
+			stop(0);
+		}
+		LogSequenceNumber from = readLsn();
+		conn = esql.openReplicationConnection();
+		try {
+			PGConnection pg = conn.unwrap(PGConnection.class);
+			if (!slotExists()) {
+				pg.getReplicationAPI().createReplicationSlot().logical()
+					.withSlotName(slot)
+					.withOutputPlugin(PLUGIN)
+					.make();
+			}
+			stream = pg.getReplicationAPI().replicationStream().logical()
+				.withSlotName(slot)
+				.withStartPosition(from)
+				.withSlotOption("include-xids", true)
+				.withSlotOption("skip-empty-xacts", true)
+				.withStatusInterval(10, TimeUnit.SECONDS)
+				.start();
+		}catch (SQLException e) {
+			closeConnection();
+			throw e;
+		}
+		confirmed = from.asLong();
+		lastCommit = Math.max(lastCommit, confirmed);
+		running = true;
+		lastError = null;
+		reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "cdc-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private boolean slotExists() throws SQLException {
+		Connection c = esql.openConnection();
+		try {
+			PreparedStatement stmt = c.prepareStatement("SELECT 1 FROM pg_replication_slots WHERE slot_name = ?");
+			stmt.setString(1, slot);
+			return stmt.executeQuery().next();
+		}finally{
+			c.close();
+		}
+	}
+
+	/**
+	 * Reads and publishes messages until stop(), confirming what every
+	 * subscriber has handled whenever the stream is idle and at least
+	 * once a second when it is busy.
+	 */
+	private void read() {
+		try {
+			while (running) {
+				ByteBuffer msg = stream.readPending();
+				if (msg == null) {
+					confirm(false);
+					TimeUnit.MILLISECONDS.sleep(10);
+					continue;
+				}
+				messages.incrementAndGet();
+				Event e = decode(text(msg), stream.getLastReceiveLSN());
+				if (e != null) {
+					if (!ring.publish(e)) {
+						break;		// closed
+					}
+					if (e instanceof Commit) {
+						lastCommit = e.lsn.asLong();
+						transactions.incrementAndGet();
+					} else {
+						events.incrementAndGet();
+					}
+				}
+				if (System.currentTimeMillis() - reportedMillis >= 1000) {
+					confirm(false);
+				}
+			}
+		}catch (InterruptedException e) {
+			// stopping
+		}catch (Exception e) {
+			lastError = e.getMessage();
+			running = false;
+		}
+	}
+
+	private static String text(ByteBuffer msg) {
+		return new String(msg.array(), msg.arrayOffset() + msg.position(), msg.remaining(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Turns one test_decoding line into an event, or null for the tables
+	 * and statements that are not streamed.
+	 */
+	Event decode(String line, LogSequenceNumber lsn) {
+		if (line.startsWith("BEGIN")) {
+			xid = line.length() > 6 ? Long.parseLong(line.substring(6).trim()) : 0;
+			return null;
+		}
+		if (line.startsWith("COMMIT")) {
+			return new Commit(xid, lsn);
+		}
+		if (!line.startsWith("table ")) {
+			return null;
+		}
+		int colon = line.indexOf(": ", 6);
+		String table = line.substring(line.lastIndexOf('.', colon) + 1, colon).replace("\"", "").toLowerCase();
+		int opEnd = line.indexOf(':', colon + 2);
+		Op op;
+		try {
+			op = Op.valueOf(line.substring(colon + 2, opEnd));
+		}catch (IllegalArgumentException e) {
+			return null;		// TRUNCATE
+		}
+		if (is(table, "reservation")) {
+			return new ReservationEvent(op, xid, lsn, columns(line, opEnd + 1));
+		}
+		if (is(table, "flight")) {
+			return new FlightEvent(op, xid, lsn, columns(line, opEnd + 1));
+		}
+		if (is(table, "repairs")) {
+			return new RepairEvent(op, xid, lsn, columns(line, opEnd + 1));
+		}
+		return null;
+	}
+
+	// the table or one of its partitions (flight_201405, but not flightinfo)
+	private static boolean is(String table, String name) {
+		return table.equals(name) || table.startsWith(name + "_");
+	}
+
+	/**
+	 * Parses "name[type]:value ..." into a map. Quoted values have their
+	 * quotes removed and CHAR padding trimmed; an UPDATE's old-key part is
+	 * replaced by its new-tuple part.
+	 */
+	static Map<String, String> columns(String line, int from) {
+		Map<String, String> row = new HashMap<String, String>();
+		int i = from;
+		while (i < line.length()) {
+			if (line.charAt(i) == ' ') {
+				i++;
+				continue;
+			}
+			if (line.startsWith("old-key:", i)) {
+				i += 8;
+				continue;
+			}
+			if (line.startsWith("new-tuple:", i)) {
+				row.clear();
+				i += 10;
+				continue;
+			}
+			int bracket = line.indexOf('[', i);
+			int value = line.indexOf("]:", bracket);
+			if (bracket < 0 || value < 0) {
+				break;		// (no-tuple-data)
+			}
+			String name = line.substring(i, bracket).replace("\"", "");
+			i = value + 2;
+			if (i < line.length() && line.charAt(i) == '\'') {
+				StringBuilder sb = new StringBuilder();
+				for (i++; i < line.length(); i++) {
+					char ch = line.charAt(i);
+					if (ch == '\'') {
+						if (i + 1 < line.length() && line.charAt(i + 1) == '\'') {
+							sb.append('\'');
+							i++;
+							continue;
+						}
+						i++;
+						break;
+					}
+					sb.append(ch);
+				}
+				row.put(name, sb.toString().trim());
+			} else {
+				int end = line.indexOf(' ', i);
+				if (end < 0) {
+					end = line.length();
+				}
+				String v = line.substring(i, end);
+				row.put(name, v.equals("null") ? null : v);
+				i = end;
+			}
+		}
+		return row;
+	}
+
+	private static int intOf(Map<String, String> row, String name) {
+		String v = row.get(name);
+		return v == null ? 0 : Integer.parseInt(v);
+	}
+
+	/**
+	 * Confirms the oldest commit every subscriber went past: written to the
+	 * LSN file first, then reported to the server.
+	 */
+	private synchronized void confirm(boolean force) throws SQLException, IOException {
+		long lsn = lastCommit;
+		for (Subscription s : subscriptions) {
+			lsn = Math.min(lsn, s.committed);
+		}
+		if (lsn > confirmed) {
+			writeLsn(LogSequenceNumber.valueOf(lsn));
+			confirmed = lsn;
+		}
+		if (stream != null && confirmed > 0 && (force || System.currentTimeMillis() - reportedMillis >= 1000)) {
+			LogSequenceNumber c = LogSequenceNumber.valueOf(confirmed);
+			stream.setAppliedLSN(c);
+			stream.setFlushedLSN(c);
+			stream.forceUpdateStatus();
+			reportedMillis = System.currentTimeMillis();
+		}
+	}
+
+	private LogSequenceNumber readLsn() throws IOException {
+		if (!lsnFile.isFile()) {
+			return LogSequenceNumber.INVALID_LSN;
+		}
+		String s = new String(Files.readAllBytes(lsnFile.toPath()), StandardCharsets.US_ASCII).trim();
+		return s.isEmpty() ? LogSequenceNumber.INVALID_LSN : LogSequenceNumber.valueOf(s);
+	}
+
+	/*
+	 * Records an event a subscriber gave up on, one tab separated line:
+	 * subscriber, event, error. If the file cannot be written the line
+	 * goes to stderr, so the event is never dropped without a trace.
+	 */
+	private void deadLetter(String subscriber, Event e, Exception x) {
+		String line = subscriber + "\t" + e + "\t" + x;
+		synchronized (deadLetterFile) {
+			try {
+				if (deadLetters == null) {
+					deadLetters = new OutputStreamWriter(new FileOutputStream(deadLetterFile, true), StandardCharsets.UTF_8);
+				}
+				deadLetters.write(line);
+				deadLetters.write('\n');
+				deadLetters.flush();
+				System.err.println("Change stream: subscriber " + subscriber + " gave up on " + e + " after "
+					+ RETRY_ATTEMPTS + " tries (" + x + "), written to " + deadLetterFile);
+				return;
+			}catch (IOException io) {
+				System.err.println("Change stream: could not write " + deadLetterFile + " (" + io.getMessage() + ")");
+			}
+		}
+		System.err.println("Change stream: dropped " + line);
+	}
+
+	// write and rename, so a crash leaves the old or the new LSN
+	private void writeLsn(LogSequenceNumber lsn) throws IOException {
+		File tmp = new File(lsnFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write((lsn.asString() + "\n").getBytes(StandardCharsets.US_ASCII));
+			out.getFD().sync();
+		}finally{
+			out.close();
+		}
+		Files.move(tmp.toPath(), lsnFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Method to stop reading, wait up to the given time for the subscribers
+	 * to catch up, confirm and close the replication connection. The
+	 * subscribers stay subscribed for the next start(). A reader waiting for
+	 * room in the ring is interrupted; the event it was publishing is read
+	 * again after the next start().
+	 *
+	 * @param millis how long to wait for the subscribers
+	 */
+	public void stop(long millis) {
+		Thread r;
+		synchronized (this) {
+			running = false;
+			r = reader;
+			reader = null;
+		}
+		if (r == null) {
+			return;
+		}
+		r.interrupt();
+		try {
+			r.join(READER_JOIN_MILLIS);
+			if (r.isAlive()) {
+				lastError = "reader did not stop within " + READER_JOIN_MILLIS + " ms";
+				System.err.println("Change stream: " + lastError + ", closing its connection");
+			}
+			long deadline = System.currentTimeMillis() + millis;
+			for (Subscription s : subscriptions) {
+				while (s.cursor.backlog() > 0 && System.currentTimeMillis() < deadline) {
+					Thread.sleep(10);
+				}
+			}
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				confirm(true);
+			}catch (Exception e) {
+				lastError = e.getMessage();
+			}
+			closeConnection();
+		}
+	}
+
+	/**
+	 * Method to stop for good, ending the subscriber threads.
+	 */
+	public void close() {
+		// wakes a reader waiting for room, then lets the subscribers drain the ring
+		ring.close();
+		stop(5000);
+		for (Subscription s : subscriptions) {
+			unsubscribe(s);
+		}
+		synchronized (deadLetterFile) {
+			try {
+				if (deadLetters != null) {
+					deadLetters.close();
+				}
+			}catch (IOException e) {
+				// every line was flushed when written
+			}
+			deadLetters = null;
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void closeConnection() {
+		try {
+			if (stream != null) {
+				stream.close();
+			}
+		}catch (SQLException e) {
+			// ignored.
+		}
+		stream = null;
+		try {
+			if (conn != null) {
+				conn.close();
+			}
+		}catch (SQLException e) {
+			// ignored.
+		}
+		conn = null;
+	}
+
+	/**
+	 * @return the stream's state and counters, one per line
+	 */
+	public String status() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("stream             ").append(running ? "running" : "stopped").append(" (slot ").append(slot).append(")\n");
+		sb.append("messages read      ").append(messages.get()).append('\n');
+		sb.append("events published   ").append(events.get()).append(" in ").append(transactions.get()).append(" transactions\n");
+		sb.append("last commit        ").append(LogSequenceNumber.valueOf(lastCommit).asString()).append('\n');
+		sb.append("confirmed          ").append(LogSequenceNumber.valueOf(confirmed).asString()).append(" (").append(lsnFile).append(")\n");
+		sb.append("reader blocked     ").append(ring.getBlockedMillis()).append(" ms\n");
+		for (Subscription s : subscriptions) {
+			sb.append("subscriber ").append(s.name).append(": ").append(s.delivered.get()).append(" delivered, ")
+				.append(s.cursor.backlog()).append(" behind, ").append(s.failed.get()).append(" failed tries, ")
+				.append(s.deadLettered.get()).append(" dead-lettered");
+			if (s.lastFailure != null) {
+				sb.append(" (last: ").append(s.lastFailure).append(')');
+			}
+			sb.append('\n');
+		}
+		if (lastError != null) {
+			sb.append("last error         ").append(lastError).append('\n');
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * Method to make a subscriber that appends every event to a file, one
+	 * per line.
+	 *
+	 * @param file the log file
+	 * @return the subscriber
+	 * @throws java.io.IOException when the file cannot be opened
+	 */
+	public static Subscriber logTo(File file) throws IOException {
+		final Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+		return new Subscriber() {
+			public void onEvent(Event event) throws IOException {
+				out.write(event.toString());
+				out.write('\n');
+				out.flush();
+			}
+		};
+	}
+}
@@ -0,0 +1,395 @@
+/*
+ * Connection keeper for DBproject
+ * =============================
+ *
+ * Holds the interactive connection, checks that it is still alive and
+ * reconnects when the database went away.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class keeps DBproject's interactive connection usable across a
+ * restart of the database. A background thread validates the connection
+ * every keepalive interval while the menu is idle (isValid() changes the
+ * socket timeout, so it must not run next to a statement; an operation
+ * starting during a check waits for it, but nothing else does). A
+ * connection found dead, by the check or by a statement failing with a
+ * connection error (SQLSTATE class 08, or the server shutting down), is
+ * replaced: the background thread reconnects with exponential backoff and
+ * full jitter, so clients of a restarted server do not all come back at
+ * the same instant. Work that uses the connection directly instead of
+ * through call() reports its errors with failed().
+ *
+ * Callers that need the connection while it is being replaced wait up to
+ * the reconnect wait for it. Reads run through call() are retried on the
+ * new connection; writes are not, because whether a statement interrupted
+ * by a lost connection committed is unknown, and the error says so.
+ *
+ * The driver caches server side prepared statements per connection, so
+ * they are lost with it. The new connection gets the old one's prepare
+ * threshold, so the hot lookups are prepared again on their first use.
+ *
+ * The keepalive interval and the reconnect wait (seconds) can be set with
+ * dbproject.keepalive (0 disables the check) and dbproject.reconnect.wait.
+ *
+ */
+
+public class ConnectionKeeper {
+	// attempts of a read, the first one included
+	static final int READ_ATTEMPTS = 3;
+	// reconnect backoff bounds
+	static final long BACKOFF_MIN_MILLIS = 100;
+	static final long BACKOFF_MAX_MILLIS = 10000;
+	// time a validity check may take
+	static final int VALID_TIMEOUT_SECONDS = 2;
+
+	/**
+	 * Database work that can be run again on a new connection.
+	 */
+	public interface Call<T> {
+		T run() throws SQLException;
+	}
+
+	private final DBproject esql;
+	private final long waitMillis;
+	private volatile Connection conn = null;
+	private ScheduledExecutorService scheduler = null;
+
+	// guarded by this
+	private boolean busy = false;
+	private boolean probing = false;	// isValid() running, outside the monitor
+	private long downSince = 0;		// 0 while connected
+	private int attempts = 0;
+	private String lastError = null;
+
+	// recovery metrics since startup
+	private final AtomicLong outages = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private volatile long lastRecoveryMillis = -1;
+	private volatile long maxRecoveryMillis = -1;
+
+	public ConnectionKeeper(DBproject esql) {
+		this.esql = esql;
+		this.waitMillis = Integer.getInteger("dbproject.reconnect.wait", 10) * 1000L;
+	}
+
+	/**
+	 * Method to open the connection.
+	 *
+	 * @throws java.sql.SQLException when the database cannot be reached
+	 */
+	public void connect() throws SQLException {
+		conn = esql.openConnection();
+	}
+
+	public boolean isConnected() {
+		return conn != null;
+	}
+
+	/**
+	 * Method to access the connection, waiting for a reconnect if the
+	 * current one is known to be dead. When the wait runs out the dead
+	 * connection is returned, and using it reports the error.
+	 *
+	 * @return the connection, null before connect()
+	 */
+	public Connection getConnection() {
+		Connection c = conn;
+		if (c != null && isClosed(c)) {
+			lost(c, "connection closed");
+		}
+		if (isDown()) {
+			awaitRecovery();
+		}
+		return conn;
+	}
+
+	/**
+	 * Method to run database work, replacing the connection when it fails
+	 * with a connection error.
+	 *
+	 * @param call the work, which must get the connection from DBproject each time it runs
+	 * @param idempotent true if running it again cannot change the outcome,
+	 *        i.e. it only reads; such work is retried on the new connection
+	 * @return what the work returned
+	 * @throws java.sql.SQLException when the work fails, or the connection
+	 *         is lost and cannot be replaced within the reconnect wait
+	 */
+	public <T> T call(Call<T> call, boolean idempotent) throws SQLException {
+		for (int attempt = 1; ; attempt++) {
+			Connection used = getConnection();
+			try {
+				return call.run();
+			}catch (SQLException e) {
+				if (!isConnectionError(e)) {
+					throw e;
+				}
+				lost(used, e.getMessage());
+				if (!idempotent) {
+					throw new SQLException("Lost the connection to the database, the change may or may not have been made: "
+						+ e.getMessage(), e.getSQLState(), e);
+				}
+				if (attempt == READ_ATTEMPTS || !awaitRecovery()) {
+					throw new SQLException("Lost the connection to the database and could not reconnect: "
+						+ e.getMessage(), e.getSQLState(), e);
+				}
+				retried.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Method to report an error from work that used the connection without
+	 * going through call(). A connection error starts a reconnect, so the
+	 * next operation gets a working connection.
+	 *
+	 * @param used the connection the work ran on
+	 * @param e the error
+	 */
+	public void failed(Connection used, SQLException e) {
+		if (isConnectionError(e)) {
+			lost(used, e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to mark the menu as running an operation, during which the
+	 * connection is not checked. An operation that starts while a check is
+	 * running waits for it, at most VALID_TIMEOUT_SECONDS.
+	 *
+	 * @param busy true when an operation starts, false when it is over
+	 */
+	public synchronized void setBusy(boolean busy) {
+		boolean interrupted = false;
+		while (busy && probing) {
+			try {
+				wait();
+			}catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		this.busy = busy;
+	}
+
+	/**
+	 * Method to start checking the connection in the background.
+	 *
+	 * @param seconds the keepalive interval, 0 to only reconnect after errors
+	 */
+	public synchronized void start(long seconds) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "connection-keeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (seconds > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					check();
+				}
+			}, seconds, seconds, TimeUnit.SECONDS);
+		}
+	}
+
+	private void check() {
+		Connection c;
+		synchronized (this) {
+			c = conn;
+			if (c == null || busy || downSince != 0) {
+				return;
+			}
+			probing = true;
+		}
+		boolean valid = false;
+		try {
+			valid = c.isValid(VALID_TIMEOUT_SECONDS);
+		}catch (SQLException e) {
+			// only thrown for a negative timeout
+		}finally{
+			synchronized (this) {
+				probing = false;
+				notifyAll();
+			}
+		}
+		if (!valid) {
+			lost(c, "keepalive check failed");
+		}
+	}
+
+	/*
+	 * Called when the connection c turned out to be dead. Only the first
+	 * report for the current connection starts reconnecting.
+	 */
+	private synchronized void lost(Connection c, String reason) {
+		if (c != conn || downSince != 0) {
+			return;
+		}
+		downSince = System.currentTimeMillis();
+		attempts = 0;
+		outages.incrementAndGet();
+		System.err.println("Connection to the database lost (" + reason + "), reconnecting");
+		if (scheduler == null) {
+			start(0);
+		}
+		try {
+			schedule(0);
+		}catch (RuntimeException e) {
+			// shut down at exit
+		}
+	}
+
+	private void schedule(long delayMillis) {
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				reconnect();
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void reconnect() {
+		Connection c;
+		try {
+			c = esql.openConnection();
+		}catch (SQLException e) {
+			long delay;
+			synchronized (this) {
+				attempts++;
+				lastError = e.getMessage();
+				long ceiling = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_MIN_MILLIS << Math.min(attempts, 20));
+				delay = ThreadLocalRandom.current().nextLong(BACKOFF_MIN_MILLIS, ceiling + 1);
+			}
+			try {
+				schedule(delay);
+			}catch (RuntimeException x) {
+				// shut down while reconnecting
+			}
+			return;
+		}
+		Connection old = conn;
+		try {
+			int threshold = old.unwrap(PGConnection.class).getPrepareThreshold();
+			c.unwrap(PGConnection.class).setPrepareThreshold(threshold);
+		}catch (SQLException e) {
+			System.err.println("Could not carry over the prepare threshold: " + e.getMessage());
+		}
+		long millis;
+		int tries;
+		synchronized (this) {
+			conn = c;
+			millis = System.currentTimeMillis() - downSince;
+			tries = attempts + 1;
+			downSince = 0;
+			lastRecoveryMillis = millis;
+			maxRecoveryMillis = Math.max(maxRecoveryMillis, millis);
+			notifyAll();
+		}
+		try {
+			old.close();
+		}catch (SQLException e) {
+			// already broken.
+		}
+		System.err.println("Reconnected to the database after " + millis + " ms (" + tries + " attempts)");
+	}
+
+	private synchronized boolean isDown() {
+		return downSince != 0;
+	}
+
+	/*
+	 * Waits up to the reconnect wait for the connection to be replaced.
+	 * Returns true if it is usable again.
+	 */
+	private synchronized boolean awaitRecovery() {
+		long deadline = System.currentTimeMillis() + waitMillis;
+		boolean interrupted = false;
+		while (downSince != 0) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				break;
+			}
+			try {
+				wait(left);
+			}catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return downSince == 0;
+	}
+
+	/**
+	 * Method to stop checking and close the connection, at exit.
+	 *
+	 * @throws java.sql.SQLException when closing the connection fails
+	 */
+	public void close() throws SQLException {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+			}
+			notifyAll();
+		}
+		Connection c = conn;
+		if (c != null) {
+			c.close();
+		}
+	}
+
+	static boolean isConnectionError(SQLException e) {
+		String state = e.getSQLState();
+		// 57P0x: the server ended the session, e.g. shutting down, or is starting up
+		return state != null && (state.startsWith("08") || state.startsWith("57P0"));
+	}
+
+	private static boolean isClosed(Connection c) {
+		try {
+			return c.isClosed();
+		}catch (SQLException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return the outages and recovery times since startup
+	 */
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("outages            ").append(outages.get()).append('\n');
+		sb.append("last recovery      ").append(lastRecoveryMillis).append(" ms\n");
+		sb.append("longest recovery   ").append(maxRecoveryMillis).append(" ms\n");
+		sb.append("reads retried      ").append(retried.get()).append('\n');
+		sb.append("connection         ");
+		if (downSince == 0) {
+			sb.append(conn == null ? "not connected" : "up");
+		}else {
+			sb.append("down for ").append(System.currentTimeMillis() - downSince).append(" ms, ")
+				.append(attempts).append(" attempts");
+			if (lastError != null) {
+				sb.append(" (last: ").append(lastError).append(')');
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,688 @@
+/*
+ * CSV validation for DBproject
+ * =============================
+ *
+ * Checks and normalizes the data/*.csv files before sql/create.sql loads
+ * them, so a bad row is reported with all the others instead of failing
+ * the COPY on its own.
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class validates every row of the data files against the column
+ * types, domains and foreign keys of sql/create.sql, and writes the rows
+ * that pass, normalized, to an output directory in the same COPY text
+ * format, so create.sql can load them unchanged. Rows that fail go to
+ * rejects.txt with their file, line number and the reason.
+ *
+ * Normalization fixes what the shipped files get wrong:
+ *  - the customer address ends at a comma, spilling the state into the
+ *    zipcode ("..., FL 32904"); the state is moved back into the address
+ *    and the zipcode checked against us_postal_code (empty means NULL)
+ *  - dates of birth are M/d/yyyy; all dates are written as yyyy-MM-dd
+ *  - flight and schedule times are timestamps going into DATE columns;
+ *    only the date is kept
+ *  - CRLF line endings become LF
+ *
+ * Files are processed parents first, so foreign keys are checked against
+ * the keys that were actually accepted. Each file is memory mapped and cut
+ * into chunks at line boundaries; the chunks are parsed and validated in
+ * parallel, and written out in file order by the main thread, which also
+ * rejects duplicate primary keys (the first occurrence wins).
+ *
+ */
+
+public class CsvValidator {
+	// bytes per chunk handed to a worker
+	static final int CHUNK = 32 << 20;
+	// longest line accepted
+	static final int MAX_LINE = 1 << 20;
+
+	enum Type { INT, PINTEGER, PZEROINTEGER, YEAR_1970, SEATS, CHAR, DATE, STATUS, GENDER, CODE, POSTAL_CODE }
+
+	static class Column {
+		final String name;
+		final Type type;
+		final int width;		// CHAR(width)
+		final boolean notNull;
+		final Table references;
+
+		Column(String name, Type type, int width, boolean notNull, Table references) {
+			this.name = name;
+			this.type = type;
+			this.width = width;
+			this.notNull = notNull;
+			this.references = references;
+		}
+	}
+
+	static class Table {
+		final String name;
+		final String file;
+		final Column[] columns;
+		// primary keys (the first column) accepted so far
+		final IntHashMap<Boolean> keys = new IntHashMap<Boolean>(1024);
+		long rows = 0;
+		long written = 0;
+		long normalized = 0;
+		long rejected = 0;
+
+		Table(String name, String file, Column... columns) {
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+		}
+	}
+
+	static Column key(String name) {
+		return new Column(name, Type.INT, 0, true, null);
+	}
+
+	static Column col(String name, Type type, boolean notNull) {
+		return new Column(name, type, 0, notNull, null);
+	}
+
+	static Column text(String name, int width, boolean notNull) {
+		return new Column(name, Type.CHAR, width, notNull, null);
+	}
+
+	static Column ref(String name, Table parent) {
+		return new Column(name, Type.INT, 0, true, parent);
+	}
+
+	/**
+	 * The tables of sql/create.sql in load order, with the columns in the
+	 * order of the COPY column lists.
+	 */
+	static List<Table> schema() {
+		Table customer = new Table("Customer", "customer.csv",
+			key("id"), text("fname", 24, true), text("lname", 24, true), col("gtype", Type.GENDER, true),
+			col("dob", Type.DATE, true), text("address", 256, false), text("phone", 10, false), col("zipcode", Type.POSTAL_CODE, false));
+		Table pilot = new Table("Pilot", "pilots.csv",
+			key("id"), text("fullname", 128, false), text("nationality", 24, false));
+		Table plane = new Table("Plane", "planes.csv",
+			key("id"), text("make", 32, true), text("model", 64, true), col("age", Type.YEAR_1970, true), col("seats", Type.SEATS, true));
+		Table technician = new Table("Technician", "technician.csv",
+			key("id"), text("full_name", 128, true));
+		Table flight = new Table("Flight", "flights.csv",
+			key("fnum"), col("cost", Type.PINTEGER, true), col("num_sold", Type.PZEROINTEGER, true), col("num_stops", Type.PZEROINTEGER, true),
+			col("actual_departure_date", Type.DATE, true), col("actual_arrival_date", Type.DATE, true),
+			text("arrival_airport", 5, true), text("departure_airport", 5, true));
+		Table reservation = new Table("Reservation", "reservation.csv",
+			key("rnum"), ref("cid", customer), ref("fid", flight), col("status", Type.STATUS, false));
+		Table flightInfo = new Table("FlightInfo", "flightinfo.csv",
+			key("fiid"), ref("flight_id", flight), ref("pilot_id", pilot), ref("plane_id", plane));
+		Table repairs = new Table("Repairs", "repairs.csv",
+			key("rid"), col("repair_date", Type.DATE, true), col("repair_code", Type.CODE, false),
+			ref("pilot_id", pilot), ref("plane_id", plane), ref("technician_id", technician));
+		Table schedule = new Table("Schedule", "schedule.csv",
+			key("id"), ref("flightNum", flight), col("departure_time", Type.DATE, true), col("arrival_time", Type.DATE, true));
+		return Arrays.asList(customer, pilot, plane, technician, flight, reservation, flightInfo, repairs, schedule);
+	}
+
+	/**
+	 * A row that fails validation. No stack trace, rejects can be frequent.
+	 */
+	static class Reject extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Reject(String message) {
+			super(message, null, false, false);
+		}
+	}
+
+	/**
+	 * What a worker made of one chunk: the accepted rows, already encoded,
+	 * and the rejected ones, both by line index within the chunk.
+	 */
+	static class Chunk {
+		int lines = 0;
+		byte[] out = new byte[1 << 16];
+		int outSize = 0;
+		// accepted rows: line index, primary key and end offset in out
+		int[] rowLine = new int[1024];
+		int[] rowKey = new int[1024];
+		int[] rowEnd = new int[1024];
+		boolean[] rowChanged = new boolean[1024];
+		int rows = 0;
+		// rejected rows
+		List<Integer> rejectLine = new ArrayList<Integer>();
+		List<String> rejectText = new ArrayList<String>();
+
+		void accept(int line, int key, StringBuilder row, boolean changed) {
+			int n = row.length();
+			if (outSize + n * 3 + 1 > out.length) {
+				out = Arrays.copyOf(out, Math.max(out.length * 2, outSize + n * 3 + 1));
+			}
+			for (int i = 0; i < n; i++) {
+				char ch = row.charAt(i);
+				if (ch >= 0x80) {
+					// not ASCII, let the encoder deal with it
+					byte[] b = row.substring(i).getBytes(StandardCharsets.UTF_8);
+					System.arraycopy(b, 0, out, outSize, b.length);
+					outSize += b.length;
+					break;
+				}
+				out[outSize++] = (byte) ch;
+			}
+			out[outSize++] = '\n';
+			if (rows == rowLine.length) {
+				int capacity = rows * 2;
+				rowLine = Arrays.copyOf(rowLine, capacity);
+				rowKey = Arrays.copyOf(rowKey, capacity);
+				rowEnd = Arrays.copyOf(rowEnd, capacity);
+				rowChanged = Arrays.copyOf(rowChanged, capacity);
+			}
+			rowLine[rows] = line;
+			rowKey[rows] = key;
+			rowEnd[rows] = outSize;
+			rowChanged[rows] = changed;
+			rows++;
+		}
+
+		void reject(int line, String reason, String raw) {
+			rejectLine.add(line);
+			rejectText.add(reason + ": " + raw);
+		}
+	}
+
+	private final File input;
+	private final File output;
+	private final ExecutorService workers;
+	private final int threads;
+	private final Writer rejects;
+
+	public CsvValidator(File input, File output, int threads) throws IOException {
+		this.input = input;
+		this.output = output;
+		this.threads = threads;
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.rejects = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(new File(output, "rejects.txt")), 1 << 16), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Method to validate one file into the output directory.
+	 *
+	 * @param table the table the file is loaded into
+	 * @throws java.io.IOException when a file cannot be read or written
+	 */
+	public void validate(final Table table) throws IOException, InterruptedException {
+		File in = new File(input, table.file);
+		final FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(output, table.file)), 1 << 16);
+		try {
+			final long size = channel.size();
+			// a bounded window of chunks in flight keeps memory flat on large files
+			ArrayDeque<Future<Chunk>> window = new ArrayDeque<Future<Chunk>>();
+			long line = 1;
+			for (long start = 0; start < size || !window.isEmpty(); ) {
+				while (start < size && window.size() < threads * 2) {
+					final long from = start;
+					final long to = Math.min(size, start + CHUNK);
+					window.add(workers.submit(new Callable<Chunk>() {
+						public Chunk call() throws IOException {
+							return parse(table, channel, size, from, to);
+						}
+					}));
+					start = to;
+				}
+				Chunk chunk;
+				try {
+					chunk = window.poll().get();
+				}catch (ExecutionException e) {
+					throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+				write(table, chunk, line, out);
+				line += chunk.lines;
+			}
+		}finally{
+			out.close();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes a chunk's rows in line order, dropping duplicate keys.
+	 */
+	private void write(Table table, Chunk chunk, long firstLine, OutputStream out) throws IOException {
+		int r = 0;
+		int from = 0;
+		for (int x = 0; r < chunk.rows || x < chunk.rejectLine.size(); ) {
+			if (x < chunk.rejectLine.size() && (r == chunk.rows || chunk.rejectLine.get(x) < chunk.rowLine[r])) {
+				reject(table, firstLine + chunk.rejectLine.get(x), chunk.rejectText.get(x));
+				x++;
+				continue;
+			}
+			int end = chunk.rowEnd[r];
+			if (table.keys.put(chunk.rowKey[r], Boolean.TRUE) != null) {
+				reject(table, firstLine + chunk.rowLine[r], "duplicate " + table.columns[0].name + " " + chunk.rowKey[r]
+					+ ": " + new String(chunk.out, from, end - from - 1, StandardCharsets.UTF_8));
+			} else {
+				out.write(chunk.out, from, end - from);
+				table.written++;
+				if (chunk.rowChanged[r]) {
+					table.normalized++;
+				}
+			}
+			from = end;
+			r++;
+		}
+		table.rows += chunk.lines;
+	}
+
+	private void reject(Table table, long line, String text) throws IOException {
+		table.rejected++;
+		rejects.write(table.file + ":" + line + ": " + text + "\n");
+	}
+
+	/**
+	 * Parses the lines starting in [from, to) of the file. A line belongs to
+	 * the chunk it starts in, so the region is mapped from one byte early,
+	 * to see whether from is at a line start, to MAX_LINE bytes late, to
+	 * finish the last line.
+	 */
+	static Chunk parse(Table table, FileChannel channel, long size, long from, long to) throws IOException {
+		long base = Math.max(0, from - 1);
+		long end = Math.min(size, to + MAX_LINE);
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, base, end - base);
+		Chunk chunk = new Chunk();
+		int limit = (int) (end - base);
+		int stop = (int) (to - base);
+		int pos = 0;
+		if (from > 0) {
+			while (pos < limit && map.get(pos) != '\n') {
+				pos++;
+			}
+			pos++;
+		}
+		byte[] line = new byte[256];
+		String[] fields = new String[table.columns.length + 8];
+		StringBuilder sb = new StringBuilder();
+		while (pos < stop) {
+			// copy the line out while looking for its end
+			int eol = pos;
+			int len = 0;
+			boolean ascii = true;
+			for (; eol < limit; eol++) {
+				byte b = map.get(eol);
+				if (b == '\n') {
+					break;
+				}
+				if (len == line.length) {
+					line = Arrays.copyOf(line, len * 2);
+				}
+				line[len++] = b;
+				ascii &= b >= 0;
+			}
+			if (eol == limit && end < size) {
+				throw new IOException(table.file + ": line at byte " + (base + pos) + " is longer than " + MAX_LINE + " bytes");
+			}
+			if (len > 0 && line[len - 1] == '\r') {
+				len--;
+			}
+			String raw = new String(line, 0, len, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+			int index = chunk.lines++;
+			pos = eol + 1;
+			try {
+				int n = split(raw, fields, sb);
+				if (n > fields.length) {
+					throw new Reject("too many fields");
+				}
+				n = repair(table, fields, n);
+				if (n != table.columns.length) {
+					throw new Reject("expected " + table.columns.length + " fields, found " + n);
+				}
+				int key = 0;
+				sb.setLength(0);
+				for (int c = 0; c < n; c++) {
+					String value = check(table.columns[c], fields[c]);
+					if (c == 0) {
+						key = Integer.parseInt(value);
+					}
+					if (c > 0) {
+						sb.append(',');
+					}
+					escape(value, sb);
+				}
+				chunk.accept(index, key, sb, !raw.contentEquals(sb));
+			}catch (Reject e) {
+				chunk.reject(index, e.getMessage(), raw);
+			}
+		}
+		return chunk;
+	}
+
+	/**
+	 * Splits a COPY text format line on unescaped commas, undoing the
+	 * backslash escapes. \N alone is NULL.
+	 *
+	 * @return the number of fields, which may exceed fields.length
+	 */
+	static int split(String raw, String[] fields, StringBuilder sb) {
+		int n = 0;
+		if (raw.indexOf('\\') < 0) {
+			// nothing escaped, the fields are plain substrings
+			int start = 0;
+			while (true) {
+				int comma = raw.indexOf(',', start);
+				if (n < fields.length) {
+					fields[n] = raw.substring(start, comma < 0 ? raw.length() : comma);
+				}
+				n++;
+				if (comma < 0) {
+					return n;
+				}
+				start = comma + 1;
+			}
+		}
+		sb.setLength(0);
+		boolean escaped = false;
+		boolean nullMarker = false;
+		for (int i = 0; i <= raw.length(); i++) {
+			if (i == raw.length() || raw.charAt(i) == ',') {
+				if (n < fields.length) {
+					fields[n] = nullMarker && sb.length() == 0 ? null : sb.toString();
+				}
+				n++;
+				sb.setLength(0);
+				nullMarker = false;
+				continue;
+			}
+			char ch = raw.charAt(i);
+			if (ch != '\\' || i + 1 == raw.length()) {
+				sb.append(ch);
+				continue;
+			}
+			ch = raw.charAt(++i);
+			switch (ch) {
+				case 'N':
+					nullMarker = sb.length() == 0 && (i + 1 == raw.length() || raw.charAt(i + 1) == ',');
+					if (!nullMarker) {
+						sb.append(ch);
+					}
+					break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				default: sb.append(ch); break;
+			}
+		}
+		return n;
+	}
+
+	static void escape(String value, StringBuilder sb) {
+		if (value == null) {
+			sb.append("\\N");
+			return;
+		}
+		int plain = 0;
+		while (plain < value.length() && "\\,\n\r".indexOf(value.charAt(plain)) < 0) {
+			plain++;
+		}
+		if (plain == value.length()) {
+			sb.append(value);
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			switch (ch) {
+				case '\\': sb.append("\\\\"); break;
+				case ',': sb.append("\\,"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				default: sb.append(ch); break;
+			}
+		}
+	}
+
+	/**
+	 * Puts a customer's address back together: unescaped commas in the
+	 * address split it over several fields, and the part after the last
+	 * comma (the state) lands in front of the zipcode.
+	 *
+	 * @return the number of fields after the repair
+	 */
+	static int repair(Table table, String[] fields, int n) {
+		if (!"Customer".equals(table.name) || n < 8) {
+			return n;
+		}
+		// fields 5 .. n-3 are the address, then phone and zipcode
+		if (n > 8) {
+			StringBuilder address = new StringBuilder(fields[5] == null ? "" : fields[5]);
+			for (int i = 6; i <= n - 3; i++) {
+				address.append(',').append(fields[i] == null ? "" : fields[i]);
+			}
+			fields[5] = address.toString();
+			fields[6] = fields[n - 2];
+			fields[7] = fields[n - 1];
+			n = 8;
+		}
+		String zip = fields[7] == null ? "" : fields[7].trim();
+		int space = zip.indexOf(' ');
+		if (space > 0 && space <= 3 && fields[5] != null) {
+			String state = zip.substring(0, space);
+			if (isLetters(state)) {
+				fields[5] = fields[5].trim() + ", " + state;
+				zip = zip.substring(space + 1).trim();
+			}
+		}
+		fields[7] = zip;
+		return n;
+	}
+
+	private static boolean isLetters(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (!Character.isLetter(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks a value against its column and returns it normalized.
+	 */
+	static String check(Column column, String value) throws Reject {
+		if (value == null || (value.isEmpty() && column.type != Type.CHAR)) {
+			if (column.notNull) {
+				throw new Reject(column.name + " is missing");
+			}
+			return null;
+		}
+		switch (column.type) {
+			case INT:
+				int v = integer(column, value);
+				if (column.references != null && !column.references.keys.containsKey(v)) {
+					throw new Reject(column.name + " " + v + " not in " + column.references.name);
+				}
+				return value.trim();
+			case PINTEGER:
+				return range(column, value, 1, Integer.MAX_VALUE);
+			case PZEROINTEGER:
+			case YEAR_1970:
+				return range(column, value, 0, Integer.MAX_VALUE);
+			case SEATS:
+				return range(column, value, 1, 499);
+			case CHAR:
+				// trailing spaces do not count against CHAR(n)
+				int len = value.length();
+				while (len > 0 && value.charAt(len - 1) == ' ') {
+					len--;
+				}
+				if (value.codePointCount(0, len) > column.width) {
+					throw new Reject(column.name + " longer than " + column.width + " characters");
+				}
+				return value;
+			case DATE:
+				return date(column, value.trim());
+			case STATUS:
+				return oneOf(column, value, "W", "C", "R");
+			case GENDER:
+				return oneOf(column, value, "F", "M");
+			case CODE:
+				return oneOf(column, value, "MJ", "MN", "SV");
+			case POSTAL_CODE:
+				if (!postalCode(value)) {
+					throw new Reject(column.name + " '" + value + "' is not a US postal code");
+				}
+				return value;
+			default:
+				throw new IllegalStateException(column.type.toString());
+		}
+	}
+
+	private static int integer(Column column, String value) throws Reject {
+		try {
+			return Integer.parseInt(value.trim());
+		}catch (NumberFormatException e) {
+			throw new Reject(column.name + " '" + value + "' is not an integer");
+		}
+	}
+
+	private static String range(Column column, String value, int min, int max) throws Reject {
+		int v = integer(column, value);
+		if (v < min || v > max) {
+			throw new Reject(column.name + " " + v + " outside " + column.type);
+		}
+		return value.trim();
+	}
+
+	private static String oneOf(Column column, String value, String... allowed) throws Reject {
+		String v = value.trim();
+		for (String a : allowed) {
+			if (a.equals(v)) {
+				return v;
+			}
+		}
+		throw new Reject(column.name + " '" + value + "' not in " + Arrays.toString(allowed));
+	}
+
+	// us_postal_code: ^\d{5}$ or ^\d{5}-\d{4}$
+	static boolean postalCode(String s) {
+		if (s.length() != 5 && s.length() != 10) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (i == 5 ? ch != '-' : (ch < '0' || ch > '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Accepts yyyy-MM-dd, optionally followed by a time, and M/d/yyyy.
+	 *
+	 * @return the date as yyyy-MM-dd
+	 */
+	static String date(Column column, String value) throws Reject {
+		int y, m, d;
+		try {
+			int slash = value.indexOf('/');
+			if (slash > 0) {
+				int second = value.indexOf('/', slash + 1);
+				m = Integer.parseInt(value.substring(0, slash));
+				d = Integer.parseInt(value.substring(slash + 1, second));
+				y = Integer.parseInt(value.substring(second + 1));
+			} else {
+				// the time, if any, starts after the 10 date characters
+				if (value.length() > 10 && value.charAt(10) != ' ' && value.charAt(10) != 'T') {
+					throw new NumberFormatException();
+				}
+				y = Integer.parseInt(value.substring(0, 4));
+				d = Integer.parseInt(value.substring(8, 10));
+				m = Integer.parseInt(value.substring(5, 7));
+				if (value.charAt(4) != '-' || value.charAt(7) != '-') {
+					throw new NumberFormatException();
+				}
+			}
+			return LocalDate.of(y, m, d).toString();
+		}catch (RuntimeException e) {
+			// NumberFormatException, StringIndexOutOfBoundsException, DateTimeException
+			throw new Reject(column.name + " '" + value + "' is not a date");
+		}
+	}
+
+	public void close() throws IOException {
+		workers.shutdown();
+		rejects.close();
+	}
+
+	/**
+	 * Usage: java CsvValidator <input dir> <output dir> [threads]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + CsvValidator.class.getName() + " <input dir> <output dir> [threads]");
+			System.exit(1);
+		}
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		if (input.getAbsoluteFile().equals(output.getAbsoluteFile())) {
+			System.err.println("The output directory must not be the input directory");
+			System.exit(1);
+		}
+		output.mkdirs();
+		CsvValidator validator = null;
+		long rejected = 0;
+		int status = 0;
+		try {
+			validator = new CsvValidator(input, output, threads);
+			for (Table table : schema()) {
+				File file = new File(input, table.file);
+				if (!file.isFile()) {
+					throw new IOException(file + " not found");
+				}
+				long start = System.nanoTime();
+				validator.validate(table);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				double mb = file.length() / (1024.0 * 1024.0);
+				System.out.println(String.format("%-16s %9d rows %9d written %9d normalized %9d rejected  %8.1f MB %8.1f MB/s",
+					table.file, table.rows, table.written, table.normalized, table.rejected, mb, seconds == 0 ? 0 : mb / seconds));
+				rejected += table.rejected;
+			}
+		}catch (Exception e) {
+			System.err.println(e.getMessage());
+			status = 1;
+		}finally{
+			// flushes rejects.txt, which System.exit() would not
+			try {
+				if (validator != null) {
+					validator.close();
+				}
+			}catch (IOException e) {
+				System.err.println("Could not write " + new File(output, "rejects.txt") + ": " + e.getMessage());
+				status = 1;
+			}
+		}
+		if (status != 0) {
+			System.exit(status);
+		}
+		System.out.println(rejected == 0 ? "No rejects" : rejected + " rows rejected, see " + new File(output, "rejects.txt"));
+	}
+}
@@ -18,14 +18,27 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
+import java.io.IOException;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Properties;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -34,20 +47,72 @@ import java.time.format.DateTimeFormatter;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//holds the physical database connection and reconnects it when it breaks
+	private final ConnectionKeeper _keeper = new ConnectionKeeper(this);
+	//startup steps, which the getters wait for in fast-start mode
+	private Warmup _warmup = null;
+	//backend for the menu operations, Postgres unless -Ddbproject.store=memory
+	private FlightStore _store = null;
+	//per-flight seat maps, null when seats are not tracked
+	private SeatMaps _seats = null;
+	//waitlist promotion engine, null when not running
+	private WaitlistPromoter _waitlist = null;
+	//keeps Flight.num_sold in line with the reservations
+	private NumSoldReconciler _reconciler = null;
+	//name search over customers, pilots and technicians, null when not loaded
+	private NameIndex _names = null;
+	//customers, flights, planes and pilots checked before writes, null when not caching
+	private EntityCache _cache = null;
+	//change data capture of Reservation, Flight and Repairs
+	private ChangeStream _changes = null;
+	//limits, timeouts and cancellation for the statements the menu runs
+	private final AdmissionController _admission = new AdmissionController();
+	//connection parameters, kept so background workers can open their own connections
+	private String _url;
+	private String _user;
+	private String _passwd;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//runs long statements so the menu thread can watch for a cancel request
+	static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "menu-worker");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
-		System.out.print("Connecting to database...");
-		try{
-			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+		this(dbname, dbport, user, passwd, false);
+	}
+
+	/**
+	 * @param lazy true to leave connecting to a later connect() call, e.g.
+	 *        from a Warmup step, instead of connecting now
+	 */
+	public DBproject(String dbname, String dbport, String user, String passwd, boolean lazy) throws SQLException {
+		// constructs the connection URL
+		String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._store = new PostgresFlightStore(this);
+		if (lazy) {
 			System.out.println ("Connection URL: " + url + "\n");
+			return;
+		}
+		System.out.print("Connecting to database...");
+		System.out.println ("Connection URL: " + url + "\n");
+		connect();
+		System.out.println("Done");
+	}
 
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
+	/**
+	 * Method to obtain the physical connection. Exits when the database
+	 * cannot be reached.
+	 */
+	public void connect(){
+		try{
+	        this._keeper.connect();
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
@@ -57,35 +122,45 @@ public class DBproject{
 
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP. It is admitted as
+	 * a booking.
 	 *
 	 * @param sql the input SQL string
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+		AdmissionController.Ticket ticket = this._admission.enter(AdmissionController.OpClass.BOOKING);
+		try {
+			// creates a statement object
+			Statement stmt = ticket.create(getConnection());
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			stmt.executeUpdate (sql);
+		}finally{
+			// close the instruction
+			ticket.close();
+		}
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out. It is admitted as a report.
 	 *
 	 * @param query the input query string
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		AdmissionController.Ticket ticket = this._admission.enter(AdmissionController.OpClass.REPORT);
+		try {
+			return printResult(ticket.create(getConnection()), query);
+		}finally{
+			ticket.close();
+		}
+	}
 
+	private static int printResult (Statement stmt, String query) throws SQLException {
 		//issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
 
@@ -119,16 +194,23 @@ public class DBproject{
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+	 * a list of records. Each record in turn is a list of attribute values.
+	 * It is admitted as a report.
 	 *
 	 * @param query the input query string
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		AdmissionController.Ticket ticket = this._admission.enter(AdmissionController.OpClass.REPORT);
+		try {
+			return returnResult(ticket.create(getConnection()), query);
+		}finally{
+			ticket.close();
+		}
+	}
 
+	private static List<List<String>> returnResult (Statement stmt, String query) throws SQLException {
 		//issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
 
@@ -155,27 +237,32 @@ public class DBproject{
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
+	 * method issues the query to the DBMS and returns the number of results.
+	 * It is admitted as a booking.
 	 *
 	 * @param query the input query string
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		AdmissionController.Ticket ticket = this._admission.enter(AdmissionController.OpClass.BOOKING);
+		try {
+			//creates a statement object
+			Statement stmt = ticket.create(getConnection());
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			return rowCount;
+		}finally{
+			ticket.close();
+		}
 	}
 
 	/**
@@ -189,23 +276,238 @@ public class DBproject{
 	 */
 
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
+		AdmissionController.Ticket ticket = this._admission.enter(AdmissionController.OpClass.BOOKING);
+		try {
+			Statement stmt = ticket.create(getConnection());
+
+			ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+			if (rs.next()) return rs.getInt(1);
+			return -1;
+		}finally{
+			ticket.close();
+		}
+	}
 
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	/**
+	 * Method to access the physical connection, for operations that need
+	 * transactions or prepared statements.
+	 *
+	 * @return the open database connection
+	 */
+	public Connection getConnection(){
+		if (!this._keeper.isConnected() && this._warmup != null){
+			this._warmup.await(Warmup.CONNECT);
+		}
+		return this._keeper.getConnection();
+	}
+
+	/**
+	 * Method to access the connection keeper, to run reads that survive a
+	 * reconnect.
+	 *
+	 * @return the connection keeper
+	 */
+	public ConnectionKeeper getKeeper(){
+		return this._keeper;
+	}
+
+	/**
+	 * Method to open an additional physical connection to the same database,
+	 * for background work that must not share the interactive connection's
+	 * transactions. The caller is responsible for closing it.
+	 *
+	 * @return a new database connection
+	 * @throws java.sql.SQLException when the connection cannot be made
+	 */
+	public Connection openConnection() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	/**
+	 * Method to open a logical replication connection to the same database,
+	 * which only accepts replication commands. The caller is responsible for
+	 * closing it.
+	 *
+	 * @return a new replication connection
+	 * @throws java.sql.SQLException when the connection cannot be made
+	 */
+	public Connection openReplicationConnection() throws SQLException {
+		Properties props = new Properties();
+		PGProperty.USER.set(props, this._user);
+		PGProperty.PASSWORD.set(props, this._passwd);
+		PGProperty.REPLICATION.set(props, "database");
+		PGProperty.ASSUME_MIN_SERVER_VERSION.set(props, "9.4");
+		PGProperty.PREFER_QUERY_MODE.set(props, "simple");
+		return DriverManager.getConnection(this._url, props);
+	}
+
+	/**
+	 * Method to access the storage backend used by the menu operations.
+	 *
+	 * @return the current FlightStore
+	 */
+	public FlightStore getStore(){
+		if (this._warmup != null){
+			// writes must not go out before the seat maps and waitlists they update are loaded
+			this._warmup.await(Warmup.STORE, Warmup.JOURNAL, Warmup.SEATS, Warmup.WAITLIST);
+		}
+		return this._store;
+	}
+
+	/**
+	 * Method to replace the storage backend used by the menu operations.
+	 *
+	 * @param store the new FlightStore
+	 */
+	public void setStore(FlightStore store){
+		this._store = store;
+	}
+
+	/**
+	 * Method to access the seat maps used for seat assignment.
+	 *
+	 * @return the seat maps, or null if seats are not being assigned
+	 */
+	public SeatMaps getSeatMaps(){
+		if (this._warmup != null){
+			this._warmup.await(Warmup.SEATS);
+		}
+		return this._seats;
+	}
+
+	public void setSeatMaps(SeatMaps seats){
+		this._seats = seats;
+	}
+
+	/**
+	 * Method to access the waitlist promotion engine.
+	 *
+	 * @return the promoter, or null if waitlists are not being tracked
+	 */
+	public WaitlistPromoter getWaitlist(){
+		if (this._warmup != null){
+			this._warmup.await(Warmup.WAITLIST);
+		}
+		return this._waitlist;
+	}
+
+	public void setWaitlist(WaitlistPromoter waitlist){
+		this._waitlist = waitlist;
+	}
+
+	/**
+	 * Method to access the name search index.
+	 *
+	 * @return the index, or null if it was not loaded
+	 */
+	public NameIndex getNames(){
+		if (this._warmup != null){
+			this._warmup.await(Warmup.NAMES);
+		}
+		return this._names;
+	}
+
+	public void setNames(NameIndex names){
+		this._names = names;
+	}
+
+	/**
+	 * Method to access the entity cache.
+	 *
+	 * @return the cache, or null if lookups go to the store
+	 */
+	public EntityCache getCache(){
+		return this._cache;
+	}
+
+	public void setCache(EntityCache cache){
+		this._cache = cache;
+	}
+
+	/**
+	 * Method to access the change stream.
+	 *
+	 * @return the change stream
+	 */
+	public ChangeStream getChanges(){
+		return this._changes;
+	}
+
+	public void setChanges(ChangeStream changes){
+		this._changes = changes;
+	}
+
+	/**
+	 * Method to set the startup steps the getters wait for.
+	 *
+	 * @param warmup the steps, or null once there is nothing to wait for
+	 */
+	public void setWarmup(Warmup warmup){
+		this._warmup = warmup;
+	}
+
+	/**
+	 * Method to access the num_sold reconciler.
+	 *
+	 * @return the reconciler
+	 */
+	public NumSoldReconciler getReconciler(){
+		return this._reconciler;
+	}
+
+	public void setReconciler(NumSoldReconciler reconciler){
+		this._reconciler = reconciler;
+	}
+
+	/**
+	 * Method to access the admission controller that statements run through.
+	 *
+	 * @return the admission controller
+	 */
+	public AdmissionController getAdmission(){
+		return this._admission;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to stop the background work and close the physical connection
+	 * if it is open. A step that fails is reported and the others still run.
 	 */
 	public void cleanup(){
+		if (this._warmup != null){
+			this._warmup.shutdown();
+		}
+		try{
+			if (this._changes != null){
+				this._changes.close();
+			}
+		}catch (RuntimeException e){
+			System.err.println("Error stopping the change stream: " + e.getMessage());
+		}
+		try{
+			if (this._reconciler != null){
+				this._reconciler.stop();
+			}
+		}catch (RuntimeException e){
+			System.err.println("Error stopping the reconciler: " + e.getMessage());
+		}
+		try{
+			if (this._waitlist != null){
+				this._waitlist.shutdown();
+			}
+		}catch (RuntimeException e){
+			System.err.println("Error stopping the waitlist promoter: " + e.getMessage());
+		}
+		try{
+			if (this._store instanceof WriteBehindFlightStore){
+				((WriteBehindFlightStore) this._store).close(5000);
+			}
+		}catch (RuntimeException e){
+			System.err.println("Error flushing the write-behind journal: " + e.getMessage());
+		}
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
+			this._keeper.close ();
 		}catch (SQLException e){
-	         // ignored.
+			System.err.println("Error closing the connection: " + e.getMessage());
 		}//end try
 	}//end cleanup
 
@@ -241,10 +543,127 @@ public class DBproject{
 			String dbport = args[1];
 			String user = args[2];
 
-			esql = new DBproject (dbname, dbport, user, "");
+			// fast start shows the menu right away and loads everything in the background
+			boolean fast = Boolean.getBoolean("dbproject.faststart");
+			final DBproject db = new DBproject (dbname, dbport, user, "", fast);
+			esql = db;
+			final Warmup warmup = new Warmup(db, fast);
+			db.setWarmup(warmup);
+			final boolean memory = "memory".equals(System.getProperty("dbproject.store"));
+
+			if (fast) {
+				warmup.run(Warmup.CONNECT, "Connecting to database", false, new Warmup.Task() {
+					public String run(Connection conn) throws SQLException {
+						db.connect();
+						if (!memory) {
+							// the hot lookups are server prepared from their first use on
+							db.getConnection().unwrap(PGConnection.class).setPrepareThreshold(1);
+						}
+						return "Done";
+					}
+				});
+			}
+
+			if (memory) {
+				warmup.run(Warmup.STORE, "Loading in-memory store", true, new Warmup.Task() {
+					public String run(Connection conn) throws SQLException {
+						InMemoryFlightStore store = new InMemoryFlightStore();
+						store.loadFrom(db.getAdmission(), conn);
+						db.setStore(store);
+						return "Done";
+					}
+				});
+			}
+
+			final String journal = System.getProperty("dbproject.writebehind");
+			if (journal != null) {
+				warmup.run(Warmup.JOURNAL, "Opening write-behind journal " + journal, false, new Warmup.Task() {
+					public String run(Connection conn) throws IOException {
+						warmup.await(Warmup.STORE);
+						WriteBehindFlightStore store = new WriteBehindFlightStore(db, db._store, new File(journal), 8 << 20);
+						db.setStore(store);
+						return "Done (" + store.getPendingBytes() + " bytes to replay)";
+					}
+				});
+			}
+
+			// seats are recorded in ReservationSeat, so only track them when bookings go to Postgres
+			if (!memory) {
+				warmup.run(Warmup.SEATS, "Loading seat maps", true, new Warmup.Task() {
+					public String run(Connection conn) {
+						try {
+							SeatMaps seats = new SeatMaps(db.getAdmission(), db.getKeeper());
+							int flights = seats.load(conn);
+							db.setSeatMaps(seats);
+							return "Done (" + flights + " flights)";
+						}catch (SQLException e) {
+							return "seat assignment disabled: " + e.getMessage();
+						}
+					}
+				});
+
+				warmup.run(Warmup.WAITLIST, "Loading waitlists", true, new Warmup.Task() {
+					public String run(Connection conn) throws SQLException {
+						WaitlistPromoter waitlist = new WaitlistPromoter(db);
+						int waiting = waitlist.load(conn);
+						db.setWaitlist(waitlist);
+						return "Done (" + waiting + " waitlisted)";
+					}
+				});
+
+				// the in-memory store answers these lookups itself
+				db.setCache(new EntityCache(db, Integer.getInteger("dbproject.cache.size", 10000)));
+				if (fast) {
+					warmup.run(Warmup.CACHE, "Warming entity cache", true, new Warmup.Task() {
+						public String run(Connection conn) throws SQLException {
+							return "Done (" + db.getCache().warm(conn) + " entities)";
+						}
+					});
+				}
+			}
+
+			if (fast && !memory) {
+				warmup.run(Warmup.PREPARE, "Running the hot lookups once", true, new Warmup.Task() {
+					public String run(Connection conn) throws SQLException {
+						return Warmup.prepare(conn);
+					}
+				});
+			}
+
+			db.setReconciler(new NumSoldReconciler(db));
+			db.setChanges(new ChangeStream(db, System.getProperty("dbproject.cdc.slot", "dbproject_cdc"),
+				new File(System.getProperty("dbproject.cdc.lsn", "cdc.lsn")),
+				new File(System.getProperty("dbproject.cdc.deadletter", "cdc-dead.log"))));
+			String interval = System.getProperty("dbproject.reconcile.interval");
+			if (interval != null) {
+				db.getReconciler().start(Long.parseLong(interval));
+				System.out.println("Reconciling num_sold every " + interval + " s in the background");
+			}
+
+			warmup.run(Warmup.NAMES, "Indexing names", true, new Warmup.Task() {
+				public String run(Connection conn) {
+					try {
+						NameIndex names = new NameIndex();
+						long start = System.nanoTime();
+						names.load(conn);
+						db.setNames(names);
+						return String.format("Done (%d names, %d words, %.0f ms)",
+							names.size(), names.vocabularySize(), (System.nanoTime() - start) / 1e6);
+					}catch (SQLException e) {
+						return "name search disabled: " + e.getMessage();
+					}
+				}
+			});
+
+			warmup.start();
+			db.getKeeper().start(Integer.getInteger("dbproject.keepalive", 10));
+			if (fast) {
+				System.out.println("Connecting and loading in the background\n");
+			}
 
 			boolean keepon = true;
 			while(keepon){
+				warmup.menuShown();
 				System.out.println("MAIN MENU");
 				System.out.println("---------");
 				System.out.println("1. Add Plane");
@@ -256,9 +675,18 @@ public class DBproject{
 				System.out.println("7. List total number of repairs per plane in descending order");
 				System.out.println("8. List total number of repairs per year in ascending order");
 				System.out.println("9. Find total number of passengers with a given status");
-				System.out.println("10. < EXIT");
-
-				switch (readChoice()){
+				System.out.println("10. Bulk book flights");
+				System.out.println("11. Export query results to a file");
+				System.out.println("12. Promote waitlisted passengers for a given flight");
+				System.out.println("13. Archive partitions older than a given date");
+				System.out.println("14. Search customers, pilots and technicians by name");
+				System.out.println("15. Reconcile seats sold with reservations");
+				System.out.println("16. Stream reservation, flight and repair changes");
+				System.out.println("17. < EXIT");
+
+				int choice = readChoice();
+				db.getKeeper().setBusy(true);
+				switch (choice){
 					case 1: AddPlane(esql); break;
 					case 2: AddPilot(esql); break;
 					case 3: AddFlight(esql); break;
@@ -268,7 +696,19 @@ public class DBproject{
 					case 7: ListsTotalNumberOfRepairsPerPlane(esql); break;
 					case 8: ListTotalNumberOfRepairsPerYear(esql); break;
 					case 9: FindPassengersCountWithStatus(esql); break;
-					case 10: keepon = false; break;
+					case 10: BulkBookFlights(esql); break;
+					case 11: ExportQuery(esql); break;
+					case 12: PromoteWaitlist(esql); break;
+					case 13: ArchivePartitions(esql); break;
+					case 14: SearchByName(esql); break;
+					case 15: ReconcileSeatsSold(esql); break;
+					case 16: StreamChanges(esql); break;
+					case 17: keepon = false; break;
+				}
+				db.getKeeper().setBusy(false);
+				String ready = warmup.responded();
+				if (ready != null && keepon) {
+					System.out.println(ready + "\n");
 				}
 			}
 		}catch(Exception e){
@@ -281,7 +721,7 @@ public class DBproject{
 					System.out.println("Done\n\nBye !");
 				}//end if
 			}catch(Exception e){
-				// ignored.
+				System.err.println("Error disconnecting: " + e.getMessage());
 			}
 		}
 	}
@@ -316,13 +756,21 @@ public class DBproject{
 			System.out.print("Input Plane_ID: ");
 			try{
 				Plane_ID = Integer.parseInt(in.readLine());
-				break;
 			}
 			catch (Exception e)
 			{
 				System.out.println("Invalid Plane ID!");
 				continue;
 			}
+			try {
+				if (esql.getCache() != null && esql.getCache().plane(Plane_ID) != null) {
+					System.out.println("Plane ID already exists!");
+					continue;
+				}
+			}catch (SQLException e) {
+				System.err.println(e.getMessage());
+			}
+			break;
 		}while(true);
 
 		do
@@ -413,8 +861,10 @@ public class DBproject{
 		// attempt query
 		try
 		{
-			String sql_query = "INSERT INTO Plane (id, make, model, age, seats) VALUES (" + Plane_ID + ", \'" + Plane_Make + "\', \'" + Plane_Model + "\', " + Plane_Age + ", " + num_seats + ");";
-			esql.executeUpdate(sql_query);
+			esql.getStore().addPlane(Plane_ID, Plane_Make, Plane_Model, Plane_Age, num_seats);
+			if (esql.getCache() != null) {
+				esql.getCache().inserted(new EntityCache.Plane(Plane_ID, Plane_Make, Plane_Model, num_seats));
+			}
 			System.out.println("Successfully added Plane.\n");
 		}
 		catch (Exception e)
@@ -435,13 +885,21 @@ public class DBproject{
 			try
 			{
 				Pilot_ID = Integer.parseInt(in.readLine());
-				break;
 			}
 			catch (Exception e)
 			{
 				System.out.println("Invalid Input!");
 				continue;
 			}
+			try {
+				if (esql.getCache() != null && esql.getCache().pilot(Pilot_ID) != null) {
+					System.out.println("Pilot ID already exists!");
+					continue;
+				}
+			}catch (SQLException e) {
+				System.err.println(e.getMessage());
+			}
+			break;
 		}while(true);
 
 		do
@@ -484,8 +942,13 @@ public class DBproject{
 		//attempt query
 		try
 		{
-			String sql_query = "INSERT INTO Pilot (id, fullname, nationality) VALUES (" + Pilot_ID + ", \'" + Pilot_Name + "\', \'" + Pilot_Nationality + "\');";
-			esql.executeUpdate(sql_query);
+			esql.getStore().addPilot(Pilot_ID, Pilot_Name, Pilot_Nationality);
+			if (esql.getNames() != null) {
+				esql.getNames().add(NameIndex.Kind.PILOT, Pilot_ID, Pilot_Name);
+			}
+			if (esql.getCache() != null) {
+				esql.getCache().inserted(new EntityCache.Pilot(Pilot_ID, Pilot_Name, Pilot_Nationality));
+			}
 			System.out.println("Successfully added Pilot.\n");
 		}
 		catch (Exception e)
@@ -511,13 +974,21 @@ public class DBproject{
 			try
 			{
 				flight_num = Integer.parseInt(in.readLine());
-				break;
 			}
 			catch (Exception e)
 			{
 				System.out.println("Invalid Input!");
 				continue;
 			}
+			try {
+				if (esql.getCache() != null && esql.getCache().flight(flight_num) != null) {
+					System.out.println("Flight number already exists!");
+					continue;
+				}
+			}catch (SQLException e) {
+				System.err.println(e.getMessage());
+			}
+			break;
 		}while (true);
 		//check for proper cost
 		do
@@ -669,8 +1140,11 @@ public class DBproject{
 		// attempt queury
 		try
 		{
-			String sql_query = "INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES (" + flight_num + ", " + flight_cost + ", " + seats_sold + ", " + flight_stops + ", \'" + depart + "\', \'" + Flight_Arrival + "\', \'" + Flight_Destination + "\', \'" + Flight_Departure + "\');";
-			esql.executeUpdate(sql_query);
+			esql.getStore().addFlight(flight_num, flight_cost, seats_sold, flight_stops, depart, Flight_Arrival, Flight_Destination, Flight_Departure);
+			if (esql.getCache() != null) {
+				// the columns are dates
+				esql.getCache().inserted(new EntityCache.Flight(flight_num, flight_cost, depart.substring(0, 10), Flight_Arrival.substring(0, 10), Flight_Departure, Flight_Destination));
+			}
 			System.out.println("Successfully added Flight.\n");
 		}
 		catch (Exception e)
@@ -718,8 +1192,10 @@ public class DBproject{
 		//attempt queury
 		try
 		{
-			String query = "INSERT INTO Technician (id, full_name) VALUES (" + tech_ID + ", \'" + Tech_Name + "\');";
-			esql.executeUpdate(query);
+			esql.getStore().addTechnician(tech_ID, Tech_Name);
+			if (esql.getNames() != null) {
+				esql.getNames().add(NameIndex.Kind.TECHNICIAN, tech_ID, Tech_Name);
+			}
 			System.out.println("Successfully added Technician.\n");
 		}
 		catch (Exception e)
@@ -728,6 +1204,43 @@ public class DBproject{
 		}
 	}
 
+	/**
+	 * Method to check that a customer exists before asking for the rest of
+	 * a booking. Without a cache, or when the lookup fails, the customer is
+	 * assumed to exist and the foreign key has the final say.
+	 *
+	 * @return false only if the customer is known not to exist
+	 */
+	static boolean CustomerExists(DBproject esql, int id) {
+		if (esql.getCache() == null) {
+			return true;
+		}
+		try {
+			return esql.getCache().customer(id) != null;
+		}catch (SQLException e) {
+			System.err.println(e.getMessage());
+			return true;
+		}
+	}
+
+	/**
+	 * Method to check that a flight exists, through the entity cache when
+	 * there is one. When the lookup fails the flight is assumed to exist.
+	 *
+	 * @return false only if the flight is known not to exist
+	 */
+	static boolean FlightExists(DBproject esql, int fnum) {
+		try {
+			if (esql.getCache() != null) {
+				return esql.getCache().flight(fnum) != null;
+			}
+			return esql.getStore().flightExists(fnum);
+		}catch (SQLException e) {
+			System.err.println(e.getMessage());
+			return true;
+		}
+	}
+
 	public static void BookFlight(DBproject esql) {//5
 		// Given a customer and a flight that he/she wants to book, add a reservation to the DB
 		int cust_ID;
@@ -739,13 +1252,17 @@ public class DBproject{
 			try
 			{
 				cust_ID = Integer.parseInt(in.readLine());
-				break;
 			}
 			catch (Exception e)
 			{
 				System.out.println("Invalid Input");
 				continue;
 			}
+			if (!CustomerExists(esql, cust_ID)) {
+				System.out.println("Customer does not exist!");
+				continue;
+			}
+			break;
 		}while(true);
 
 		do
@@ -754,20 +1271,24 @@ public class DBproject{
 			try
 			{
 				flight_num = Integer.parseInt(in.readLine());
-				break;
 			}
 			catch (Exception e)
 			{
 				System.out.println("Invalid Input!");
 				continue;
 			}
+			if (!FlightExists(esql, flight_num)) {
+				System.out.println("Flight number does not exist!");
+				continue;
+			}
+			break;
 		}while(true);
 		//the following query is used to check whether a customer made a reservation for a flight, else we will book one
 		try {
-			String sql_query = "SELECT status\nFROM Reservation\nWHERE cid = " + cust_ID + " AND fid = " + flight_num + ";";
+			String current_status = esql.getStore().findReservationStatus(cust_ID, flight_num);
 			String reserve_input;
 		// if the query returns no matching results, we will ask to book a flight
-			if(esql.executeQueryAndPrintResult(sql_query) == 0) {
+			if(current_status == null) {
 				do {
 					System.out.println("Book a reservation? (Yes/No): ");
 					try {
@@ -812,10 +1333,20 @@ public class DBproject{
 
 							try
 							{
+								if(reserve_status.equals("R") && esql.getSeatMaps() != null)
+								{
+									// the reservation and its seat are recorded together
+									int seat = BookWithSeat(esql, reserve_num, cust_ID, flight_num);
+									System.out.println("Successfully booked reservation, seat " + seat + ".\n");
+									break;
+								}
 								//update the table with new flight reservation
-								sql_query = "INSERT INTO Reservation (rnum, cid, fid, status) VALUES (" + reserve_num + ", " + cust_ID + ", " + flight_num + ", \'" + reserve_status + "\');";
-								esql.executeUpdate(sql_query);
+								esql.getStore().addReservation(reserve_num, cust_ID, flight_num, reserve_status);
 								System.out.println("Successfully booked reservation.\n");
+								if(reserve_status.equals("W") && esql.getWaitlist() != null)
+								{
+									esql.getWaitlist().waitlisted(flight_num, reserve_num);
+								}
 								break;
 							}
 							catch (Exception e)
@@ -842,6 +1373,7 @@ public class DBproject{
 			}
 			else
 			{
+				System.out.println("status\n" + current_status);
 				//if the reservation exists we can update the reservation content
 				do
 				{
@@ -873,9 +1405,29 @@ public class DBproject{
 
 							try
 							{
-								sql_query = "UPDATE Reservation SET status = \'" + Status_Update + "\' WHERE cid = " + cust_ID + " AND fid = " + flight_num + ";";
-								esql.executeUpdate(sql_query);
+								esql.getStore().updateReservationStatus(cust_ID, flight_num, Status_Update);
 								System.out.println("Successfully updated reservation.");
+								if(esql.getWaitlist() != null && current_status.equals("R") && !Status_Update.equals("R"))
+								{
+									// num_sold already gave the seat back; it goes to the next waitlisted passenger
+									esql.getWaitlist().seatsFreed(flight_num, 1);
+								}
+								if(esql.getWaitlist() != null && Status_Update.equals("W") && !current_status.equals("W"))
+								{
+									esql.getWaitlist().waitlisted(esql.getConnection(), cust_ID, flight_num);
+								}
+								if(esql.getSeatMaps() != null && Status_Update.equals("C"))
+								{
+									int freed = esql.getSeatMaps().release(esql.getConnection(), cust_ID, flight_num);
+									if(freed > 0)
+									{
+										System.out.println("Released " + freed + " seat(s).");
+									}
+								}
+								else if(esql.getSeatMaps() != null && Status_Update.equals("R") && esql.getSeatMaps().seatOf(esql.getConnection(), cust_ID, flight_num) == 0)
+								{
+									ChooseSeat(esql, -1, cust_ID, flight_num);
+								}
 								break;
 							}
 							catch (Exception e)
@@ -903,6 +1455,80 @@ public class DBproject{
 		}
 	}
 
+	public static int BookWithSeat(DBproject esql, int reserve_num, int cust_ID, int flight_num) throws SQLException {
+		// Book a reserved reservation and its seat in one transaction, asking again while the seat is taken
+		do
+		{
+			int seat;
+			System.out.print("Input Seat Number (blank for next free seat): ");
+			try
+			{
+				String input = in.readLine().trim();
+				seat = input.isEmpty() ? 0 : Integer.parseInt(input);
+			}
+			catch (Exception e)
+			{
+				System.out.println("Invalid Input!");
+				continue;
+			}
+			try
+			{
+				return esql.getSeatMaps().reserve(esql.getConnection(), esql.getStore(), reserve_num, cust_ID, flight_num, seat);
+			}
+			catch (SQLException e)
+			{
+				// a taken seat can be retried, anything else books nothing
+				if(e.getMessage() == null || !e.getMessage().contains("already taken"))
+				{
+					throw e;
+				}
+				System.out.println(e.getMessage());
+			}
+		}while (true);
+	}
+
+	public static void ChooseSeat(DBproject esql, int reserve_num, int cust_ID, int flight_num) {
+		// Give a reserved booking a seat, either the one asked for or the next free one
+		if(esql.getSeatMaps() == null)
+		{
+			return;
+		}
+		do
+		{
+			System.out.print("Input Seat Number (blank for next free seat): ");
+			try
+			{
+				String input = in.readLine().trim();
+				int seat = input.isEmpty() ? 0 : Integer.parseInt(input);
+				int assigned = reserve_num >= 0
+					? esql.getSeatMaps().assign(esql.getConnection(), reserve_num, flight_num, seat)
+					: esql.getSeatMaps().assignFor(esql.getConnection(), cust_ID, flight_num, seat);
+				System.out.println("Assigned seat " + assigned + ".\n");
+				break;
+			}
+			catch (NumberFormatException e)
+			{
+				System.out.println("Invalid Input!");
+				continue;
+			}
+			catch (SQLException e)
+			{
+				System.out.println(e.getMessage());
+				// a taken seat can be retried, anything else leaves the booking without a seat
+				if(e.getMessage() == null || !e.getMessage().contains("already taken"))
+				{
+					break;
+				}
+				continue;
+			}
+			catch (Exception e)
+			{
+				System.out.println(e);
+				break;
+			}
+		}while (true);
+	}
+
 	public static void ListNumberOfAvailableSeats(DBproject esql) {//6
 		// For flight number and date, find the number of availalbe seats (i.e. total plane capacity minus booked seats )
 		int number;
@@ -933,11 +1559,14 @@ public class DBproject{
 		}while (true);
 
 		try {
-			String query = "SELECT capacity - booked as \"Available Seats\" FROM (SELECT P.seats as capacity FROM Plane P, FlightInfo I WHERE I.flight_id = " + number + " AND I.plane_id = P.id) AS CAP, (SELECT F.num_sold as booked FROM Flight F WHERE F.fnum = " + number + " AND F.actual_departure_date = \'" + departure_date + "\') AS BOOK;";
-			
-			if(esql.executeQueryAndPrintResult(query) == 0) {
+			Integer available = esql.getStore().availableSeats(number, departure_date);
+
+			if(available == null) {
 				System.out.println("Flight info does not exist.\n");
 			}
+			else {
+				System.out.println("Available Seats\n" + available);
+			}
 		}catch (Exception e) {
 			System.err.println (e.getMessage());
 		}
@@ -945,11 +1574,51 @@ public class DBproject{
 		System.out.println("\n");
 	}
 
-	public static void ListsTotalNumberOfRepairsPerPlane(DBproject esql) {//7
+	/**
+	 * Method to run a long operation on the worker thread while the menu
+	 * waits for it. Pressing Enter in the meantime cancels every statement
+	 * admitted through the admission controller.
+	 *
+	 * @param esql the database connection wrapper
+	 * @param task the operation to run
+	 * @return the task's result
+	 * @throws java.lang.Exception whatever the task threw, e.g. the
+	 *         SQLException of a cancelled or timed out statement
+	 */
+	public static <T> T RunCancellable(DBproject esql, Callable<T> task) throws Exception {
+		Future<T> result = worker.submit(task);
+		System.out.println("(press Enter to cancel)");
+		boolean cancelled = false;
+		do {
+			try {
+				return result.get(100, TimeUnit.MILLISECONDS);
+			}catch (TimeoutException e) {
+				if (!cancelled && in.ready()) {
+					in.readLine();
+					cancelled = true;
+					System.out.println("Cancelling " + esql.getAdmission().cancelAll() + " running statement(s)...");
+				}
+			}catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}while (true);
+	}
+
+	public static void ListsTotalNumberOfRepairsPerPlane(final DBproject esql) {//7
 		// Count number of repairs per planes and list them in descending order
 		try {
-			String query = "SELECT P.id, count(R.rid) FROM Plane P, Repairs R WHERE P.id = R.plane_id GROUP BY P.id ORDER BY count DESC;";
-			esql.executeQueryAndPrintResult(query);
+			List<int[]> repairs = RunCancellable(esql, new Callable<List<int[]>>() {
+				public List<int[]> call() throws Exception {
+					return esql.getStore().repairsPerPlane();
+				}
+			});
+			System.out.println("id\tcount");
+			for (int[] row : repairs) {
+				System.out.println(row[0] + "\t" + row[1]);
+			}
 		}catch (Exception e) {
 			System.err.println (e.getMessage());
 		}
@@ -957,11 +1626,18 @@ public class DBproject{
 		System.out.println("\n");
 	}
 
-	public static void ListTotalNumberOfRepairsPerYear(DBproject esql) {//8
+	public static void ListTotalNumberOfRepairsPerYear(final DBproject esql) {//8
 		// Count repairs per year and list them in ascending order
 		try {
-			String query = "SELECT EXTRACT (year FROM R.repair_date) as \"Year\", count(R.rid) FROM repairs R GROUP BY \"Year\" ORDER BY count ASC;";
-			esql.executeQueryAndPrintResult(query);
+			List<int[]> repairs = RunCancellable(esql, new Callable<List<int[]>>() {
+				public List<int[]> call() throws Exception {
+					return esql.getStore().repairsPerYear();
+				}
+			});
+			System.out.println("Year\tcount");
+			for (int[] row : repairs) {
+				System.out.println(row[0] + "\t" + row[1]);
+			}
 		}catch (Exception e) {
 			System.err.println (e.getMessage());
 		}
@@ -969,7 +1645,7 @@ public class DBproject{
 		System.out.println("\n");
 	}
 	
-	public static void FindPassengersCountWithStatus(DBproject esql) {//9
+	public static void FindPassengersCountWithStatus(final DBproject esql) {//9
 		// Find how many passengers there are with a status (i.e. W,C,R) and list that number.
 		int number;
 		String status;
@@ -978,9 +1654,7 @@ public class DBproject{
 			try {
 				System.out.print("Enter Flight Number: ");
 				number = Integer.parseInt(in.readLine());
-				String check_flight = "SELECT fnum FROM Flight WHERE fnum = " + number + ";";
-
-				if (esql.executeQuery(check_flight) == 0){
+				if (!FlightExists(esql, number)){
 					System.out.println("Flight number does not exist!\n");
 					continue;
 				}
@@ -1005,10 +1679,388 @@ public class DBproject{
 			}
 		}while (true);
 
+		final int fid = number;
+		final String wanted = status;
+		try {
+			int count = RunCancellable(esql, new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return esql.getStore().passengerCount(fid, wanted);
+				}
+			});
+			System.out.println("count\n" + count);
+		}catch (Exception e) {
+			System.err.println (e.getMessage());
+		}
+
+		System.out.println("\n");
+	}
+
+	public static void BulkBookFlights(DBproject esql) {//10
+		// Book a group of customers at once: every line is one (customer, flight, status) tuple
+		List<BulkBooking.Booking> bookings = new ArrayList<BulkBooking.Booking>();
+		String line;
+
+		System.out.println("Input one booking per line as <Customer ID>,<Flight Number>,<Status (W / R / C)>.");
+		System.out.println("Enter an empty line when done.");
+		do {
+			System.out.print("Booking " + (bookings.size() + 1) + ": ");
+			try {
+				line = in.readLine();
+				if (line == null || line.trim().isEmpty()) {
+					break;
+				}
+				String[] fields = line.split(",");
+				if (fields.length != 3) {
+					throw new RuntimeException("Expected <Customer ID>,<Flight Number>,<Status>");
+				}
+				bookings.add(new BulkBooking.Booking(Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()), fields[2].trim()));
+			}catch (NumberFormatException e) {
+				System.out.println("Invalid Input!");
+				continue;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		if (bookings.isEmpty()) {
+			System.out.println("Nothing to book.\n");
+			return;
+		}
+
+		try {
+			int booked = BulkBooking.book(esql, bookings);
+			for (BulkBooking.Booking b : bookings) {
+				System.out.println((b.isBooked() ? "OK    " : "FAIL  ") + b);
+			}
+			System.out.println("Booked " + booked + " of " + bookings.size() + " reservations.");
+		}catch (Exception e) {
+			System.err.println (e.getMessage());
+		}
+
+		System.out.println("\n");
+	}
+
+	public static void ExportQuery(final DBproject esql) {//11
+		// Stream the result of a SELECT into a CSV or binary file without loading it into memory
+		String query;
+		String path;
+		boolean binary;
+		boolean gzip;
+
+		do {
+			System.out.print("Input SELECT query: ");
+			try {
+				query = in.readLine();
+				QueryExport.checkSelect(query);
+				break;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		do {
+			System.out.print("Input output file: ");
+			try {
+				path = in.readLine().trim();
+				if (path.length() <= 0) {
+					throw new RuntimeException("Output file cannot be empty");
+				}
+				break;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		do {
+			System.out.print("Input format (csv / binary): ");
+			try {
+				String format = in.readLine().trim();
+				if (!format.equals("csv") && !format.equals("binary")) {
+					throw new RuntimeException("Valid inputs are ( csv / binary )");
+				}
+				binary = format.equals("binary");
+				break;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		do {
+			System.out.print("Compress with gzip? (Yes/No): ");
+			try {
+				String answer = in.readLine();
+				if (!answer.equals("Yes") && !answer.equals("No")) {
+					throw new RuntimeException("Valid inputs are ( Yes / No )");
+				}
+				gzip = answer.equals("Yes");
+				break;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		final String select = query;
+		final File target = new File(path);
+		final boolean asBinary = binary;
+		final boolean compress = gzip;
+		try {
+			QueryExport stats = RunCancellable(esql, new Callable<QueryExport>() {
+				public QueryExport call() throws Exception {
+					return QueryExport.export(esql, select, target, asBinary, compress);
+				}
+			});
+			System.out.println(String.format("Exported %d rows (%.2f MB) to %s in %.2f s, %.2f MB/s",
+				stats.getRows(), stats.getBytes() / (1024.0 * 1024.0), path, stats.getSeconds(), stats.getMegabytesPerSecond()));
+		}catch (Exception e) {
+			System.err.println (e.getMessage());
+		}
+
+		System.out.println("\n");
+	}
+
+	public static void PromoteWaitlist(DBproject esql) {//12
+		// Fill any free seats on a flight (e.g. after adding capacity) from its waitlist, first come first served
+		int number;
+
+		if (esql.getWaitlist() == null) {
+			System.out.println("Waitlists are not being tracked.\n");
+			return;
+		}
+
+		do {
+			try {
+				System.out.print("Enter Flight Number: ");
+				number = Integer.parseInt(in.readLine());
+				break;
+			}catch (Exception e) {
+				System.out.println("ERROR: Input is not a valid flight #.\n");
+				continue;
+			}
+		}while (true);
+
+		try {
+			Integer free = esql.getWaitlist().freeSeats(number);
+			if (free == null) {
+				System.out.println("Flight info does not exist.\n");
+				return;
+			}
+			if (free <= 0) {
+				System.out.println("Flight is full, nobody promoted.\n");
+				return;
+			}
+			int promoted = esql.getWaitlist().promoteNow(number, free);
+			System.out.println("Promoted " + promoted + " waitlisted passenger(s) to reserved (" + free + " seats were free).");
+		}catch (Exception e) {
+			System.err.println (e.getMessage());
+		}
+
+		System.out.println("\n");
+	}
+
+	public static void ArchivePartitions(DBproject esql) {//13
+		// Move old months of Flight/Reservation and old years of Repairs out of the hot tables (partitioned schema only)
+		LocalDate cutoff;
+		String mode;
+		File exportDir = null;
+
+		do {
+			System.out.print("Archive partitions ending on or before (YYYY-MM-DD): ");
+			try {
+				cutoff = LocalDate.parse(in.readLine().trim());
+				break;
+			}catch (Exception e) {
+				System.out.println("ERROR: Input format is invalid.\n");
+				continue;
+			}
+		}while (true);
+
+		do {
+			System.out.print("Detach into archive schema or export to files? (detach / export): ");
+			try {
+				mode = in.readLine().trim();
+				if (!mode.equals("detach") && !mode.equals("export")) {
+					throw new RuntimeException("Valid inputs are ( detach / export )");
+				}
+				break;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		if (mode.equals("export")) {
+			do {
+				System.out.print("Input export directory: ");
+				try {
+					exportDir = new File(in.readLine().trim());
+					if (!exportDir.isDirectory() && !exportDir.mkdirs()) {
+						throw new RuntimeException("Cannot create directory " + exportDir);
+					}
+					break;
+				}catch (Exception e) {
+					System.out.println(e);
+					continue;
+				}
+			}while (true);
+		}
+
 		try {
-			String query = "SELECT COUNT(*) FROM Reservation WHERE fid = " + number + " AND status = \'" + status + "\';";
-			
-			esql.executeQueryAndPrintResult(query);
+			List<String> report = PartitionArchiver.archive(esql, cutoff, exportDir);
+			if (report.isEmpty()) {
+				System.out.println("No partitions end on or before " + cutoff + ".");
+			}
+			for (String line : report) {
+				System.out.println(line);
+			}
+		}catch (Exception e) {
+			System.err.println (e.getMessage());
+		}
+
+		System.out.println("\n");
+	}
+
+	public static void SearchByName(DBproject esql) {//14
+		// Find people by (part of) their name, best matches first; misspellings are tolerated
+		String query;
+
+		if (esql.getNames() == null) {
+			System.out.println("Name search is not available.\n");
+			return;
+		}
+
+		do {
+			System.out.print("Input name: ");
+			try {
+				query = in.readLine();
+				if (query.trim().length() <= 0) {
+					throw new RuntimeException("Name cannot be empty");
+				}
+				break;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		long start = System.nanoTime();
+		List<NameIndex.Match> matches = esql.getNames().search(query, 20);
+		long micros = (System.nanoTime() - start) / 1000;
+		if (matches.isEmpty()) {
+			System.out.println("No matches.");
+		}
+		for (NameIndex.Match m : matches) {
+			System.out.println(m);
+		}
+		System.out.println(matches.size() + " match(es) in " + micros + " us");
+
+		System.out.println("\n");
+	}
+
+	public static void ReconcileSeatsSold(DBproject esql) {//15
+		// Bring num_sold of the flights whose reservations changed back in line with their 'R' reservations
+		NumSoldReconciler reconciler = esql.getReconciler();
+		String action;
+
+		do {
+			System.out.print("Input action (run / all / start / stop / status): ");
+			try {
+				action = in.readLine().trim();
+				if (!action.equals("run") && !action.equals("all") && !action.equals("start") && !action.equals("stop") && !action.equals("status")) {
+					throw new RuntimeException("Valid inputs are ( run / all / start / stop / status )");
+				}
+				break;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		try {
+			if (action.equals("all")) {
+				System.out.println("Queued " + reconciler.queueAll() + " flights.");
+			}
+			if (action.equals("run") || action.equals("all")) {
+				System.out.println(reconciler.reconcile());
+			} else if (action.equals("start")) {
+				long seconds;
+				do {
+					System.out.print("Input interval in seconds: ");
+					try {
+						seconds = Long.parseLong(in.readLine());
+						if (seconds <= 0) {
+							throw new RuntimeException("Interval must be positive");
+						}
+						break;
+					}catch (NumberFormatException e) {
+						System.out.println("Invalid Input!");
+						continue;
+					}catch (Exception e) {
+						System.out.println(e);
+						continue;
+					}
+				}while (true);
+				reconciler.start(seconds);
+				System.out.println("Reconciling every " + seconds + " s in the background.");
+			} else if (action.equals("stop")) {
+				reconciler.stop();
+				System.out.println("Background reconciliation stopped.");
+			}
+			System.out.println("pending changes    " + reconciler.pending());
+			System.out.println(reconciler.metrics());
+		}catch (Exception e) {
+			System.err.println (e.getMessage());
+		}
+
+		System.out.println("\n");
+	}
+
+	public static void StreamChanges(DBproject esql) {//16
+		// Follow the changes committed to Reservation, Flight and Repairs through logical replication
+		ChangeStream changes = esql.getChanges();
+		String action;
+
+		do {
+			System.out.print("Input action (start / stop / watch / status): ");
+			try {
+				action = in.readLine().trim();
+				if (!action.equals("start") && !action.equals("stop") && !action.equals("watch") && !action.equals("status")) {
+					throw new RuntimeException("Valid inputs are ( start / stop / watch / status )");
+				}
+				break;
+			}catch (Exception e) {
+				System.out.println(e);
+				continue;
+			}
+		}while (true);
+
+		try {
+			if (action.equals("start") || action.equals("watch")) {
+				if (!changes.isSubscribed("log")) {
+					File log = new File(System.getProperty("dbproject.cdc.log", "cdc.log"));
+					changes.subscribe("log", ChangeStream.logTo(log));
+					System.out.println("Logging events to " + log);
+				}
+				changes.start();
+			}
+			if (action.equals("watch")) {
+				ChangeStream.Subscription console = changes.subscribe("console", new ChangeStream.Subscriber() {
+					public void onEvent(ChangeStream.Event event) {
+						System.out.println(event);
+					}
+				});
+				System.out.println("(press Enter to stop watching)");
+				in.readLine();
+				changes.unsubscribe(console);
+			} else if (action.equals("stop")) {
+				changes.stop(5000);
+				System.out.println("Change stream stopped.");
+			}
+			System.out.println(changes.status());
 		}catch (Exception e) {
 			System.err.println (e.getMessage());
 		}
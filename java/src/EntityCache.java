@@ -0,0 +1,345 @@
+/*
+ * Entity cache for DBproject
+ * =============================
+ *
+ * Read-through cache of the customers, flights, planes and pilots the menu
+ * checks before writing.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class answers "does this customer / flight / plane / pilot exist, and
+ * what are its core attributes" from memory, loading misses from the
+ * database on the interactive connection, retrying a load that was cut off
+ * by a reconnect (see ConnectionKeeper). Each kind of entity has its own
+ * bounded TinyLfuCache, so a run of flight lookups cannot evict the hot
+ * customers.
+ *
+ * Rows that do not exist are cached too, for NEGATIVE_MILLIS, after which
+ * they are looked up again in case another process inserted them. Inserts
+ * made through the menu replace the cached entry right away.
+ *
+ * Only attributes that never change after insert are cached; num_sold in
+ * particular is not.
+ *
+ */
+
+public class EntityCache {
+	static final long NEGATIVE_MILLIS = 30000;
+
+	// the lookups behind a miss, also run by Warmup.prepare
+	static final String LOOKUP_CUSTOMER = "SELECT fname, lname FROM Customer WHERE id = ?";
+	static final String LOOKUP_FLIGHT = "SELECT cost, actual_departure_date, actual_arrival_date, departure_airport, arrival_airport FROM Flight WHERE fnum = ?";
+	static final String LOOKUP_PLANE = "SELECT make, model, seats FROM Plane WHERE id = ?";
+	static final String LOOKUP_PILOT = "SELECT fullname, nationality FROM Pilot WHERE id = ?";
+
+	public static class Customer {
+		public final int id;
+		public final String fname;
+		public final String lname;
+
+		public Customer(int id, String fname, String lname) {
+			this.id = id;
+			this.fname = fname;
+			this.lname = lname;
+		}
+
+		public String toString() {
+			return fname + " " + lname;
+		}
+	}
+
+	public static class Flight {
+		public final int fnum;
+		public final int cost;
+		public final String departure;
+		public final String arrival;
+		public final String departureAirport;
+		public final String arrivalAirport;
+
+		public Flight(int fnum, int cost, String departure, String arrival, String departureAirport, String arrivalAirport) {
+			this.fnum = fnum;
+			this.cost = cost;
+			this.departure = departure;
+			this.arrival = arrival;
+			this.departureAirport = departureAirport;
+			this.arrivalAirport = arrivalAirport;
+		}
+
+		public String toString() {
+			return departureAirport + " " + departure + " -> " + arrivalAirport + " " + arrival;
+		}
+	}
+
+	public static class Plane {
+		public final int id;
+		public final String make;
+		public final String model;
+		public final int seats;
+
+		public Plane(int id, String make, String model, int seats) {
+			this.id = id;
+			this.make = make;
+			this.model = model;
+			this.seats = seats;
+		}
+	}
+
+	public static class Pilot {
+		public final int id;
+		public final String fullname;
+		public final String nationality;
+
+		public Pilot(int id, String fullname, String nationality) {
+			this.id = id;
+			this.fullname = fullname;
+			this.nationality = nationality;
+		}
+	}
+
+	private final DBproject esql;
+	private final int capacity;
+	private final TinyLfuCache<Customer> customers;
+	private final TinyLfuCache<Flight> flights;
+	private final TinyLfuCache<Plane> planes;
+	private final TinyLfuCache<Pilot> pilots;
+
+	/**
+	 * @param esql the database connection wrapper misses are loaded through
+	 * @param capacity the number of entities of each kind to keep
+	 */
+	public EntityCache(DBproject esql, int capacity) {
+		this.esql = esql;
+		this.capacity = capacity;
+		this.customers = new TinyLfuCache<Customer>(capacity, NEGATIVE_MILLIS);
+		this.flights = new TinyLfuCache<Flight>(capacity, NEGATIVE_MILLIS);
+		this.planes = new TinyLfuCache<Plane>(capacity, NEGATIVE_MILLIS);
+		this.pilots = new TinyLfuCache<Pilot>(capacity, NEGATIVE_MILLIS);
+	}
+
+	/**
+	 * Method to look up a customer.
+	 *
+	 * @param id the customer id
+	 * @return the customer, or null if there is none
+	 * @throws java.sql.SQLException when a miss cannot be loaded
+	 */
+	public Customer customer(final int id) throws SQLException {
+		TinyLfuCache.Lookup<Customer> hit = customers.get(id);
+		if (hit.cached) {
+			return hit.value;
+		}
+		Customer c = esql.getKeeper().call(new ConnectionKeeper.Call<Customer>() {
+			public Customer run() throws SQLException {
+				AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), LOOKUP_CUSTOMER);
+					stmt.setInt(1, id);
+					ResultSet rs = stmt.executeQuery();
+					return rs.next() ? new Customer(id, rs.getString(1).trim(), rs.getString(2).trim()) : null;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+		customers.put(id, c);
+		return c;
+	}
+
+	/**
+	 * Method to look up a flight.
+	 *
+	 * @param fnum the flight number
+	 * @return the flight, or null if there is none
+	 * @throws java.sql.SQLException when a miss cannot be loaded
+	 */
+	public Flight flight(final int fnum) throws SQLException {
+		TinyLfuCache.Lookup<Flight> hit = flights.get(fnum);
+		if (hit.cached) {
+			return hit.value;
+		}
+		Flight f = esql.getKeeper().call(new ConnectionKeeper.Call<Flight>() {
+			public Flight run() throws SQLException {
+				AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), LOOKUP_FLIGHT);
+					stmt.setInt(1, fnum);
+					ResultSet rs = stmt.executeQuery();
+					return rs.next() ? new Flight(fnum, rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4).trim(), rs.getString(5).trim()) : null;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+		flights.put(fnum, f);
+		return f;
+	}
+
+	/**
+	 * Method to look up a plane.
+	 *
+	 * @param id the plane id
+	 * @return the plane, or null if there is none
+	 * @throws java.sql.SQLException when a miss cannot be loaded
+	 */
+	public Plane plane(final int id) throws SQLException {
+		TinyLfuCache.Lookup<Plane> hit = planes.get(id);
+		if (hit.cached) {
+			return hit.value;
+		}
+		Plane p = esql.getKeeper().call(new ConnectionKeeper.Call<Plane>() {
+			public Plane run() throws SQLException {
+				AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), LOOKUP_PLANE);
+					stmt.setInt(1, id);
+					ResultSet rs = stmt.executeQuery();
+					return rs.next() ? new Plane(id, rs.getString(1).trim(), rs.getString(2).trim(), rs.getInt(3)) : null;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+		planes.put(id, p);
+		return p;
+	}
+
+	/**
+	 * Method to look up a pilot.
+	 *
+	 * @param id the pilot id
+	 * @return the pilot, or null if there is none
+	 * @throws java.sql.SQLException when a miss cannot be loaded
+	 */
+	public Pilot pilot(final int id) throws SQLException {
+		TinyLfuCache.Lookup<Pilot> hit = pilots.get(id);
+		if (hit.cached) {
+			return hit.value;
+		}
+		Pilot p = esql.getKeeper().call(new ConnectionKeeper.Call<Pilot>() {
+			public Pilot run() throws SQLException {
+				AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), LOOKUP_PILOT);
+					stmt.setInt(1, id);
+					ResultSet rs = stmt.executeQuery();
+					return rs.next() ? new Pilot(id, trim(rs.getString(1)), trim(rs.getString(2))) : null;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+		pilots.put(id, p);
+		return p;
+	}
+
+	/*
+	 * Called after a successful insert through the menu, replacing whatever
+	 * was cached for the key (typically a "not found").
+	 */
+
+	public void inserted(Flight f) {
+		flights.put(f.fnum, f);
+	}
+
+	public void inserted(Plane p) {
+		planes.put(p.id, p);
+	}
+
+	public void inserted(Pilot p) {
+		pilots.put(p.id, p);
+	}
+
+	public void inserted(Customer c) {
+		customers.put(c.id, c);
+	}
+
+	/*
+	 * Called when an insert acknowledged earlier was rejected by the
+	 * database after all, so the next lookup reads what is really there.
+	 */
+
+	public void dropPlane(int id) {
+		planes.invalidate(id);
+	}
+
+	public void dropPilot(int id) {
+		pilots.invalidate(id);
+	}
+
+	/*
+	 * Called when a flight was archived out of the Flight table.
+	 */
+
+	public void dropFlight(int fnum) {
+		flights.invalidate(fnum);
+	}
+
+	/**
+	 * Method to fill the cache ahead of the first lookups: the flights that
+	 * have not departed yet, the customers booked on them, and planes and
+	 * pilots, up to the capacity of each kind. It is admitted as one report.
+	 *
+	 * @param conn the connection to read from, typically not the interactive one
+	 * @return the number of entities loaded
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	public int warm(Connection conn) throws SQLException {
+		int n = 0;
+		AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.REPORT);
+		try {
+			PreparedStatement stmt = ticket.prepare(conn,
+				"SELECT fnum, cost, actual_departure_date, actual_arrival_date, departure_airport, arrival_airport FROM Flight " +
+				"WHERE actual_departure_date >= CURRENT_DATE ORDER BY actual_departure_date LIMIT ?");
+			stmt.setInt(1, capacity);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				flights.put(rs.getInt(1), new Flight(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getString(5).trim(), rs.getString(6).trim()));
+				n++;
+			}
+			stmt = ticket.prepare(conn,
+				"SELECT id, fname, lname FROM Customer WHERE id IN " +
+				"(SELECT R.cid FROM Reservation R, Flight F WHERE R.fid = F.fnum AND F.actual_departure_date >= CURRENT_DATE) LIMIT ?");
+			stmt.setInt(1, capacity);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				customers.put(rs.getInt(1), new Customer(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim()));
+				n++;
+			}
+			stmt = ticket.prepare(conn, "SELECT id, make, model, seats FROM Plane LIMIT ?");
+			stmt.setInt(1, capacity);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				planes.put(rs.getInt(1), new Plane(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getInt(4)));
+				n++;
+			}
+			stmt = ticket.prepare(conn, "SELECT id, fullname, nationality FROM Pilot LIMIT ?");
+			stmt.setInt(1, capacity);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				pilots.put(rs.getInt(1), new Pilot(rs.getInt(1), trim(rs.getString(2)), trim(rs.getString(3))));
+				n++;
+			}
+		}finally{
+			ticket.close();
+		}
+		return n;
+	}
+
+	/**
+	 * @return hit and eviction statistics for every kind of entity
+	 */
+	public String toString() {
+		return "customers: " + customers + "\nflights:   " + flights + "\nplanes:    " + planes + "\npilots:    " + pilots;
+	}
+
+	private static String trim(String s) {
+		return s == null ? null : s.trim();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Bounded event ring for DBproject
+ * =============================
+ *
+ * Fixed size ring buffer with one producer and a cursor per consumer, used
+ * by ChangeStream to fan events out to its subscribers.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class hands every published element to every cursor, in order. The
+ * ring holds capacity elements; the producer blocks while the slowest
+ * cursor is a full ring behind, so a slow consumer slows the producer down
+ * instead of growing a queue. A cursor added later starts at the next
+ * element published.
+ *
+ * Producer and consumers synchronize on the ring. Consumers take whatever
+ * is available in one go, so the monitor is taken once per batch rather
+ * than once per element on a busy ring.
+ *
+ */
+
+public class EventRing<E> {
+	private final Object[] slots;
+	private final List<Cursor> cursors = new ArrayList<Cursor>();
+	private long published = 0;		// sequence of the next element
+	private boolean closed = false;
+	private long blockedNanos = 0;
+
+	/**
+	 * A consumer's position in the ring.
+	 */
+	public class Cursor {
+		private long next;
+
+		Cursor(long next) {
+			this.next = next;
+		}
+
+		/**
+		 * Method to take the elements published since the last call,
+		 * waiting for at least one.
+		 *
+		 * @param into the list to add them to
+		 * @param max the most elements to take
+		 * @return false once the ring is closed and this cursor drained it
+		 * @throws java.lang.InterruptedException when interrupted while waiting
+		 */
+		public boolean take(List<E> into, int max) throws InterruptedException {
+			synchronized (EventRing.this) {
+				while (next == published && !closed) {
+					EventRing.this.wait();
+				}
+				if (next == published) {
+					return false;
+				}
+				long end = Math.min(published, next + max);
+				for (; next < end; next++) {
+					into.add(slot(next));
+				}
+				// the producer may be waiting for this cursor
+				EventRing.this.notifyAll();
+				return true;
+			}
+		}
+
+		/**
+		 * @return the number of elements published but not taken yet
+		 */
+		public long backlog() {
+			synchronized (EventRing.this) {
+				return published - next;
+			}
+		}
+	}
+
+	/**
+	 * @param capacity the number of elements the slowest cursor may fall behind
+	 */
+	public EventRing(int capacity) {
+		this.slots = new Object[capacity];
+	}
+
+	/**
+	 * Method to publish an element, waiting while the ring is full.
+	 *
+	 * @param e the element
+	 * @return false if the ring is closed, also while waiting; the element
+	 *         is not published then
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public synchronized boolean publish(E e) throws InterruptedException {
+		if (published - slowest() >= slots.length && !closed) {
+			long start = System.nanoTime();
+			while (published - slowest() >= slots.length && !closed) {
+				wait();
+			}
+			blockedNanos += System.nanoTime() - start;
+		}
+		if (closed) {
+			return false;
+		}
+		slots[(int) (published % slots.length)] = e;
+		published++;
+		notifyAll();
+		return true;
+	}
+
+	public synchronized Cursor subscribe() {
+		Cursor cursor = new Cursor(published);
+		cursors.add(cursor);
+		return cursor;
+	}
+
+	public synchronized void unsubscribe(Cursor cursor) {
+		cursors.remove(cursor);
+		notifyAll();
+	}
+
+	/**
+	 * Method to stop publishing. A producer waiting for room gives up, and
+	 * cursors still get what was published.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public synchronized long getPublished() {
+		return published;
+	}
+
+	/**
+	 * @return the time the producer spent waiting for room, in milliseconds
+	 */
+	public synchronized long getBlockedMillis() {
+		return blockedNanos / 1000000;
+	}
+
+	private long slowest() {
+		long min = published;
+		for (Cursor c : cursors) {
+			min = Math.min(min, c.next);
+		}
+		return min;
+	}
+
+	@SuppressWarnings("unchecked")
+	private E slot(long sequence) {
+		return (E) slots[(int) (sequence % slots.length)];
+	}
+}
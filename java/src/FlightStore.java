@@ -0,0 +1,75 @@
+/*
+ * Storage backend interface for DBproject
+ * =============================
+ *
+ * The nine menu operations, independent of where the data lives.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This interface defines the data operations behind the DBproject menu.
+ * PostgresFlightStore runs them against the database and InMemoryFlightStore
+ * keeps everything in local hash maps, so the application layer can be
+ * exercised without a database round trip.
+ *
+ * Both engines report failures (duplicate keys, missing foreign keys) as
+ * SQLExceptions so the menu handles them the same way.
+ *
+ */
+
+public interface FlightStore {
+
+	void addPlane(int id, String make, String model, int age, int seats) throws SQLException;//1
+
+	void addPilot(int id, String fullname, String nationality) throws SQLException;//2
+
+	/**
+	 * @param departure departure time as YYYY-MM-DD hh:mm
+	 * @param arrival arrival time as YYYY-MM-DD hh:mm
+	 */
+	void addFlight(int fnum, int cost, int numSold, int numStops, String departure, String arrival,
+		String arrivalAirport, String departureAirport) throws SQLException;//3
+
+	void addTechnician(int id, String fullName) throws SQLException;//4
+
+	/**
+	 * @return the status of the customer's reservation on the flight, or null if there is none
+	 */
+	String findReservationStatus(int cid, int fid) throws SQLException;//5
+
+	/**
+	 * A reservation with status 'R' adds a seat to the flight's num_sold.
+	 */
+	void addReservation(int rnum, int cid, int fid, String status) throws SQLException;//5
+
+	/**
+	 * A change to or from 'R' adds a seat to or takes one off the flight's
+	 * num_sold, together with the status.
+	 */
+	void updateReservationStatus(int cid, int fid, String status) throws SQLException;//5
+
+	/**
+	 * @param departure departure date, optionally followed by a time which is ignored
+	 * @return plane capacity minus seats sold, or null if the flight does not depart on
+	 *         that date or has no plane assigned
+	 */
+	Integer availableSeats(int fnum, String departure) throws SQLException;//6
+
+	/**
+	 * @return {plane id, repair count} pairs in descending order of count
+	 */
+	List<int[]> repairsPerPlane() throws SQLException;//7
+
+	/**
+	 * @return {year, repair count} pairs in ascending order of count
+	 */
+	List<int[]> repairsPerYear() throws SQLException;//8
+
+	boolean flightExists(int fnum) throws SQLException;//9
+
+	int passengerCount(int fid, String status) throws SQLException;//9
+}
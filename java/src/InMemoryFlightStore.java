@@ -0,0 +1,550 @@
+/*
+ * In-memory storage backend for DBproject
+ * =============================
+ *
+ * Keeps the flight database in primitive keyed hash maps so the menu
+ * logic can be load tested, or served from a local snapshot, without
+ * a round trip per operation.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class implements FlightStore entirely in memory. Every table is an
+ * IntHashMap keyed by its primary key, and two secondary indexes answer the
+ * report queries without scanning:
+ *
+ *   Reservation(fid, status) - per flight reservation counts by status, plus
+ *                              the flight's reservations keyed by customer
+ *   Repairs(plane_id, year)  - per plane repair counts by year
+ *
+ * Every table has its own read-write lock, held only to look up, check or
+ * add keys, so a write to one table does not wait for readers of another.
+ * The per flight data (the Reservation index, num_sold and the assigned
+ * plane) and the per plane Repairs index are guarded by lock stripes keyed
+ * by fid and plane_id: booking on one flight waits only for work on flights
+ * in the same stripe. Locks are always taken in the order of the fields
+ * below, table locks before stripes, so they cannot deadlock. Key, foreign
+ * key and domain violations are reported as SQLExceptions with
+ * PostgreSQL's SQLSTATEs.
+ *
+ * Nothing is written back: changes live only as long as the instance, and
+ * the database keeps the snapshot loaded by loadFrom().
+ *
+ */
+
+public class InMemoryFlightStore implements FlightStore {
+	private static final String STATUSES = "WCR";
+	private static final char NO_STATUS = ' ';
+
+	private static class Plane {
+		final int id;
+		final String make;
+		final String model;
+		final int age;
+		final int seats;
+
+		Plane(int id, String make, String model, int age, int seats) {
+			this.id = id;
+			this.make = make;
+			this.model = model;
+			this.age = age;
+			this.seats = seats;
+		}
+	}
+
+	private static class Person {
+		final int id;
+		final String name;
+		final String detail;
+
+		Person(int id, String name, String detail) {
+			this.id = id;
+			this.name = name;
+			this.detail = detail;
+		}
+	}
+
+	private static class Reservation {
+		final int rnum;
+		final int cid;
+		final int fid;
+		char status;
+		Reservation sameCustomer;	// older reservation by the same customer on the same flight
+
+		Reservation(int rnum, int cid, int fid, char status) {
+			this.rnum = rnum;
+			this.cid = cid;
+			this.fid = fid;
+			this.status = status;
+		}
+	}
+
+	private static class Flight {
+		final int fnum;
+		final int cost;
+		int numSold;			// guarded by the flight's stripe, like planeId and the index
+		final int numStops;
+		final LocalDate departure;
+		final LocalDate arrival;
+		final String arrivalAirport;
+		final String departureAirport;
+		int planeId = -1;		// from FlightInfo, -1 when no plane is assigned
+
+		// Reservation(fid, status) index
+		final int[] statusCounts = new int[STATUSES.length()];
+		final IntHashMap<Reservation> byCustomer = new IntHashMap<Reservation>(4);
+
+		Flight(int fnum, int cost, int numSold, int numStops, LocalDate departure, LocalDate arrival,
+			String arrivalAirport, String departureAirport) {
+			this.fnum = fnum;
+			this.cost = cost;
+			this.numSold = numSold;
+			this.numStops = numStops;
+			this.departure = departure;
+			this.arrival = arrival;
+			this.arrivalAirport = arrivalAirport;
+			this.departureAirport = departureAirport;
+		}
+	}
+
+	// lock stripes per flight and per plane, a power of two
+	private static final int STRIPES = 64;
+
+	private final ReentrantReadWriteLock planeLock = new ReentrantReadWriteLock();
+	private final IntHashMap<Plane> planes = new IntHashMap<Plane>();
+	// Repairs(plane_id, year) index: plane id -> year -> {count}; the outer
+	// map is guarded by planeLock, every plane's years by its plane stripe
+	private final IntHashMap<IntHashMap<int[]>> repairsByPlaneYear = new IntHashMap<IntHashMap<int[]>>();
+	private final ReentrantReadWriteLock flightLock = new ReentrantReadWriteLock();
+	private final IntHashMap<Flight> flights = new IntHashMap<Flight>();
+	private final ReentrantReadWriteLock customerLock = new ReentrantReadWriteLock();
+	private final IntHashMap<Person> customers = new IntHashMap<Person>();
+	private final ReentrantReadWriteLock pilotLock = new ReentrantReadWriteLock();
+	private final IntHashMap<Person> pilots = new IntHashMap<Person>();
+	private final ReentrantReadWriteLock technicianLock = new ReentrantReadWriteLock();
+	private final IntHashMap<Person> technicians = new IntHashMap<Person>();
+	private final ReentrantReadWriteLock reservationLock = new ReentrantReadWriteLock();
+	private final IntHashMap<Reservation> reservations = new IntHashMap<Reservation>();
+	private final ReentrantReadWriteLock repairLock = new ReentrantReadWriteLock();
+	private final IntHashMap<Boolean> repairs = new IntHashMap<Boolean>();
+	private final ReentrantReadWriteLock[] flightStripes = stripes();
+	private final ReentrantReadWriteLock[] planeStripes = stripes();
+
+	private static ReentrantReadWriteLock[] stripes() {
+		ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+		return locks;
+	}
+
+	private ReentrantReadWriteLock flightStripe(int fid) {
+		return flightStripes[fid & (STRIPES - 1)];
+	}
+
+	private ReentrantReadWriteLock planeStripe(int planeId) {
+		return planeStripes[planeId & (STRIPES - 1)];
+	}
+
+	/*
+	 * Takes the locks in the order given, which must be the field order.
+	 */
+	private static void lock(Lock... locks) {
+		for (Lock l : locks) {
+			l.lock();
+		}
+	}
+
+	private static void unlock(Lock... locks) {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+
+	private static SQLException duplicate(String table, int key) {
+		return new SQLException("ERROR: duplicate key value violates unique constraint \"" + table + "_pkey\"\n  Detail: Key (" + key + ") already exists.", "23505");
+	}
+
+	private static SQLException missing(String table, String column, int key) {
+		return new SQLException("ERROR: insert or update on table \"" + table + "\" violates foreign key constraint\n  Detail: Key (" + column + ")=(" + key + ") is not present.", "23503");
+	}
+
+	private static SQLException check(String domain, Object value) {
+		return new SQLException("ERROR: value for domain " + domain + " violates check constraint: " + value, "23514");
+	}
+
+	private static int statusIndex(String status) throws SQLException {
+		int i = status == null || status.length() != 1 ? -1 : STATUSES.indexOf(status.charAt(0));
+		if (i < 0) {
+			throw check("_status", status);
+		}
+		return i;
+	}
+
+	private static LocalDate date(String value) throws SQLException {
+		try {
+			String trimmed = value.trim();
+			return LocalDate.parse(trimmed.length() > 10 ? trimmed.substring(0, 10) : trimmed);
+		}catch (Exception e) {
+			throw new SQLException("ERROR: invalid input syntax for type date: \"" + value + "\"", "22007");
+		}
+	}
+
+	public void addPlane(int id, String make, String model, int age, int seats) throws SQLException {
+		if (age < 0) {
+			throw check("_year_1970", age);
+		}
+		if (seats <= 0 || seats >= 500) {
+			throw check("_seats", seats);
+		}
+		planeLock.writeLock().lock();
+		try {
+			if (planes.containsKey(id)) {
+				throw duplicate("plane", id);
+			}
+			planes.put(id, new Plane(id, make, model, age, seats));
+			repairsByPlaneYear.put(id, new IntHashMap<int[]>(4));
+		}finally{
+			planeLock.writeLock().unlock();
+		}
+	}
+
+	public void addPilot(int id, String fullname, String nationality) throws SQLException {
+		addPerson(pilotLock, pilots, "pilot", new Person(id, fullname, nationality));
+	}
+
+	public void addTechnician(int id, String fullName) throws SQLException {
+		addPerson(technicianLock, technicians, "technician", new Person(id, fullName, null));
+	}
+
+	/**
+	 * Customers have no menu operation but are needed as reservation
+	 * foreign keys, both when loading a snapshot and when load testing.
+	 */
+	public void addCustomer(int id, String fname, String lname) throws SQLException {
+		addPerson(customerLock, customers, "customer", new Person(id, fname, lname));
+	}
+
+	private static void addPerson(ReentrantReadWriteLock lock, IntHashMap<Person> table, String name, Person person) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			if (table.containsKey(person.id)) {
+				throw duplicate(name, person.id);
+			}
+			table.put(person.id, person);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void addFlight(int fnum, int cost, int numSold, int numStops, String departure, String arrival,
+		String arrivalAirport, String departureAirport) throws SQLException {
+		if (cost <= 0) {
+			throw check("_pinteger", cost);
+		}
+		if (numSold < 0 || numStops < 0) {
+			throw check("_pzerointeger", numSold < 0 ? numSold : numStops);
+		}
+		Flight flight = new Flight(fnum, cost, numSold, numStops, date(departure), date(arrival), arrivalAirport, departureAirport);
+		flightLock.writeLock().lock();
+		try {
+			if (flights.containsKey(fnum)) {
+				throw duplicate("flight", fnum);
+			}
+			flights.put(fnum, flight);
+		}finally{
+			flightLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to assign a plane to a flight, as a FlightInfo row does.
+	 */
+	public void addFlightInfo(int flightId, int planeId) throws SQLException {
+		Lock[] locks = { planeLock.readLock(), flightLock.readLock(), flightStripe(flightId).writeLock() };
+		lock(locks);
+		try {
+			Flight flight = flights.get(flightId);
+			if (flight == null) {
+				throw missing("flightinfo", "flight_id", flightId);
+			}
+			if (!planes.containsKey(planeId)) {
+				throw missing("flightinfo", "plane_id", planeId);
+			}
+			if (flight.planeId < 0) {
+				flight.planeId = planeId;
+			}
+		}finally{
+			unlock(locks);
+		}
+	}
+
+	public void addRepair(int rid, String repairDate, int planeId) throws SQLException {
+		int year = date(repairDate).getYear();
+		Lock[] locks = { planeLock.readLock(), repairLock.writeLock(), planeStripe(planeId).writeLock() };
+		lock(locks);
+		try {
+			if (repairs.containsKey(rid)) {
+				throw duplicate("repairs", rid);
+			}
+			if (!planes.containsKey(planeId)) {
+				throw missing("repairs", "plane_id", planeId);
+			}
+			repairs.put(rid, Boolean.TRUE);
+			IntHashMap<int[]> years = repairsByPlaneYear.get(planeId);
+			int[] count = years.get(year);
+			if (count == null) {
+				years.put(year, new int[] { 1 });
+			} else {
+				count[0]++;
+			}
+		}finally{
+			unlock(locks);
+		}
+	}
+
+	public String findReservationStatus(int cid, int fid) throws SQLException {
+		Lock[] locks = { flightLock.readLock(), flightStripe(fid).readLock() };
+		lock(locks);
+		try {
+			Flight flight = flights.get(fid);
+			Reservation r = flight == null ? null : flight.byCustomer.get(cid);
+			return r == null || r.status == NO_STATUS ? null : String.valueOf(r.status);
+		}finally{
+			unlock(locks);
+		}
+	}
+
+	public void addReservation(int rnum, int cid, int fid, String status) throws SQLException {
+		addReservation(rnum, cid, fid, status, true);
+	}
+
+	/*
+	 * sold is false while loading, when num_sold already counts the
+	 * reservation.
+	 */
+	private void addReservation(int rnum, int cid, int fid, String status, boolean sold) throws SQLException {
+		// the status column is nullable; such rows exist but are not indexed by status
+		int s = status == null ? -1 : statusIndex(status);
+		Lock[] locks = { flightLock.readLock(), customerLock.readLock(), reservationLock.writeLock(), flightStripe(fid).writeLock() };
+		lock(locks);
+		try {
+			if (reservations.containsKey(rnum)) {
+				throw duplicate("reservation", rnum);
+			}
+			if (!customers.containsKey(cid)) {
+				throw missing("reservation", "cid", cid);
+			}
+			Flight flight = flights.get(fid);
+			if (flight == null) {
+				throw missing("reservation", "fid", fid);
+			}
+			Reservation r = new Reservation(rnum, cid, fid, s < 0 ? NO_STATUS : STATUSES.charAt(s));
+			r.sameCustomer = flight.byCustomer.put(cid, r);
+			reservations.put(rnum, r);
+			if (s >= 0) {
+				flight.statusCounts[s]++;
+			}
+			if (sold && r.status == 'R') {
+				flight.numSold++;
+			}
+		}finally{
+			unlock(locks);
+		}
+	}
+
+	public void updateReservationStatus(int cid, int fid, String status) throws SQLException {
+		int s = statusIndex(status);
+		Lock[] locks = { flightLock.readLock(), flightStripe(fid).writeLock() };
+		lock(locks);
+		try {
+			Flight flight = flights.get(fid);
+			for (Reservation r = flight == null ? null : flight.byCustomer.get(cid); r != null; r = r.sameCustomer) {
+				char old = r.status;
+				if (old != NO_STATUS) {
+					flight.statusCounts[STATUSES.indexOf(old)]--;
+				}
+				flight.statusCounts[s]++;
+				r.status = STATUSES.charAt(s);
+				// like PostgresFlightStore, a count that drifted low stays at 0
+				flight.numSold = Math.max(flight.numSold + (r.status == 'R' ? 1 : 0) - (old == 'R' ? 1 : 0), 0);
+			}
+		}finally{
+			unlock(locks);
+		}
+	}
+
+	public Integer availableSeats(int fnum, String departure) throws SQLException {
+		LocalDate day = date(departure);
+		Lock[] locks = { planeLock.readLock(), flightLock.readLock(), flightStripe(fnum).readLock() };
+		lock(locks);
+		try {
+			Flight flight = flights.get(fnum);
+			if (flight == null || flight.planeId < 0 || !flight.departure.equals(day)) {
+				return null;
+			}
+			return planes.get(flight.planeId).seats - flight.numSold;
+		}finally{
+			unlock(locks);
+		}
+	}
+
+	public List<int[]> repairsPerPlane() throws SQLException {
+		List<int[]> result = new ArrayList<int[]>();
+		planeLock.readLock().lock();
+		try {
+			for (int plane : repairsByPlaneYear.keys()) {
+				int total = 0;
+				Lock stripe = planeStripe(plane).readLock();
+				stripe.lock();
+				try {
+					for (int[] count : repairsByPlaneYear.get(plane).values()) {
+						total += count[0];
+					}
+				}finally{
+					stripe.unlock();
+				}
+				// planes without repairs have no row in the join
+				if (total > 0) {
+					result.add(new int[] { plane, total });
+				}
+			}
+		}finally{
+			planeLock.readLock().unlock();
+		}
+		Collections.sort(result, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(b[1], a[1]);
+			}
+		});
+		return result;
+	}
+
+	public List<int[]> repairsPerYear() throws SQLException {
+		IntHashMap<int[]> totals = new IntHashMap<int[]>();
+		planeLock.readLock().lock();
+		try {
+			for (int plane : repairsByPlaneYear.keys()) {
+				IntHashMap<int[]> years = repairsByPlaneYear.get(plane);
+				Lock stripe = planeStripe(plane).readLock();
+				stripe.lock();
+				try {
+					for (int year : years.keys()) {
+						int[] total = totals.get(year);
+						if (total == null) {
+							totals.put(year, new int[] { year, years.get(year)[0] });
+						} else {
+							total[1] += years.get(year)[0];
+						}
+					}
+				}finally{
+					stripe.unlock();
+				}
+			}
+		}finally{
+			planeLock.readLock().unlock();
+		}
+		List<int[]> result = totals.values();
+		Collections.sort(result, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[1], b[1]);
+			}
+		});
+		return result;
+	}
+
+	public boolean flightExists(int fnum) throws SQLException {
+		flightLock.readLock().lock();
+		try {
+			return flights.containsKey(fnum);
+		}finally{
+			flightLock.readLock().unlock();
+		}
+	}
+
+	public int passengerCount(int fid, String status) throws SQLException {
+		int s = statusIndex(status);
+		Lock[] locks = { flightLock.readLock(), flightStripe(fid).readLock() };
+		lock(locks);
+		try {
+			Flight flight = flights.get(fid);
+			return flight == null ? 0 : flight.statusCounts[s];
+		}finally{
+			unlock(locks);
+		}
+	}
+
+	/**
+	 * Method to fill the store with a snapshot of the database, in foreign
+	 * key order. Rows are streamed with a fetch size rather than loaded
+	 * into one result list. The load is admitted as a heavy report, so each
+	 * table's query runs under the report timeout.
+	 *
+	 * @param admission the controller to admit the load through
+	 * @param conn the connection to read from
+	 * @throws java.sql.SQLException when the snapshot could not be read
+	 */
+	public void loadFrom(AdmissionController admission, Connection conn) throws SQLException {
+		AdmissionController.Ticket ticket = admission.enter(AdmissionController.OpClass.REPORT, 2);
+		boolean autoCommit = conn.getAutoCommit();
+		// the driver only honours the fetch size inside a transaction
+		conn.setAutoCommit(false);
+		try {
+			Statement stmt = ticket.create(conn);
+			stmt.setFetchSize(10000);
+			ResultSet rs = stmt.executeQuery("SELECT id, make, model, age, seats FROM Plane");
+			while (rs.next()) {
+				addPlane(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getInt(4), rs.getInt(5));
+			}
+			rs = stmt.executeQuery("SELECT id, fullname, nationality FROM Pilot");
+			while (rs.next()) {
+				addPilot(rs.getInt(1), trim(rs.getString(2)), trim(rs.getString(3)));
+			}
+			rs = stmt.executeQuery("SELECT id, full_name FROM Technician");
+			while (rs.next()) {
+				addTechnician(rs.getInt(1), trim(rs.getString(2)));
+			}
+			rs = stmt.executeQuery("SELECT id, fname, lname FROM Customer");
+			while (rs.next()) {
+				addCustomer(rs.getInt(1), trim(rs.getString(2)), trim(rs.getString(3)));
+			}
+			rs = stmt.executeQuery("SELECT fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport FROM Flight");
+			while (rs.next()) {
+				addFlight(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getString(5), rs.getString(6), trim(rs.getString(7)), trim(rs.getString(8)));
+			}
+			rs = stmt.executeQuery("SELECT flight_id, plane_id FROM FlightInfo ORDER BY fiid");
+			while (rs.next()) {
+				addFlightInfo(rs.getInt(1), rs.getInt(2));
+			}
+			rs = stmt.executeQuery("SELECT rnum, cid, fid, status FROM Reservation ORDER BY rnum");
+			while (rs.next()) {
+				addReservation(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4), false);
+			}
+			rs = stmt.executeQuery("SELECT rid, repair_date, plane_id FROM Repairs");
+			while (rs.next()) {
+				addRepair(rs.getInt(1), rs.getString(2), rs.getInt(3));
+			}
+			conn.commit();
+		}finally{
+			ticket.close();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static String trim(String value) {
+		return value == null ? null : value.trim();
+	}
+}
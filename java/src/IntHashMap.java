@@ -0,0 +1,137 @@
+/*
+ * Primitive keyed hash map for DBproject
+ * =============================
+ *
+ * Open addressing map from int keys to objects, used by the in-memory
+ * storage engine to avoid boxing every primary key.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class maps int keys to values with linear probing over parallel
+ * key/value arrays. It does not support removal and is not thread safe;
+ * callers provide their own locking.
+ *
+ */
+
+public class IntHashMap<V> {
+	private int[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	public IntHashMap() {
+		this(16);
+	}
+
+	public IntHashMap(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		keys = new int[capacity];
+		values = new Object[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static int slot(int key, int mask) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return (V) values[i];
+			}
+		}
+		return null;
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Method to associate a value with a key.
+	 *
+	 * @param key the key
+	 * @param value the value, which must not be null
+	 * @return the previous value for the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("IntHashMap does not store null values");
+		}
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) {
+			resize();
+		}
+		return null;
+	}
+
+	private void resize() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] != null) {
+				int i = slot(oldKeys[j], mask);
+				while (values[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	/**
+	 * @return the keys currently in the map, in no particular order
+	 */
+	public int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the values currently in the map, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> result = new ArrayList<V>(size);
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				result.add((V) values[i]);
+			}
+		}
+		return result;
+	}
+}
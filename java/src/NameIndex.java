@@ -0,0 +1,618 @@
+/*
+ * Name search index for DBproject
+ * =============================
+ *
+ * Keeps the names of every customer, pilot and technician in memory so
+ * people can be found by name instead of by id.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class indexes names by their words. Millions of people share a much
+ * smaller vocabulary of first and last names, so the fuzzy part of a search
+ * runs over the vocabulary only:
+ *
+ *   a trigram index maps every three character window of every word
+ *   (padded the way pg_trgm pads words) to the words containing it, and
+ *   a prefix index, the vocabulary in sorted order, finds the words
+ *   starting with what an operator has typed so far.
+ *
+ * Every word of the query is matched against the vocabulary, scoring each
+ * candidate word by trigram similarity, or higher when it starts with the
+ * (possibly unfinished) last query word. The people are then produced from
+ * the word combinations in descending score order by intersecting the
+ * words' posting lists, stopping as soon as enough matches are found, so a
+ * search for a common name does not visit everyone who has it.
+ *
+ * Entries and posting lists are only ever appended to, so every posting
+ * list stays sorted; removing a name only marks its entry, which searches
+ * then skip. Words first seen after the vocabulary was sorted wait
+ * in a short unsorted list until there are enough of them to merge.
+ *
+ */
+
+public class NameIndex {
+	public enum Kind { CUSTOMER, PILOT, TECHNICIAN }
+
+	// pg_trgm's default similarity threshold
+	static final double MIN_SIMILARITY = 0.3;
+	// vocabulary words considered for every query word
+	static final int WORD_CANDIDATES = 16;
+	static final int PENDING_MERGE = 1024;
+	// kind of an entry whose name was removed
+	static final byte REMOVED = -1;
+
+	/**
+	 * One search result.
+	 */
+	public static class Match {
+		public final Kind kind;
+		public final int id;
+		public final String name;
+		public final double score;
+
+		Match(Kind kind, int id, String name, double score) {
+			this.kind = kind;
+			this.id = id;
+			this.name = name;
+			this.score = score;
+		}
+
+		public String toString() {
+			return String.format("%-10s %8d  %-40s %.2f", kind, id, name, score);
+		}
+	}
+
+	/**
+	 * Growable sorted list of ints.
+	 */
+	private static class Postings {
+		int[] items = new int[2];
+		int size = 0;
+
+		void add(int item) {
+			if (size > 0 && items[size - 1] == item) {
+				return;		// the same word or trigram twice in one name
+			}
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size * 2);
+			}
+			items[size++] = item;
+		}
+	}
+
+	/**
+	 * A vocabulary word matching one query word.
+	 */
+	private static class Candidate {
+		final int word;
+		final double score;
+
+		Candidate(int word, double score) {
+			this.word = word;
+			this.score = score;
+		}
+	}
+
+	private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+		public int compare(Candidate a, Candidate b) {
+			return Double.compare(b.score, a.score);
+		}
+	};
+
+	private static final Comparator<Match> BY_NAME = new Comparator<Match>() {
+		public int compare(Match a, Match b) {
+			return a.name.compareTo(b.name);
+		}
+	};
+
+	private static final Comparator<Match> BEST_FIRST = new Comparator<Match>() {
+		public int compare(Match a, Match b) {
+			int c = Double.compare(b.score, a.score);
+			return c != 0 ? c : a.name.compareTo(b.name);
+		}
+	};
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// people, by entry number
+	private byte[] kinds = new byte[1024];
+	private int[] ids = new int[1024];
+	private String[] names = new String[1024];
+	private int size = 0;
+	// the word numbers of entry e are entryWords[wordStart[e]] .. entryWords[wordStart[e + 1] - 1]
+	private int[] wordStart = new int[1025];
+	private int[] entryWords = new int[2048];
+
+	// vocabulary, by word number
+	private final Map<String, Integer> wordNumbers = new HashMap<String, Integer>();
+	private final List<String> words = new ArrayList<String>();
+	private final List<Postings> wordEntries = new ArrayList<Postings>();
+	private short[] wordGrams = new short[1024];
+	private final IntHashMap<Postings> grams = new IntHashMap<Postings>(1 << 14);
+
+	// prefix index: word numbers in word order, plus words not yet merged in
+	private int[] sorted = new int[0];
+	private final List<Integer> pending = new ArrayList<Integer>();
+
+	/**
+	 * @return the number of names indexed
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of distinct words in the indexed names
+	 */
+	public int vocabularySize() {
+		lock.readLock().lock();
+		try {
+			return words.size();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to index every customer, pilot and technician in the database.
+	 *
+	 * @param conn the connection to read the names with
+	 * @return the number of names indexed
+	 * @throws java.sql.SQLException when the names cannot be read
+	 */
+	public int load(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		// the driver only honours the fetch size inside a transaction
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		stmt.setFetchSize(10000);
+		lock.writeLock().lock();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT id, fname, lname FROM Customer");
+			while (rs.next()) {
+				append(Kind.CUSTOMER, rs.getInt(1), rs.getString(2).trim() + " " + rs.getString(3).trim());
+			}
+			rs = stmt.executeQuery("SELECT id, fullname FROM Pilot WHERE fullname IS NOT NULL");
+			while (rs.next()) {
+				append(Kind.PILOT, rs.getInt(1), rs.getString(2).trim());
+			}
+			rs = stmt.executeQuery("SELECT id, full_name FROM Technician WHERE full_name IS NOT NULL");
+			while (rs.next()) {
+				append(Kind.TECHNICIAN, rs.getInt(1), rs.getString(2).trim());
+			}
+			conn.commit();
+			mergeWords();
+			return size;
+		}finally{
+			lock.writeLock().unlock();
+			stmt.close();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Method to index one name, e.g. after a pilot was added.
+	 *
+	 * @param kind what the id refers to
+	 * @param id the person's id
+	 * @param name the name as entered
+	 */
+	public void add(Kind kind, int id, String name) {
+		if (name == null || name.trim().isEmpty()) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			append(kind, id, name.trim());
+			if (pending.size() >= PENDING_MERGE) {
+				mergeWords();
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to take a name out of the search results again, e.g. when a
+	 * pilot added through the menu never made it into the database.
+	 *
+	 * @param kind what the id refers to
+	 * @param id the person's id
+	 * @param name the name as it was added
+	 * @return true if the name was indexed
+	 */
+	public boolean remove(Kind kind, int id, String name) {
+		if (name == null) {
+			return false;
+		}
+		String trimmed = name.trim();
+		lock.writeLock().lock();
+		try {
+			// names are removed rarely and usually soon after they were added
+			for (int entry = size - 1; entry >= 0; entry--) {
+				if (kinds[entry] == kind.ordinal() && ids[entry] == id && names[entry].equals(trimmed)) {
+					kinds[entry] = REMOVED;
+					return true;
+				}
+			}
+			return false;
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void append(Kind kind, int id, String name) {
+		if (size == ids.length) {
+			int capacity = size * 2;
+			kinds = Arrays.copyOf(kinds, capacity);
+			ids = Arrays.copyOf(ids, capacity);
+			names = Arrays.copyOf(names, capacity);
+			wordStart = Arrays.copyOf(wordStart, capacity + 1);
+		}
+		int entry = size++;
+		kinds[entry] = (byte) kind.ordinal();
+		ids[entry] = id;
+		names[entry] = name;
+		String[] tokens = tokenize(name);
+		int start = wordStart[entry];
+		if (start + tokens.length > entryWords.length) {
+			entryWords = Arrays.copyOf(entryWords, Math.max(entryWords.length * 2, start + tokens.length));
+		}
+		for (int i = 0; i < tokens.length; i++) {
+			int word = wordNumber(tokens[i]);
+			entryWords[start + i] = word;
+			wordEntries.get(word).add(entry);
+		}
+		wordStart[entry + 1] = start + tokens.length;
+	}
+
+	private int wordNumber(String token) {
+		Integer known = wordNumbers.get(token);
+		if (known != null) {
+			return known;
+		}
+		int word = words.size();
+		wordNumbers.put(token, word);
+		words.add(token);
+		wordEntries.add(new Postings());
+		if (word == wordGrams.length) {
+			wordGrams = Arrays.copyOf(wordGrams, word * 2);
+		}
+		int[] keys = trigrams(token, false);
+		wordGrams[word] = (short) Math.min(keys.length, Short.MAX_VALUE);
+		for (int key : keys) {
+			Postings p = grams.get(key);
+			if (p == null) {
+				p = new Postings();
+				grams.put(key, p);
+			}
+			p.add(word);
+		}
+		pending.add(word);
+		return word;
+	}
+
+	/**
+	 * Sorts the new words and merges them into the prefix index.
+	 */
+	private void mergeWords() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Comparator<Integer> byWord = new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return words.get(a).compareTo(words.get(b));
+			}
+		};
+		Collections.sort(pending, byWord);
+		int[] merged = new int[sorted.length + pending.size()];
+		int i = 0, j = 0;
+		for (int k = 0; k < merged.length; k++) {
+			if (j == pending.size() || (i < sorted.length && byWord.compare(sorted[i], pending.get(j)) <= 0)) {
+				merged[k] = sorted[i++];
+			} else {
+				merged[k] = pending.get(j++);
+			}
+		}
+		sorted = merged;
+		pending.clear();
+	}
+
+	/**
+	 * Method to find the people whose names best match a query.
+	 *
+	 * @param query part or all of a name, in any case and word order,
+	 *              misspellings allowed
+	 * @param limit the maximum number of matches to return
+	 * @return the matches, best first
+	 */
+	public List<Match> search(String query, int limit) {
+		String[] tokens = tokenize(query);
+		if (tokens.length == 0 || limit <= 0) {
+			return Collections.emptyList();
+		}
+		lock.readLock().lock();
+		try {
+			List<List<Candidate>> perToken = new ArrayList<List<Candidate>>();
+			for (int t = 0; t < tokens.length; t++) {
+				List<Candidate> candidates = matchWord(tokens[t], t == tokens.length - 1);
+				if (candidates.isEmpty()) {
+					return Collections.emptyList();
+				}
+				perToken.add(candidates);
+			}
+			return tokens.length == 1 ? single(perToken.get(0), limit) : multiple(perToken, limit);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * One query word: everyone with the best matching word comes first, so
+	 * the posting lists are read in candidate order until the limit is reached.
+	 */
+	private List<Match> single(List<Candidate> candidates, int limit) {
+		List<Match> result = new ArrayList<Match>();
+		Set<Integer> seen = new HashSet<Integer>();
+		for (Candidate c : candidates) {
+			Postings entries = wordEntries.get(c.word);
+			List<Match> batch = new ArrayList<Match>();
+			for (int k = 0; k < entries.size && result.size() + batch.size() < limit; k++) {
+				if (kinds[entries.items[k]] != REMOVED && seen.add(entries.items[k])) {
+					batch.add(match(entries.items[k], c.score));
+				}
+			}
+			Collections.sort(batch, BY_NAME);
+			result.addAll(batch);
+			if (result.size() >= limit) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Several query words: the people having a candidate for the rarest query
+	 * word are scored by looking up their other words in the other query
+	 * words' candidates. People missing a query word score nothing for it.
+	 * Candidates are visited best first, so once even a perfect match on the
+	 * remaining words could not beat the current results the search stops.
+	 */
+	private List<Match> multiple(List<List<Candidate>> perToken, int limit) {
+		// for every candidate word, its score against each query word, and last
+		// its position among the driving query word's candidates
+		int n = perToken.size();
+		IntHashMap<double[]> scores = new IntHashMap<double[]>(n * WORD_CANDIDATES);
+		int driver = 0;
+		long fewest = Long.MAX_VALUE;
+		for (int t = 0; t < n; t++) {
+			long total = 0;
+			for (Candidate c : perToken.get(t)) {
+				double[] s = scores.get(c.word);
+				if (s == null) {
+					s = new double[n + 1];
+					scores.put(c.word, s);
+				}
+				s[t] = c.score;
+				total += wordEntries.get(c.word).size;
+			}
+			if (total < fewest) {
+				fewest = total;
+				driver = t;
+			}
+		}
+		List<Candidate> driving = perToken.get(driver);
+		for (double[] s : scores.values()) {
+			s[n] = Integer.MAX_VALUE;
+		}
+		for (int i = 0; i < driving.size(); i++) {
+			scores.get(driving.get(i).word)[n] = i;
+		}
+
+		// the best limit matches so far, worst on top
+		PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1, Collections.reverseOrder(BEST_FIRST));
+		double[] top = new double[n];
+		for (int i = 0; i < driving.size(); i++) {
+			Candidate c = driving.get(i);
+			if (best.size() == limit && (c.score + n - 1) / n < best.peek().score) {
+				break;
+			}
+			Postings entries = wordEntries.get(c.word);
+			for (int k = 0; k < entries.size; k++) {
+				int entry = entries.items[k];
+				if (kinds[entry] == REMOVED) {
+					continue;
+				}
+				Arrays.fill(top, 0);
+				boolean scored = false;		// already reached through an earlier candidate
+				for (int w = wordStart[entry]; w < wordStart[entry + 1] && !scored; w++) {
+					double[] s = scores.get(entryWords[w]);
+					if (s == null) {
+						continue;
+					}
+					scored = s[n] < i;
+					for (int t = 0; t < n; t++) {
+						top[t] = Math.max(top[t], s[t]);
+					}
+				}
+				double total = 0;
+				for (int t = 0; t < n; t++) {
+					total += top[t];
+				}
+				double score = total / n;
+				if (scored || score < MIN_SIMILARITY || (best.size() == limit && score <= best.peek().score)) {
+					continue;
+				}
+				best.add(match(entry, score));
+				if (best.size() > limit) {
+					best.poll();
+				}
+			}
+		}
+		List<Match> result = new ArrayList<Match>(best);
+		Collections.sort(result, BEST_FIRST);
+		return result;
+	}
+
+	private Match match(int entry, double score) {
+		return new Match(Kind.values()[kinds[entry]], ids[entry], names[entry], score);
+	}
+
+	/**
+	 * Returns the best vocabulary words for one query word: those sharing
+	 * enough trigrams with it, and, for the last query word, those starting
+	 * with it.
+	 */
+	private List<Candidate> matchWord(String token, boolean last) {
+		Map<Integer, Candidate> found = new HashMap<Integer, Candidate>();
+		Integer exact = wordNumbers.get(token);
+		if (exact != null) {
+			found.put(exact, new Candidate(exact, 1.0));
+		}
+
+		// count the trigrams every vocabulary word shares with the query word
+		int[] keys = trigrams(token, last);
+		int[] shared = new int[words.size()];
+		int[] touched = new int[64];
+		int n = 0;
+		for (int key : keys) {
+			Postings p = grams.get(key);
+			for (int k = 0; p != null && k < p.size; k++) {
+				int word = p.items[k];
+				if (shared[word]++ == 0) {
+					if (n == touched.length) {
+						touched = Arrays.copyOf(touched, n * 2);
+					}
+					touched[n++] = word;
+				}
+			}
+		}
+		// pg_trgm similarity: shared trigrams over the trigrams of both words
+		int minShared = (int) Math.ceil(MIN_SIMILARITY * keys.length);
+		for (int i = 0; i < n; i++) {
+			int word = touched[i];
+			if (shared[word] >= minShared && !found.containsKey(word)) {
+				double score = (double) shared[word] / (keys.length + wordGrams[word] - shared[word]);
+				if (score >= MIN_SIMILARITY) {
+					found.put(word, new Candidate(word, score));
+				}
+			}
+		}
+
+		if (last) {
+			for (int word : prefixed(token, WORD_CANDIDATES)) {
+				// unfinished words: the more of the word typed, the better
+				double score = 0.6 + 0.4 * token.length() / words.get(word).length();
+				Candidate c = found.get(word);
+				if (c == null || c.score < score) {
+					found.put(word, new Candidate(word, score));
+				}
+			}
+		}
+
+		List<Candidate> result = new ArrayList<Candidate>(found.values());
+		Collections.sort(result, BY_SCORE);
+		return result.size() > WORD_CANDIDATES ? result.subList(0, WORD_CANDIDATES) : result;
+	}
+
+	/**
+	 * Returns up to max of the shortest vocabulary words starting with the prefix.
+	 */
+	private List<Integer> prefixed(String prefix, int max) {
+		List<Integer> result = new ArrayList<Integer>();
+		int lo = 0, hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (words.get(sorted[mid]).compareTo(prefix) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int i = lo; i < sorted.length && words.get(sorted[i]).startsWith(prefix); i++) {
+			result.add(sorted[i]);
+		}
+		for (int word : pending) {
+			if (words.get(word).startsWith(prefix)) {
+				result.add(word);
+			}
+		}
+		Collections.sort(result, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(words.get(a).length(), words.get(b).length());
+			}
+		});
+		return result.size() > max ? result.subList(0, max) : result;
+	}
+
+	/**
+	 * Lower cases the text, strips accents and splits it on anything that is
+	 * not a letter or digit.
+	 */
+	static String[] tokenize(String text) {
+		String folded = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase();
+		StringBuilder sb = new StringBuilder(folded.length());
+		for (int i = 0; i < folded.length(); i++) {
+			char c = folded.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				sb.append(c);
+			} else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+				sb.append(' ');
+			}
+		}
+		String trimmed = sb.toString().trim();
+		return trimmed.isEmpty() ? new String[0] : trimmed.split(" +");
+	}
+
+	/**
+	 * Returns the distinct trigram keys of a word padded with two spaces in
+	 * front and, unless it may be unfinished, one behind.
+	 */
+	static int[] trigrams(String word, boolean unfinished) {
+		String padded = "  " + word + (unfinished ? "" : " ");
+		int[] keys = new int[Math.max(0, padded.length() - 2)];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = key(padded.charAt(i), padded.charAt(i + 1), padded.charAt(i + 2));
+		}
+		Arrays.sort(keys);
+		int distinct = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (distinct == 0 || keys[distinct - 1] != keys[i]) {
+				keys[distinct++] = keys[i];
+			}
+		}
+		return Arrays.copyOf(keys, distinct);
+	}
+
+	private static int key(char a, char b, char c) {
+		if (a < 1024 && b < 1024 && c < 1024) {
+			return (a << 20) | (b << 10) | c;
+		}
+		// outside the first 1024 code points; collisions only cost precision
+		return 0x40000000 | ((a * 31 + b) * 31 + c) & 0x3fffffff;
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * Seats sold reconciliation for DBproject
+ * =============================
+ *
+ * Keeps Flight.num_sold equal to the number of reserved ('R') reservations
+ * of each flight.
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class reconciles num_sold incrementally. Triggers on Reservation and
+ * Flight (see sql/create.sql) append the number of every flight whose
+ * reserved count may have changed to ReservationChange, so a pass only
+ * recounts those flights instead of joining all of Reservation with Flight.
+ *
+ * Every batch runs in its own transaction: it deletes the oldest change
+ * rows, which marks them consumed (the highest sequence number deleted is
+ * the watermark), recounts the distinct flights among them through the
+ * (fid, status) index and fixes the ones that drifted with one UPDATE. A
+ * failed batch rolls back and its changes are picked up again by the next
+ * pass. Change rows committed while a batch ran, even with a lower sequence
+ * number, are still in the table for the next batch, so nothing is missed.
+ *
+ * The work runs on the reconciler's own connection, either on demand or
+ * on a background schedule. Every batch is admitted as report work, so it
+ * runs under the report timeout and a pass cannot take more than one of
+ * the report permits at a time; a batch that is shed fails the pass, and
+ * the next pass continues where it stopped.
+ *
+ */
+
+public class NumSoldReconciler {
+	// change rows consumed per transaction
+	static final int BATCH = 5000;
+
+	private final DBproject esql;
+	private Connection conn = null;
+	private ScheduledExecutorService scheduler = null;
+
+	// drift metrics since startup
+	private final AtomicLong passes = new AtomicLong();
+	private final AtomicLong changes = new AtomicLong();
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong fixed = new AtomicLong();
+	private final AtomicLong drift = new AtomicLong();
+	private final AtomicLong maxDrift = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong watermark = new AtomicLong();
+	private volatile long lastPassMillis = 0;
+	private volatile String lastError = null;
+
+	public NumSoldReconciler(DBproject esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Result of one pass over the change log.
+	 */
+	public static class Pass {
+		public int changes = 0;
+		public int checked = 0;
+		public int fixed = 0;
+		public long drift = 0;
+		public long millis = 0;
+
+		public String toString() {
+			return String.format("%d changes, %d flights checked, %d fixed (total drift %d seats) in %d ms",
+				changes, checked, fixed, drift, millis);
+		}
+	}
+
+	/**
+	 * Method to consume the whole change log, batch by batch.
+	 *
+	 * @return what the pass did
+	 * @throws java.sql.SQLException when a batch fails; earlier batches stay committed
+	 */
+	public synchronized Pass reconcile() throws SQLException {
+		long start = System.nanoTime();
+		Pass pass = new Pass();
+		try {
+			while (batch(connection(), pass) == BATCH) {
+				// keep going until the log is drained
+			}
+		}catch (SQLException e) {
+			failures.incrementAndGet();
+			lastError = e.getMessage();
+			if (e.getSQLState() != null && e.getSQLState().startsWith("08")) {
+				closeConnection();
+			}
+			throw e;
+		}finally{
+			pass.millis = (System.nanoTime() - start) / 1000000;
+			lastPassMillis = pass.millis;
+			passes.incrementAndGet();
+		}
+		return pass;
+	}
+
+	/**
+	 * Consumes up to BATCH change rows and fixes their flights.
+	 *
+	 * @return the number of change rows consumed
+	 */
+	private int batch(Connection conn, Pass pass) throws SQLException {
+		AdmissionController.Ticket ticket = report();
+		conn.setAutoCommit(false);
+		try {
+			// SKIP LOCKED lets another reconciler work on the next rows meanwhile
+			PreparedStatement take = ticket.prepare(conn,
+				"DELETE FROM ReservationChange WHERE seq IN " +
+				"(SELECT seq FROM ReservationChange ORDER BY seq LIMIT ? FOR UPDATE SKIP LOCKED) RETURNING seq, fid");
+			take.setInt(1, BATCH);
+			ResultSet rs = take.executeQuery();
+			Set<Integer> dirty = new LinkedHashSet<Integer>();
+			int consumed = 0;
+			long highest = 0;
+			while (rs.next()) {
+				consumed++;
+				highest = Math.max(highest, rs.getLong(1));
+				dirty.add(rs.getInt(2));
+			}
+			if (consumed == 0) {
+				conn.commit();
+				return 0;
+			}
+
+			// O is the row before the update, for the drift
+			Array fids = conn.createArrayOf("integer", dirty.toArray());
+			PreparedStatement fix = ticket.prepare(conn, 
+				"UPDATE Flight F SET num_sold = C.sold FROM " +
+				"(SELECT D.fid, CAST((SELECT COUNT(*) FROM Reservation R WHERE R.fid = D.fid AND R.status = 'R') AS INTEGER) AS sold " +
+				"FROM unnest(?) AS D(fid)) C, Flight O " +
+				"WHERE F.fnum = C.fid AND O.fnum = F.fnum AND O.actual_departure_date = F.actual_departure_date AND F.num_sold <> C.sold " +
+				"RETURNING F.fnum, O.num_sold, C.sold");
+			fix.setArray(1, fids);
+			rs = fix.executeQuery();
+			int batchFixed = 0;
+			long batchDrift = 0;
+			long batchMax = 0;
+			while (rs.next()) {
+				long d = Math.abs((long) rs.getInt(3) - rs.getInt(2));
+				batchFixed++;
+				batchDrift += d;
+				batchMax = Math.max(batchMax, d);
+			}
+			conn.commit();
+
+			pass.changes += consumed;
+			pass.checked += dirty.size();
+			pass.fixed += batchFixed;
+			pass.drift += batchDrift;
+			changes.addAndGet(consumed);
+			checked.addAndGet(dirty.size());
+			fixed.addAndGet(batchFixed);
+			drift.addAndGet(batchDrift);
+			for (long seen = maxDrift.get(); batchMax > seen && !maxDrift.compareAndSet(seen, batchMax); seen = maxDrift.get()) {
+				// retry
+			}
+			for (long seen = watermark.get(); highest > seen && !watermark.compareAndSet(seen, highest); seen = watermark.get()) {
+				// retry
+			}
+			return consumed;
+		}catch (SQLException e) {
+			try {
+				conn.rollback();
+			}catch (SQLException ignored) {
+				// the connection is gone, the server rolled back
+			}
+			throw e;
+		}finally{
+			ticket.close();
+		}
+	}
+
+	/**
+	 * Method to queue every flight for reconciliation, e.g. once after the
+	 * data was loaded or after num_sold was edited by hand. The next pass
+	 * does the work.
+	 *
+	 * @return the number of flights queued
+	 * @throws java.sql.SQLException when the flights cannot be queued
+	 */
+	public synchronized int queueAll() throws SQLException {
+		Connection conn = connection();
+		conn.setAutoCommit(true);
+		AdmissionController.Ticket ticket = report();
+		try {
+			return ticket.create(conn).executeUpdate("INSERT INTO ReservationChange (fid) SELECT fnum FROM Flight ORDER BY fnum");
+		}finally{
+			ticket.close();
+		}
+	}
+
+	/**
+	 * Method to count the change rows not consumed yet.
+	 *
+	 * @return the reconciler's backlog
+	 * @throws java.sql.SQLException when the log cannot be read
+	 */
+	public synchronized long pending() throws SQLException {
+		Connection conn = connection();
+		conn.setAutoCommit(true);
+		AdmissionController.Ticket ticket = report();
+		try {
+			ResultSet rs = ticket.create(conn).executeQuery("SELECT COUNT(*) FROM ReservationChange");
+			rs.next();
+			return rs.getLong(1);
+		}finally{
+			ticket.close();
+		}
+	}
+
+	/**
+	 * Method to run a pass every interval in the background until stop().
+	 *
+	 * @param intervalSeconds the delay between the end of one pass and the start of the next
+	 */
+	public synchronized void start(long intervalSeconds) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "num-sold-reconciler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					reconcile();
+				}catch (SQLException e) {
+					// counted in the metrics, retried on the next run
+				}
+			}
+		}, 0, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public boolean isRunning() {
+		return scheduler != null;
+	}
+
+	/**
+	 * Method to stop the background schedule and close the connection,
+	 * waiting for a running pass to finish.
+	 */
+	public void stop() {
+		ScheduledExecutorService s;
+		synchronized (this) {
+			s = scheduler;
+			scheduler = null;
+		}
+		if (s != null) {
+			s.shutdown();
+			try {
+				s.awaitTermination(30, TimeUnit.SECONDS);
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			closeConnection();
+		}
+	}
+
+	/**
+	 * @return the drift metrics since startup, one per line
+	 */
+	public String metrics() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("passes             ").append(passes.get()).append('\n');
+		sb.append("changes consumed   ").append(changes.get()).append('\n');
+		sb.append("watermark          ").append(watermark.get()).append('\n');
+		sb.append("flights checked    ").append(checked.get()).append('\n');
+		sb.append("flights fixed      ").append(fixed.get()).append('\n');
+		sb.append("total drift        ").append(drift.get()).append(" seats\n");
+		sb.append("largest drift      ").append(maxDrift.get()).append(" seats\n");
+		sb.append("last pass          ").append(lastPassMillis).append(" ms\n");
+		sb.append("failed passes      ").append(failures.get());
+		if (lastError != null) {
+			sb.append(" (last: ").append(lastError).append(')');
+		}
+		sb.append('\n');
+		sb.append("background         ").append(isRunning() ? "running" : "stopped");
+		return sb.toString();
+	}
+
+	private AdmissionController.Ticket report() throws SQLException {
+		return esql.getAdmission().enter(AdmissionController.OpClass.REPORT);
+	}
+
+	private Connection connection() throws SQLException {
+		if (conn == null) {
+			conn = esql.openConnection();
+		}
+		return conn;
+	}
+
+	private void closeConnection() {
+		if (conn != null) {
+			try {
+				conn.close();
+			}catch (SQLException e) {
+				// ignored.
+			}
+			conn = null;
+		}
+	}
+}
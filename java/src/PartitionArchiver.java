@@ -0,0 +1,195 @@
+/*
+ * Partition archival for DBproject
+ * =============================
+ *
+ * Moves old Flight, Reservation and Repairs partitions of the partitioned
+ * schema (sql/create_partitioned.sql) out of the hot tables.
+ *
+ */
+
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class finds every partition whose range ends on or before a cutoff
+ * date and either
+ *
+ *   detaches it into the archive schema, where it stays queryable, or
+ *   exports it to a gzip compressed CSV file and drops it.
+ *
+ * Reservation partitions are handled before Flight partitions, because
+ * reservations reference the flights of the same month. Each partition is
+ * archived in its own transaction so a failure leaves the others in place.
+ * The flights of an archived Flight partition are dropped from the entity
+ * cache, so lookups no longer find them. Listing the partitions runs as a
+ * booking and each detach as a report, under the admission controller.
+ *
+ */
+
+public class PartitionArchiver {
+	// handled in this order, reservations first because they reference flights
+	private static final String[] PARENTS = { "reservation_part", "flight", "repairs" };
+	private static final Pattern UPPER_BOUND = Pattern.compile("TO \\('(\\d{4}-\\d{2}-\\d{2})'\\)");
+
+	/**
+	 * One partition, with the exclusive upper bound of its range.
+	 */
+	public static class Partition {
+		public final String parent;
+		public final String name;
+		public final LocalDate upper;
+
+		Partition(String parent, String name, LocalDate upper) {
+			this.parent = parent;
+			this.name = name;
+			this.upper = upper;
+		}
+
+		public String toString() {
+			return name + " (" + parent + ", before " + upper + ")";
+		}
+	}
+
+	/**
+	 * Method to list the partitions that hold only rows before the cutoff.
+	 *
+	 * @param ticket the ticket the catalog query runs under
+	 * @param conn the connection to read the catalog with
+	 * @param cutoff partitions whose range ends on or before this date qualify
+	 * @return the partitions in archival order
+	 * @throws java.sql.SQLException when the catalog cannot be read, or the
+	 *         tables are not partitioned
+	 */
+	public static List<Partition> findOlderThan(AdmissionController.Ticket ticket, Connection conn, LocalDate cutoff) throws SQLException {
+		PreparedStatement stmt = ticket.prepare(conn,
+			"SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i " +
+			"JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent " +
+			"JOIN pg_namespace n ON n.oid = p.relnamespace " +
+			"WHERE p.relname = ? AND p.relkind = 'p' AND n.nspname = current_schema() ORDER BY c.relname");
+		List<Partition> result = new ArrayList<Partition>();
+		boolean partitioned = false;
+		try {
+			for (String parent : PARENTS) {
+				stmt.setString(1, parent);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					partitioned = true;
+					Matcher m = UPPER_BOUND.matcher(rs.getString(2));
+					if (!m.find()) {
+						continue;		// the DEFAULT partition has no range
+					}
+					LocalDate upper = LocalDate.parse(m.group(1));
+					if (!upper.isAfter(cutoff)) {
+						result.add(new Partition(parent, rs.getString(1), upper));
+					}
+				}
+			}
+		}finally{
+			stmt.close();
+		}
+		if (!partitioned) {
+			throw new SQLException("No partitioned tables found, the database was not created with create_partitioned.sql");
+		}
+		return result;
+	}
+
+	/**
+	 * Method to archive every partition older than the cutoff.
+	 *
+	 * @param esql the database connection wrapper
+	 * @param cutoff partitions whose range ends on or before this date are archived
+	 * @param exportDir directory to export partitions to before dropping them,
+	 *                  or null to detach them into the archive schema instead
+	 * @return one line per partition describing what was done
+	 * @throws java.sql.SQLException when the partitions cannot be listed
+	 */
+	public static List<String> archive(DBproject esql, LocalDate cutoff, File exportDir) throws SQLException {
+		Connection conn = esql.getConnection();
+		List<String> report = new ArrayList<String>();
+		List<Partition> partitions;
+		AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+		try {
+			partitions = findOlderThan(ticket, conn, cutoff);
+		}finally{
+			ticket.close();
+		}
+		for (Partition p : partitions) {
+			String table = "\"" + p.name + "\"";
+			try {
+				List<Integer> flights;
+				if (exportDir != null) {
+					File file = new File(exportDir, p.name + ".csv.gz");
+					QueryExport stats = QueryExport.export(esql, "SELECT * FROM " + table, file, false, true);
+					flights = detach(esql, conn, p, "DROP TABLE " + table);
+					report.add(String.format("%s: exported %d rows to %s and dropped", p.name, stats.getRows(), file));
+				} else {
+					flights = detach(esql, conn, p, "ALTER TABLE " + table + " SET SCHEMA archive");
+					report.add(p.name + ": moved to archive." + p.name);
+				}
+				if (esql.getCache() != null) {
+					for (int fnum : flights) {
+						esql.getCache().dropFlight(fnum);
+					}
+				}
+			}catch (Exception e) {
+				if (e instanceof SQLException) {
+					esql.getKeeper().failed(conn, (SQLException) e);
+				}
+				report.add(p.name + ": FAILED " + e.getMessage());
+			}
+		}
+		return report;
+	}
+
+	/*
+	 * Detaches p and runs then on it in one transaction. Returns the flight
+	 * numbers it held if it is a Flight partition, otherwise an empty list.
+	 */
+	private static List<Integer> detach(DBproject esql, Connection conn, Partition p, String then) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.REPORT);
+		List<Integer> flights = new ArrayList<Integer>();
+		try {
+			conn.setAutoCommit(false);
+			Statement stmt = ticket.create(conn);
+			stmt.execute("ALTER TABLE " + p.parent + " DETACH PARTITION \"" + p.name + "\"");
+			if (p.parent.equals("flight")) {
+				ResultSet rs = stmt.executeQuery("SELECT fnum FROM \"" + p.name + "\"");
+				while (rs.next()) {
+					flights.add(rs.getInt(1));
+				}
+			}
+			if (p.parent.equals("reservation_part")) {
+				// the detached table keeps its foreign key to Flight, which would
+				// stop the same month's Flight partition from being detached
+				List<String> fks = new ArrayList<String>();
+				ResultSet rs = stmt.executeQuery("SELECT conname FROM pg_constraint WHERE conrelid = '\"" + p.name + "\"'::regclass AND contype = 'f' AND confrelid = 'flight'::regclass");
+				while (rs.next()) {
+					fks.add(rs.getString(1));
+				}
+				for (String fk : fks) {
+					stmt.execute("ALTER TABLE \"" + p.name + "\" DROP CONSTRAINT \"" + fk + "\"");
+				}
+			}
+			stmt.execute(then);
+			conn.commit();
+			return flights;
+		}catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		}finally{
+			ticket.close();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+}
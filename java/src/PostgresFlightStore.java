@@ -0,0 +1,301 @@
+/*
+ * PostgreSQL storage backend for DBproject
+ * =============================
+ *
+ * Runs the menu operations through the JDBC connection held by DBproject.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class implements FlightStore with the same SQL the menu used to
+ * build by hand, issued as prepared statements. Reservation writes update
+ * Flight.num_sold in the same transaction, so the seats a status change
+ * takes or gives back are counted before the waitlist is told about them. Every operation is admitted
+ * through DBproject's AdmissionController: lookups and single row writes as
+ * bookings, the repair reports as heavier report work. Operations run
+ * through the ConnectionKeeper, which retries the reads on a new connection
+ * when the database was restarted underneath them.
+ *
+ */
+
+public class PostgresFlightStore implements FlightStore {
+	// the hot lookups, also run by Warmup.prepare
+	static final String RESERVATION_STATUS = "SELECT status FROM Reservation WHERE cid = ? AND fid = ?";
+	static final String AVAILABLE_SEATS = "SELECT P.seats - F.num_sold FROM Flight F, FlightInfo I, Plane P WHERE F.fnum = ? AND F.actual_departure_date = CAST(? AS DATE) AND I.flight_id = F.fnum AND I.plane_id = P.id";
+	static final String FLIGHT_EXISTS = "SELECT 1 FROM Flight WHERE fnum = ?";
+	static final String PASSENGER_COUNT = "SELECT COUNT(*) FROM Reservation WHERE fid = ? AND status = ?";
+	// one pass over Repairs, for the plain schema
+	static final String REPAIRS_PER_YEAR = "SELECT CAST(EXTRACT (year FROM R.repair_date) AS INTEGER) as \"Year\", count(R.rid) FROM Repairs R GROUP BY \"Year\" ORDER BY count ASC";
+	// a range on repair_date per year, so on the partitioned schema each
+	// year reads only its own Repairs partition
+	static final String REPAIRS_PER_YEAR_RANGES = "SELECT Y.year as \"Year\", count(R.rid) FROM generate_series("
+		+ "(SELECT CAST(EXTRACT (year FROM min(repair_date)) AS INTEGER) FROM Repairs), "
+		+ "(SELECT CAST(EXTRACT (year FROM max(repair_date)) AS INTEGER) FROM Repairs)) AS Y(year) "
+		+ "JOIN Repairs R ON R.repair_date >= make_date(Y.year, 1, 1) AND R.repair_date < make_date(Y.year + 1, 1, 1) "
+		+ "GROUP BY Y.year ORDER BY count ASC";
+	// seats taken or given back by a reservation write; a count that
+	// drifted low is left for the reconciler instead of failing the write
+	static final String ADD_SOLD = "UPDATE Flight SET num_sold = GREATEST(num_sold + ?, 0) WHERE fnum = ?";
+	static final String REPAIRS_PARTITIONED = "SELECT relkind = 'p' FROM pg_class WHERE oid = to_regclass('repairs')";
+
+	private final DBproject esql;
+	private volatile Boolean partitioned = null;
+
+	public PostgresFlightStore(DBproject esql) {
+		this.esql = esql;
+	}
+
+	private AdmissionController.Ticket booking() throws SQLException {
+		return esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+	}
+
+	private AdmissionController.Ticket report(int weight) throws SQLException {
+		return esql.getAdmission().enter(AdmissionController.OpClass.REPORT, weight);
+	}
+
+	private void update(final String sql, final Object... args) throws SQLException {
+		esql.getKeeper().call(new ConnectionKeeper.Call<Void>() {
+			public Void run() throws SQLException {
+				AdmissionController.Ticket ticket = booking();
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), sql);
+					for (int i = 0; i < args.length; i++) {
+						stmt.setObject(i + 1, args[i]);
+					}
+					stmt.executeUpdate();
+					return null;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, false);
+	}
+
+	public void addPlane(int id, String make, String model, int age, int seats) throws SQLException {
+		update("INSERT INTO Plane (id, make, model, age, seats) VALUES (?, ?, ?, ?, ?)", id, make, model, age, seats);
+	}
+
+	public void addPilot(int id, String fullname, String nationality) throws SQLException {
+		update("INSERT INTO Pilot (id, fullname, nationality) VALUES (?, ?, ?)", id, fullname, nationality);
+	}
+
+	public void addFlight(int fnum, int cost, int numSold, int numStops, String departure, String arrival,
+		String arrivalAirport, String departureAirport) throws SQLException {
+		update("INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES (?, ?, ?, ?, CAST(? AS DATE), CAST(? AS DATE), ?, ?)",
+			fnum, cost, numSold, numStops, departure, arrival, arrivalAirport, departureAirport);
+	}
+
+	public void addTechnician(int id, String fullName) throws SQLException {
+		update("INSERT INTO Technician (id, full_name) VALUES (?, ?)", id, fullName);
+	}
+
+	public String findReservationStatus(final int cid, final int fid) throws SQLException {
+		return esql.getKeeper().call(new ConnectionKeeper.Call<String>() {
+			public String run() throws SQLException {
+				AdmissionController.Ticket ticket = booking();
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), RESERVATION_STATUS);
+					stmt.setInt(1, cid);
+					stmt.setInt(2, fid);
+					ResultSet rs = stmt.executeQuery();
+					return rs.next() ? rs.getString(1) : null;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+	}
+
+	/*
+	 * Runs the work in a transaction of its own, or in the caller's when
+	 * the connection is already in one (e.g. SeatMaps.reserve).
+	 */
+	private void transaction(final Work work) throws SQLException {
+		esql.getKeeper().call(new ConnectionKeeper.Call<Void>() {
+			public Void run() throws SQLException {
+				AdmissionController.Ticket ticket = booking();
+				Connection conn = esql.getConnection();
+				boolean autoCommit = conn.getAutoCommit();
+				boolean committed = false;
+				try {
+					conn.setAutoCommit(false);
+					work.run(ticket, conn);
+					if (autoCommit) {
+						conn.commit();
+					}
+					committed = true;
+					return null;
+				}finally{
+					if (autoCommit) {
+						if (!committed) {
+							try {
+								conn.rollback();
+							}catch (SQLException e) {
+								// the original exception is reported
+							}
+						}
+						conn.setAutoCommit(true);
+					}
+					ticket.close();
+				}
+			}
+		}, false);
+	}
+
+	private interface Work {
+		void run(AdmissionController.Ticket ticket, Connection conn) throws SQLException;
+	}
+
+	private static void addSold(AdmissionController.Ticket ticket, Connection conn, int fid, int seats) throws SQLException {
+		if (seats != 0) {
+			PreparedStatement stmt = ticket.prepare(conn, ADD_SOLD);
+			stmt.setInt(1, seats);
+			stmt.setInt(2, fid);
+			stmt.executeUpdate();
+		}
+	}
+
+	public void addReservation(final int rnum, final int cid, final int fid, final String status) throws SQLException {
+		transaction(new Work() {
+			public void run(AdmissionController.Ticket ticket, Connection conn) throws SQLException {
+				PreparedStatement stmt = ticket.prepare(conn, "INSERT INTO Reservation (rnum, cid, fid, status) VALUES (?, ?, ?, ?)");
+				stmt.setInt(1, rnum);
+				stmt.setInt(2, cid);
+				stmt.setInt(3, fid);
+				stmt.setString(4, status);
+				stmt.executeUpdate();
+				addSold(ticket, conn, fid, "R".equals(status) ? 1 : 0);
+			}
+		});
+	}
+
+	public void updateReservationStatus(final int cid, final int fid, final String status) throws SQLException {
+		transaction(new Work() {
+			public void run(AdmissionController.Ticket ticket, Connection conn) throws SQLException {
+				PreparedStatement stmt = ticket.prepare(conn, "SELECT status FROM Reservation WHERE cid = ? AND fid = ? FOR UPDATE");
+				stmt.setInt(1, cid);
+				stmt.setInt(2, fid);
+				ResultSet rs = stmt.executeQuery();
+				int seats = 0;
+				while (rs.next()) {
+					seats += ("R".equals(status) ? 1 : 0) - ("R".equals(rs.getString(1)) ? 1 : 0);
+				}
+				stmt = ticket.prepare(conn, "UPDATE Reservation SET status = ? WHERE cid = ? AND fid = ?");
+				stmt.setString(1, status);
+				stmt.setInt(2, cid);
+				stmt.setInt(3, fid);
+				stmt.executeUpdate();
+				addSold(ticket, conn, fid, seats);
+			}
+		});
+	}
+
+	public Integer availableSeats(final int fnum, final String departure) throws SQLException {
+		return esql.getKeeper().call(new ConnectionKeeper.Call<Integer>() {
+			public Integer run() throws SQLException {
+				AdmissionController.Ticket ticket = booking();
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), AVAILABLE_SEATS);
+					stmt.setInt(1, fnum);
+					stmt.setString(2, departure);
+					ResultSet rs = stmt.executeQuery();
+					return rs.next() ? rs.getInt(1) : null;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+	}
+
+	public List<int[]> repairsPerPlane() throws SQLException {
+		return pairs("SELECT P.id, count(R.rid) FROM Plane P, Repairs R WHERE P.id = R.plane_id GROUP BY P.id ORDER BY count DESC");
+	}
+
+	public List<int[]> repairsPerYear() throws SQLException {
+		return pairs(isPartitioned() ? REPAIRS_PER_YEAR_RANGES : REPAIRS_PER_YEAR);
+	}
+
+	/*
+	 * True when Repairs is a partitioned table, i.e. the database was
+	 * created with create_partitioned.sql. Looked up once.
+	 */
+	private boolean isPartitioned() throws SQLException {
+		Boolean p = partitioned;
+		if (p == null) {
+			p = esql.getKeeper().call(new ConnectionKeeper.Call<Boolean>() {
+				public Boolean run() throws SQLException {
+					AdmissionController.Ticket ticket = booking();
+					try {
+						ResultSet rs = ticket.prepare(esql.getConnection(), REPAIRS_PARTITIONED).executeQuery();
+						return rs.next() && rs.getBoolean(1);
+					}finally{
+						ticket.close();
+					}
+				}
+			}, true);
+			partitioned = p;
+		}
+		return p;
+	}
+
+	private List<int[]> pairs(final String sql) throws SQLException {
+		return esql.getKeeper().call(new ConnectionKeeper.Call<List<int[]>>() {
+			public List<int[]> run() throws SQLException {
+				AdmissionController.Ticket ticket = report(2);
+				try {
+					ResultSet rs = ticket.prepare(esql.getConnection(), sql).executeQuery();
+					List<int[]> result = new ArrayList<int[]>();
+					while (rs.next()) {
+						result.add(new int[] { rs.getInt(1), rs.getInt(2) });
+					}
+					return result;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+	}
+
+	public boolean flightExists(final int fnum) throws SQLException {
+		return esql.getKeeper().call(new ConnectionKeeper.Call<Boolean>() {
+			public Boolean run() throws SQLException {
+				AdmissionController.Ticket ticket = booking();
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), FLIGHT_EXISTS);
+					stmt.setInt(1, fnum);
+					return stmt.executeQuery().next();
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+	}
+
+	public int passengerCount(final int fid, final String status) throws SQLException {
+		return esql.getKeeper().call(new ConnectionKeeper.Call<Integer>() {
+			public Integer run() throws SQLException {
+				// counted through the reservation_fid (fid, status) index, but a busy
+				// flight has many rows to count, so it is admitted as a light report
+				AdmissionController.Ticket ticket = report(1);
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), PASSENGER_COUNT);
+					stmt.setInt(1, fid);
+					stmt.setString(2, status);
+					ResultSet rs = stmt.executeQuery();
+					rs.next();
+					return rs.getInt(1);
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+	}
+}
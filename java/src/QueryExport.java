@@ -0,0 +1,261 @@
+/*
+ * Streaming query export for DBproject
+ * =============================
+ *
+ * Wraps a SELECT in COPY (...) TO STDOUT and streams the rows straight
+ * to a file, optionally gzip compressed.
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOut;
+
+/**
+ * This class exports the result of any SELECT through the driver's COPY API.
+ * Rows are copied into a single fixed size buffer which is drained to the
+ * file channel whenever it fills up, so the result set is never
+ * materialized in the JVM.
+ *
+ * The query is pasted into the COPY command, so it is checked before that:
+ * it must be a single SELECT with balanced parentheses and no comments, and
+ * the server must be able to prepare and describe it on its own. The export
+ * then runs in a READ ONLY transaction, so a data modifying WITH cannot
+ * write either.
+ *
+ * An export is admitted as report work. COPY has no Statement for the
+ * driver's query timeout to act on, so the server side statement_timeout
+ * is set for the transaction instead, and cancellation goes through the
+ * connection.
+ *
+ * An export that fails or is cancelled closes its streams and deletes the
+ * file it was writing, so only finished exports are left behind.
+ *
+ */
+
+public class QueryExport {
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private long bytes = 0;
+	private long rows = 0;
+	private long elapsedNanos = 0;
+
+	public long getBytes() { return bytes; }
+	public long getRows() { return rows; }
+	public double getSeconds() { return elapsedNanos / 1e9; }
+
+	/**
+	 * @return the export throughput in MB/s of uncompressed COPY output
+	 */
+	public double getMegabytesPerSecond() {
+		return elapsedNanos == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / getSeconds();
+	}
+
+	/**
+	 * Method to stream the result of a query into a file.
+	 *
+	 * @param esql the database connection wrapper
+	 * @param query the SELECT (or WITH ... SELECT) to export
+	 * @param target the output file, overwritten if it exists
+	 * @param binary true for the COPY binary format, false for CSV with a header
+	 * @param gzip true to gzip compress the output
+	 * @return the export statistics
+	 * @throws java.sql.SQLException when the query fails
+	 * @throws java.io.IOException when the file cannot be written
+	 */
+	public static QueryExport export(DBproject esql, String query, File target, boolean binary, boolean gzip) throws SQLException, IOException {
+		String select = checkSelect(query);
+		String copy = "COPY (" + select + ") TO STDOUT WITH " + (binary ? "(FORMAT binary)" : "(FORMAT csv, HEADER)");
+
+		Connection conn = esql.getConnection();
+		CopyManager copyApi = conn.unwrap(PGConnection.class).getCopyAPI();
+		QueryExport stats = new QueryExport();
+		long start = System.nanoTime();
+
+		AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.REPORT, 2);
+		boolean autoCommit = conn.getAutoCommit();
+		boolean committed = false;
+		FileOutputStream file = null;
+		OutputStream compressed = null;
+		boolean written = false;		// target was opened, and truncated
+		CopyOut out = null;
+		try {
+			conn.setAutoCommit(false);
+			Statement session = ticket.create(conn);
+			session.execute("SET TRANSACTION READ ONLY");
+			// SET LOCAL ends with the transaction, nothing to reset afterwards
+			session.execute("SET LOCAL statement_timeout = " + (ticket.getTimeoutSeconds() * 1000));
+			describe(ticket, conn, select);
+			file = new FileOutputStream(target);
+			written = true;
+			FileChannel channel = file.getChannel();
+			if (gzip) {
+				compressed = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			ticket.copying(conn);
+			out = copyApi.copyOut(copy);
+			byte[] row;
+			while ((row = out.readFromCopy()) != null) {
+				int offset = 0;
+				while (offset < row.length) {
+					int n = Math.min(buffer.remaining(), row.length - offset);
+					buffer.put(row, offset, n);
+					offset += n;
+					if (!buffer.hasRemaining()) {
+						drain(buffer, channel, compressed);
+					}
+				}
+				stats.bytes += row.length;
+				stats.rows++;
+			}
+			drain(buffer, channel, compressed);
+			out = null;
+			if (compressed != null) {
+				compressed.close();
+				compressed = null;
+			}
+			file.close();
+			file = null;
+			conn.commit();
+			committed = true;
+		}catch (SQLException e) {
+			esql.getKeeper().failed(conn, e);
+			throw e;
+		}finally{
+			// cleanup after a failure must not replace the original exception
+			if (out != null) {
+				try {
+					if (out.isActive()) {
+						out.cancelCopy();
+					}
+				}catch (SQLException e) {
+					// the rollback below ends it
+				}
+			}
+			if (compressed != null) {
+				// frees the native Deflater now instead of at GC
+				try {
+					compressed.close();
+				}catch (IOException e) {
+					// the export already failed
+				}
+			}
+			if (file != null) {
+				try {
+					file.close();
+				}catch (IOException e) {
+					// the export already failed
+				}
+			}
+			// a truncated file must not look like a finished export
+			if (written && !committed && target.exists() && !target.delete()) {
+				System.err.println("Export: could not delete the incomplete " + target);
+			}
+			try {
+				if (!committed) {
+					conn.rollback();
+				}
+				conn.setAutoCommit(autoCommit);
+			}catch (SQLException e) {
+				System.err.println("Export: could not end the transaction: " + e.getMessage());
+			}
+			ticket.close();
+		}
+		stats.elapsedNanos = System.nanoTime() - start;
+		// the CSV header line and the binary file trailer each arrive as one extra message
+		stats.rows = Math.max(0, stats.rows - 1);
+		return stats;
+	}//end export
+
+	/**
+	 * Method to check that a query can be pasted into COPY (...): one SELECT
+	 * (or WITH ... SELECT), no statement separator, no comment that could
+	 * hide the rest of the COPY command, and parentheses that balance, so it
+	 * cannot close the COPY's own parenthesis early. Quoted strings and
+	 * identifiers are skipped; an E'' string or a dollar quoted one that
+	 * fools this scan still has to pass describe().
+	 *
+	 * @param query the query as entered
+	 * @return the query without surrounding blanks and trailing semicolons
+	 * @throws java.lang.IllegalArgumentException when the query is rejected
+	 */
+	static String checkSelect(String query) {
+		String select = query.trim();
+		while (select.endsWith(";")) {
+			select = select.substring(0, select.length() - 1).trim();
+		}
+		String lower = select.toLowerCase();
+		if (!lower.startsWith("select") && !lower.startsWith("with")) {
+			throw new IllegalArgumentException("Only SELECT queries can be exported");
+		}
+		int depth = 0;
+		char quote = 0;
+		for (int i = 0; i < select.length(); i++) {
+			char c = select.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;	// a doubled quote reopens right away
+				}
+				continue;
+			}
+			char next = i + 1 < select.length() ? select.charAt(i + 1) : 0;
+			if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == ';') {
+				throw new IllegalArgumentException("Only a single query can be exported, remove the ';'");
+			} else if ((c == '-' && next == '-') || (c == '/' && next == '*')) {
+				throw new IllegalArgumentException("Comments are not allowed in an exported query");
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')' && --depth < 0) {
+				throw new IllegalArgumentException("Unbalanced parentheses in the query");
+			}
+		}
+		if (quote != 0) {
+			throw new IllegalArgumentException("Unterminated quote in the query");
+		}
+		if (depth != 0) {
+			throw new IllegalArgumentException("Unbalanced parentheses in the query");
+		}
+		return select;
+	}
+
+	/*
+	 * Has the server parse and describe the query on its own, without
+	 * running it. Anything that is not one complete statement returning
+	 * rows fails here instead of inside the COPY.
+	 */
+	private static void describe(AdmissionController.Ticket ticket, Connection conn, String select) throws SQLException {
+		PreparedStatement stmt = ticket.prepare(conn, select);
+		if (stmt.getMetaData() == null) {
+			throw new IllegalArgumentException("Only SELECT queries can be exported");
+		}
+	}
+
+	private static void drain(ByteBuffer buffer, FileChannel channel, OutputStream compressed) throws IOException {
+		buffer.flip();
+		if (compressed != null) {
+			compressed.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		} else {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		buffer.clear();
+	}
+}
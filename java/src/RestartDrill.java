@@ -0,0 +1,287 @@
+/*
+ * Restart drill for DBproject
+ * =============================
+ *
+ * Reads through DBproject's connection while the database is restarted
+ * and reports how long the program took to recover.
+ *
+ */
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class runs a read through ConnectionKeeper.call() every
+ * READ_INTERVAL_MILLIS, the way the menu does, and counts the reads that
+ * succeeded and failed and the longest time without a successful read.
+ * At the end it prints those next to the keeper's own recovery times.
+ *
+ * Against a real server the restarts come from outside, e.g. from
+ * postgresql/restartDrill.sh, which stops the server with pg_ctl -m
+ * immediate (like a crash: every backend is killed) and starts it again.
+ *
+ * In simulate mode no server is needed. A stand-in JDBC driver plays a
+ * server that goes down for the given time: open connections fail with
+ * SQLSTATE 08006 from then on, new ones are refused with 08001 until it
+ * is back. This checks the keeper's reconnect and retry logic, not the
+ * PostgreSQL driver's own error handling.
+ *
+ */
+
+public class RestartDrill {
+	static final long READ_INTERVAL_MILLIS = 100;
+	// time the simulated server stays up between restarts
+	static final long SIMULATED_UP_MILLIS = 3000;
+
+	private final DBproject esql;
+	private long reads = 0;
+	private long failed = 0;
+	private long longestGapMillis = 0;
+	private final List<String> errors = new ArrayList<String>();
+
+	RestartDrill(DBproject esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to read until the time is up.
+	 *
+	 * @param millis how long to run
+	 */
+	void run(long millis) throws InterruptedException {
+		ConnectionKeeper keeper = esql.getKeeper();
+		ConnectionKeeper.Call<Integer> read = new ConnectionKeeper.Call<Integer>() {
+			public Integer run() throws SQLException {
+				Statement stmt = esql.getConnection().createStatement();
+				try {
+					ResultSet rs = stmt.executeQuery("SELECT 1");
+					rs.next();
+					return rs.getInt(1);
+				}finally{
+					stmt.close();
+				}
+			}
+		};
+		long end = System.currentTimeMillis() + millis;
+		long lastOk = System.currentTimeMillis();
+		while (System.currentTimeMillis() < end) {
+			keeper.setBusy(true);
+			try {
+				keeper.call(read, true);
+				long now = System.currentTimeMillis();
+				longestGapMillis = Math.max(longestGapMillis, now - lastOk);
+				lastOk = now;
+				reads++;
+			}catch (SQLException e) {
+				failed++;
+				errors.add(e.getMessage());
+			}finally{
+				keeper.setBusy(false);
+			}
+			Thread.sleep(READ_INTERVAL_MILLIS);
+		}
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("reads ok           ").append(reads).append('\n');
+		sb.append("reads failed       ").append(failed).append('\n');
+		sb.append("longest gap        ").append(longestGapMillis).append(" ms between successful reads\n");
+		for (String e : errors) {
+			sb.append("  ").append(e).append('\n');
+		}
+		sb.append(esql.getKeeper());
+		return sb.toString();
+	}
+
+	/**
+	 * Usage: java RestartDrill <dbname> <port> <user> [seconds]
+	 *    or: java RestartDrill simulate [outage ms] [restarts]
+	 */
+	public static void main(String[] args) throws Exception {
+		boolean simulate = args.length >= 1 && args[0].equals("simulate");
+		if (simulate ? args.length > 3 : args.length < 3 || args.length > 4) {
+			System.err.println("Usage: java [-classpath <classpath>] " + RestartDrill.class.getName() + " <dbname> <port> <user> [seconds]");
+			System.err.println("   or: java [-classpath <classpath>] " + RestartDrill.class.getName() + " simulate [outage ms] [restarts]");
+			System.exit(1);
+		}
+		DBproject esql;
+		long millis;
+		Simulator server = null;
+		if (simulate) {
+			long outage = args.length > 1 ? Long.parseLong(args[1]) : 1500;
+			int restarts = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+			server = new Simulator(outage, restarts);
+			server.install();
+			esql = new DBproject("simulated", "0", "drill", "", true);
+			millis = restarts * (outage + SIMULATED_UP_MILLIS) + SIMULATED_UP_MILLIS;
+		} else {
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "", true);
+			millis = (args.length > 3 ? Long.parseLong(args[3]) : 60) * 1000;
+		}
+		esql.connect();
+		esql.getKeeper().start(Integer.getInteger("dbproject.keepalive", 10));
+		RestartDrill drill = new RestartDrill(esql);
+		if (server != null) {
+			server.start();
+		}
+		System.out.println("Reading every " + READ_INTERVAL_MILLIS + " ms for " + millis / 1000 + " s");
+		drill.run(millis);
+		System.out.println(drill);
+		esql.getKeeper().close();
+	}
+
+	/*
+	 * The stand-in server for simulate mode. Every restart kills the open
+	 * connections (a new generation) and refuses new ones for the outage.
+	 */
+	private static class Simulator extends Thread {
+		private final long outage;
+		private final int restarts;
+		private volatile boolean up = true;
+		private volatile int generation = 0;
+
+		Simulator(long outage, int restarts) {
+			super("simulated-server");
+			setDaemon(true);
+			this.outage = outage;
+			this.restarts = restarts;
+		}
+
+		public void run() {
+			try {
+				for (int i = 1; i <= restarts; i++) {
+					Thread.sleep(SIMULATED_UP_MILLIS);
+					System.out.println("restart " + i + ": server down for " + outage + " ms");
+					up = false;
+					generation++;
+					Thread.sleep(outage);
+					up = true;
+				}
+			}catch (InterruptedException e) {
+				// drill over
+			}
+		}
+
+		void install() throws SQLException {
+			// the real driver would answer first and be refused
+			for (Driver d : Collections.list(DriverManager.getDrivers())) {
+				DriverManager.deregisterDriver(d);
+			}
+			DriverManager.registerDriver(new Driver() {
+				public Connection connect(String url, Properties info) throws SQLException {
+					if (!up) {
+						throw new SQLException("Connection refused (simulated)", "08001");
+					}
+					return connection(generation);
+				}
+				public boolean acceptsURL(String url) {
+					return true;
+				}
+				public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+					return new DriverPropertyInfo[0];
+				}
+				public int getMajorVersion() {
+					return 1;
+				}
+				public int getMinorVersion() {
+					return 0;
+				}
+				public boolean jdbcCompliant() {
+					return false;
+				}
+				public Logger getParentLogger() {
+					return null;
+				}
+			});
+		}
+
+		private boolean alive(int mine) {
+			return up && mine == generation;
+		}
+
+		private Connection connection(final int mine) {
+			return (Connection) Proxy.newProxyInstance(RestartDrill.class.getClassLoader(),
+				new Class<?>[] { Connection.class, PGConnection.class }, new InvocationHandler() {
+				private int threshold = 5;
+				public Object invoke(Object proxy, Method m, Object[] a) throws Throwable {
+					String name = m.getName();
+					if (name.equals("isValid")) {
+						return alive(mine);
+					}
+					if (name.equals("isClosed") || name.equals("getAutoCommit")) {
+						return name.equals("getAutoCommit");
+					}
+					if (name.equals("unwrap")) {
+						return proxy;
+					}
+					if (name.equals("getPrepareThreshold")) {
+						return threshold;
+					}
+					if (name.equals("setPrepareThreshold")) {
+						threshold = (Integer) a[0];
+						return null;
+					}
+					if (name.equals("createStatement")) {
+						return statement(mine);
+					}
+					if (name.equals("hashCode")) {
+						return System.identityHashCode(proxy);
+					}
+					if (name.equals("equals")) {
+						return proxy == a[0];
+					}
+					return null;
+				}
+			});
+		}
+
+		// answers SELECT 1 while its connection's generation is up
+		private Statement statement(final int mine) {
+			return (Statement) Proxy.newProxyInstance(RestartDrill.class.getClassLoader(),
+				new Class<?>[] { Statement.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method m, Object[] a) throws Throwable {
+					if (m.getName().equals("executeQuery")) {
+						if (!alive(mine)) {
+							throw new SQLException("An I/O error occurred while sending to the backend (simulated)", "08006");
+						}
+						return result();
+					}
+					return null;
+				}
+			});
+		}
+
+		private ResultSet result() {
+			return (ResultSet) Proxy.newProxyInstance(RestartDrill.class.getClassLoader(),
+				new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method m, Object[] a) throws Throwable {
+					if (m.getName().equals("next")) {
+						return true;
+					}
+					if (m.getName().equals("getInt")) {
+						return 1;
+					}
+					return null;
+				}
+			});
+		}
+	}
+}
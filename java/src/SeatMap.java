@@ -0,0 +1,119 @@
+/*
+ * Per-flight seat map for DBproject
+ * =============================
+ *
+ * A lock-free bitset of the seats on one flight.
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class tracks which seats of a flight are taken, one bit per seat in
+ * an AtomicLongArray. Seats are numbered from 1 to the plane's capacity.
+ * Claiming and releasing are single compare-and-set operations on one
+ * 64 seat word, so concurrent bookers never block each other; a booker
+ * that loses a race simply retries on the freshly read word.
+ *
+ */
+
+public class SeatMap {
+	private final int seats;
+	private final AtomicLongArray words;
+
+	public SeatMap(int seats) {
+		this.seats = seats;
+		this.words = new AtomicLongArray((seats + 63) >>> 6);
+	}
+
+	public int getSeats() {
+		return seats;
+	}
+
+	/**
+	 * @return the bits of the given word that stand for real seats
+	 */
+	private long validMask(int word) {
+		int remaining = seats - (word << 6);
+		return remaining >= 64 ? -1L : (1L << remaining) - 1;
+	}
+
+	/**
+	 * Method to claim one particular seat.
+	 *
+	 * @param seat the seat number, from 1 to getSeats()
+	 * @return true if the seat was free and is now taken by the caller
+	 */
+	public boolean claim(int seat) {
+		if (seat < 1 || seat > seats) {
+			return false;
+		}
+		int word = (seat - 1) >>> 6;
+		long bit = 1L << ((seat - 1) & 63);
+		while (true) {
+			long current = words.get(word);
+			if ((current & bit) != 0) {
+				return false;
+			}
+			if (words.compareAndSet(word, current, current | bit)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Method to claim the lowest numbered free seat.
+	 *
+	 * @return the seat number claimed, or -1 if the flight is full
+	 */
+	public int claimNext() {
+		for (int word = 0; word < words.length(); word++) {
+			long mask = validMask(word);
+			long current = words.get(word);
+			long free;
+			while ((free = ~current & mask) != 0) {
+				long bit = free & -free;
+				if (words.compareAndSet(word, current, current | bit)) {
+					return (word << 6) + Long.numberOfTrailingZeros(bit) + 1;
+				}
+				current = words.get(word);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Method to give a seat back.
+	 *
+	 * @param seat the seat number to release
+	 */
+	public void release(int seat) {
+		if (seat < 1 || seat > seats) {
+			return;
+		}
+		int word = (seat - 1) >>> 6;
+		long bit = 1L << ((seat - 1) & 63);
+		while (true) {
+			long current = words.get(word);
+			if ((current & bit) == 0 || words.compareAndSet(word, current, current & ~bit)) {
+				return;
+			}
+		}
+	}
+
+	public boolean isTaken(int seat) {
+		return seat >= 1 && seat <= seats && (words.get((seat - 1) >>> 6) & (1L << ((seat - 1) & 63))) != 0;
+	}
+
+	/**
+	 * @return the number of free seats at the time of the call
+	 */
+	public int available() {
+		int taken = 0;
+		for (int word = 0; word < words.length(); word++) {
+			taken += Long.bitCount(words.get(word));
+		}
+		return seats - taken;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Seat assignment for DBproject
+ * =============================
+ *
+ * Keeps a SeatMap for every flight and persists the seats handed out to
+ * the ReservationSeat table.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class owns the seat maps of all flights. The maps are rebuilt from
+ * FlightInfo/Plane (capacity) and ReservationSeat (taken seats) at startup;
+ * flights added later are loaded the first time they are asked for.
+ *
+ * A reserved ('R') reservation holds a place on the plane whether or not
+ * it has a seat, but only ReservationSeat says which seats are taken. So
+ * before a map is built, reserved reservations without a seat (all of the
+ * loaded data, and bookings made by older clients) are given the lowest
+ * free seats in ReservationSeat, in rnum order. A flight that is full by
+ * its reserved count then has no free seat left. Reservations beyond the
+ * plane's capacity stay without a seat.
+ *
+ * A seat is claimed in memory first and then recorded with a plain INSERT.
+ * ReservationSeat has a UNIQUE (fid, seat) constraint, so another process
+ * assigning from its own maps can never double book a seat: the loser of
+ * such a race gets a unique violation and moves on to the next free seat.
+ *
+ * Every method's statements run under an admission ticket: loading all
+ * maps as a report, everything else as a booking. Errors are reported to
+ * the ConnectionKeeper, which replaces the interactive connection when
+ * they show it was lost.
+ *
+ */
+
+public class SeatMaps {
+	private static final String UNIQUE_VIOLATION = "23505";
+	private static final String SEAT_TAKEN = "seat_taken";	// UNIQUE (fid, seat) in create.sql
+
+	// seats for reserved reservations that have none, optionally for one flight
+	private static final String BACKFILL =
+		"INSERT INTO ReservationSeat (rnum, fid, seat) " +
+		"SELECT N.rnum, N.fid, F.seat FROM " +
+		"(SELECT R.rnum, R.fid, row_number() OVER (PARTITION BY R.fid ORDER BY R.rnum) AS k FROM Reservation R " +
+		"WHERE R.status = 'R' AND (R.fid = ? OR ? IS NULL) AND NOT EXISTS (SELECT 1 FROM ReservationSeat S WHERE S.rnum = R.rnum)) N, " +
+		"(SELECT C.fid, G.seat, row_number() OVER (PARTITION BY C.fid ORDER BY G.seat) AS k FROM " +
+		"(SELECT I.flight_id AS fid, MIN(P.seats) AS seats FROM FlightInfo I, Plane P WHERE I.plane_id = P.id " +
+		"AND (I.flight_id = ? OR ? IS NULL) GROUP BY I.flight_id) C, generate_series(1, C.seats) G(seat) " +
+		"WHERE NOT EXISTS (SELECT 1 FROM ReservationSeat S WHERE S.fid = C.fid AND S.seat = G.seat)) F " +
+		"WHERE F.fid = N.fid AND F.k = N.k";
+
+	private final AdmissionController admission;
+	private final ConnectionKeeper keeper;
+	private final ConcurrentHashMap<Integer, SeatMap> maps = new ConcurrentHashMap<Integer, SeatMap>();
+
+	public SeatMaps(AdmissionController admission, ConnectionKeeper keeper) {
+		this.admission = admission;
+		this.keeper = keeper;
+	}
+
+	private SQLException failed(Connection conn, SQLException e) {
+		keeper.failed(conn, e);
+		return e;
+	}
+
+	private AdmissionController.Ticket booking() throws SQLException {
+		return admission.enter(AdmissionController.OpClass.BOOKING);
+	}
+
+	/**
+	 * Method to rebuild every flight's seat map from the database.
+	 *
+	 * @param conn the connection to read from
+	 * @return the number of flights with a seat map
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	public int load(Connection conn) throws SQLException {
+		AdmissionController.Ticket ticket = admission.enter(AdmissionController.OpClass.REPORT, 2);
+		try {
+			backfill(ticket, conn, null);
+			Statement stmt = ticket.create(conn);
+			ResultSet rs = stmt.executeQuery("SELECT I.flight_id, MIN(P.seats) FROM FlightInfo I, Plane P WHERE I.plane_id = P.id GROUP BY I.flight_id");
+			while (rs.next()) {
+				maps.put(rs.getInt(1), new SeatMap(rs.getInt(2)));
+			}
+			rs = stmt.executeQuery("SELECT fid, seat FROM ReservationSeat");
+			while (rs.next()) {
+				SeatMap map = maps.get(rs.getInt(1));
+				if (map != null) {
+					map.claim(rs.getInt(2));
+				}
+			}
+		}catch (SQLException e) {
+			throw failed(conn, e);
+		}finally{
+			ticket.close();
+		}
+		return maps.size();
+	}
+
+	/**
+	 * Method to give reserved reservations without a seat one, see the
+	 * class comment. Another process backfilling at the same time can make
+	 * this fail with a unique violation; its seats then count just the same.
+	 *
+	 * @param ticket the caller's ticket, which the statement runs under
+	 * @param conn the connection to write with; inside a transaction the
+	 *             backfill is part of it, under a savepoint
+	 * @param fid the flight, or null for all flights
+	 * @return the number of seats given out
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	int backfill(AdmissionController.Ticket ticket, Connection conn, Integer fid) throws SQLException {
+		Savepoint savepoint = conn.getAutoCommit() ? null : conn.setSavepoint();
+		PreparedStatement stmt = ticket.prepare(conn, BACKFILL);
+		try {
+			for (int i = 1; i <= 4; i++) {
+				stmt.setObject(i, fid, Types.INTEGER);
+			}
+			int n = stmt.executeUpdate();
+			if (savepoint != null) {
+				conn.releaseSavepoint(savepoint);
+			}
+			return n;
+		}catch (SQLException e) {
+			if (!UNIQUE_VIOLATION.equals(e.getSQLState())) {
+				throw e;
+			}
+			if (savepoint != null) {
+				conn.rollback(savepoint);
+			}
+			return 0;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to book a reserved reservation together with its seat, in one
+	 * transaction, so a seat that cannot be recorded leaves no reservation
+	 * behind without one.
+	 *
+	 * @param conn the connection store writes to
+	 * @param store the store to add the reservation with
+	 * @param rnum the reservation number
+	 * @param cid the customer
+	 * @param fid the flight number
+	 * @param seat the requested seat, or 0 for the next free seat
+	 * @return the seat assigned
+	 * @throws java.sql.SQLException when either insert fails; nothing is booked then
+	 */
+	public int reserve(Connection conn, FlightStore store, int rnum, int cid, int fid, int seat) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		boolean committed = false;
+		int assigned = 0;
+		conn.setAutoCommit(false);
+		try {
+			store.addReservation(rnum, cid, fid, "R");
+			assigned = assign(conn, rnum, fid, seat);
+			conn.commit();
+			committed = true;
+			return assigned;
+		}finally{
+			if (!committed) {
+				try {
+					conn.rollback();
+				}catch (SQLException e) {
+					// the server rolls back a transaction whose connection is gone
+				}
+				if (assigned > 0) {
+					forget(fid, assigned);
+				}
+			}
+			try {
+				conn.setAutoCommit(autoCommit);
+			}catch (SQLException e) {
+				System.err.println("Seats: could not restore autocommit: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Method to find a flight's seat map, loading it if this is the first
+	 * time the flight is seen.
+	 *
+	 * @param conn the connection to load with
+	 * @param fid the flight number
+	 * @return the seat map, or null if no plane is assigned to the flight
+	 * @throws java.sql.SQLException when the flight cannot be read
+	 */
+	public SeatMap get(Connection conn, int fid) throws SQLException {
+		SeatMap map = maps.get(fid);
+		if (map != null) {
+			return map;
+		}
+		AdmissionController.Ticket ticket = booking();
+		try {
+			PreparedStatement stmt = ticket.prepare(conn, "SELECT MIN(P.seats) FROM FlightInfo I, Plane P WHERE I.flight_id = ? AND I.plane_id = P.id");
+			stmt.setInt(1, fid);
+			ResultSet rs = stmt.executeQuery();
+			int seats = rs.next() ? rs.getInt(1) : 0;
+			if (seats <= 0) {
+				return null;
+			}
+			map = new SeatMap(seats);
+			backfill(ticket, conn, fid);
+			stmt = ticket.prepare(conn, "SELECT seat FROM ReservationSeat WHERE fid = ?");
+			stmt.setInt(1, fid);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				map.claim(rs.getInt(1));
+			}
+		}catch (SQLException e) {
+			throw failed(conn, e);
+		}finally{
+			ticket.close();
+		}
+		SeatMap existing = maps.putIfAbsent(fid, map);
+		return existing != null ? existing : map;
+	}
+
+	/**
+	 * Method to give a reservation a seat and record it.
+	 *
+	 * @param conn the connection to record the seat with; if it is inside a
+	 *             transaction the seat is part of that transaction
+	 * @param rnum the reservation number
+	 * @param fid the flight number
+	 * @param seat the requested seat, or 0 for the next free seat
+	 * @return the seat assigned
+	 * @throws java.sql.SQLException when the seat is taken, the flight is full
+	 *         or has no plane, or the seat cannot be recorded
+	 */
+	public int assign(Connection conn, int rnum, int fid, int seat) throws SQLException {
+		SeatMap map = get(conn, fid);
+		if (map == null) {
+			throw new SQLException("Flight " + fid + " has no plane assigned, cannot pick a seat");
+		}
+		while (true) {
+			int claimed;
+			if (seat > 0) {
+				if (seat > map.getSeats()) {
+					throw new SQLException("Flight " + fid + " only has seats 1 to " + map.getSeats());
+				}
+				if (!map.claim(seat)) {
+					throw new SQLException("Seat " + seat + " on flight " + fid + " is already taken");
+				}
+				claimed = seat;
+			} else {
+				claimed = map.claimNext();
+				if (claimed < 0) {
+					throw new SQLException("Flight " + fid + " is full");
+				}
+			}
+
+			AdmissionController.Ticket ticket = booking();
+			try {
+				PreparedStatement stmt = ticket.prepare(conn, "INSERT INTO ReservationSeat (rnum, fid, seat) VALUES (?, ?, ?)");
+				stmt.setInt(1, rnum);
+				stmt.setInt(2, fid);
+				stmt.setInt(3, claimed);
+				stmt.executeUpdate();
+				return claimed;
+			}catch (SQLException e) {
+				keeper.failed(conn, e);
+				boolean seatTaken = UNIQUE_VIOLATION.equals(e.getSQLState()) && e.getMessage() != null && e.getMessage().contains(SEAT_TAKEN);
+				if (!seatTaken) {
+					map.release(claimed);
+					throw e;
+				}
+				// taken by another process: leave it marked and try again
+				if (seat > 0 || !conn.getAutoCommit()) {
+					throw new SQLException("Seat " + claimed + " on flight " + fid + " is already taken", e.getSQLState());
+				}
+			}finally{
+				ticket.close();
+			}
+		}
+	}
+
+	/**
+	 * Method to give a customer's existing reservation on a flight a seat.
+	 *
+	 * @see #assign(Connection, int, int, int)
+	 */
+	public int assignFor(Connection conn, int cid, int fid, int seat) throws SQLException {
+		AdmissionController.Ticket ticket = booking();
+		int rnum;
+		try {
+			PreparedStatement stmt = ticket.prepare(conn, "SELECT rnum FROM Reservation WHERE cid = ? AND fid = ?");
+			stmt.setInt(1, cid);
+			stmt.setInt(2, fid);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) {
+				throw new SQLException("Customer " + cid + " has no reservation on flight " + fid);
+			}
+			rnum = rs.getInt(1);
+		}catch (SQLException e) {
+			throw failed(conn, e);
+		}finally{
+			ticket.close();
+		}
+		return assign(conn, rnum, fid, seat);
+	}
+
+	/**
+	 * Method to give back a seat from the map only, e.g. after the
+	 * transaction that recorded it was rolled back.
+	 */
+	public void forget(int fid, int seat) {
+		SeatMap map = maps.get(fid);
+		if (map != null) {
+			map.release(seat);
+		}
+	}
+
+	/**
+	 * Method to free the seats of a customer's reservations on a flight,
+	 * e.g. when they are cancelled.
+	 *
+	 * @return the number of seats freed
+	 */
+	public int release(Connection conn, int cid, int fid) throws SQLException {
+		AdmissionController.Ticket ticket = booking();
+		int freed = 0;
+		try {
+			PreparedStatement stmt = ticket.prepare(conn, "DELETE FROM ReservationSeat WHERE fid = ? AND rnum IN (SELECT rnum FROM Reservation WHERE cid = ? AND fid = ?) RETURNING seat");
+			stmt.setInt(1, fid);
+			stmt.setInt(2, cid);
+			stmt.setInt(3, fid);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				forget(fid, rs.getInt(1));
+				freed++;
+			}
+		}catch (SQLException e) {
+			throw failed(conn, e);
+		}finally{
+			ticket.close();
+		}
+		return freed;
+	}
+
+	/**
+	 * @return the seat already recorded for a customer on a flight, or 0 if none
+	 */
+	public int seatOf(Connection conn, int cid, int fid) throws SQLException {
+		AdmissionController.Ticket ticket = booking();
+		try {
+			PreparedStatement stmt = ticket.prepare(conn, "SELECT S.seat FROM ReservationSeat S, Reservation R WHERE S.rnum = R.rnum AND R.cid = ? AND R.fid = ?");
+			stmt.setInt(1, cid);
+			stmt.setInt(2, fid);
+			ResultSet rs = stmt.executeQuery();
+			return rs.next() ? rs.getInt(1) : 0;
+		}catch (SQLException e) {
+			throw failed(conn, e);
+		}finally{
+			ticket.close();
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Bounded cache for DBproject
+ * =============================
+ *
+ * Size bounded int keyed cache with W-TinyLFU eviction, used by EntityCache.
+ *
+ */
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches up to a fixed number of values, including "not found"
+ * (null) results, which expire after a while since another process may
+ * insert the row.
+ *
+ * Eviction follows W-TinyLFU. New keys enter a small LRU window; what falls
+ * out of the window competes with the main space's next victim, and only
+ * the one seen more often recently stays. How often a key was seen comes
+ * from a count-min sketch of 4 bit counters that are halved after every
+ * 10 * capacity accesses, so old popularity fades. The main space is a
+ * segmented LRU: keys hit again while on probation move to the protected
+ * segment, which keeps a one-off scan from flushing the hot entries.
+ *
+ * All methods are synchronized; the critical sections are a few map
+ * operations long.
+ *
+ */
+
+public class TinyLfuCache<V> {
+	private static final Object ABSENT = new Object();
+
+	private static class Node {
+		final Object value;		// ABSENT for a cached "not found"
+		final long expires;		// for ABSENT only
+
+		Node(Object value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Result of a lookup: whether the key was cached, and its value, null
+	 * when the row is known not to exist.
+	 */
+	public static class Lookup<V> {
+		public final boolean cached;
+		public final V value;
+
+		Lookup(boolean cached, V value) {
+			this.cached = cached;
+			this.value = value;
+		}
+	}
+
+	private final int windowSize;
+	private final int protectedSize;
+	private final int mainSize;
+	private final long negativeMillis;
+
+	// access ordered, eldest first
+	private final LinkedHashMap<Integer, Node> window = new LinkedHashMap<Integer, Node>(16, 0.75f, true);
+	private final LinkedHashMap<Integer, Node> probation = new LinkedHashMap<Integer, Node>(16, 0.75f, true);
+	private final LinkedHashMap<Integer, Node> protect = new LinkedHashMap<Integer, Node>(16, 0.75f, true);
+
+	private final FrequencySketch sketch;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param capacity the maximum number of keys cached
+	 * @param negativeMillis how long a "not found" is trusted
+	 */
+	public TinyLfuCache(int capacity, long negativeMillis) {
+		int total = Math.max(2, capacity);
+		this.windowSize = Math.max(1, total / 100);
+		this.mainSize = total - windowSize;
+		this.protectedSize = mainSize * 8 / 10;
+		this.negativeMillis = negativeMillis;
+		this.sketch = new FrequencySketch(total);
+	}
+
+	/**
+	 * Method to look a key up, counting the access either way.
+	 *
+	 * @param key the key
+	 * @return whether it was cached and its value
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized Lookup<V> get(int key) {
+		sketch.increment(key);
+		Node e = window.get(key);
+		if (e == null) {
+			e = protect.get(key);
+		}
+		if (e == null) {
+			e = probation.remove(key);
+			if (e != null) {
+				promote(key, e);
+			}
+		}
+		if (e == null || (e.value == ABSENT && e.expires < System.currentTimeMillis())) {
+			misses++;
+			return new Lookup<V>(false, null);
+		}
+		hits++;
+		return new Lookup<V>(true, e.value == ABSENT ? null : (V) e.value);
+	}
+
+	/**
+	 * Method to cache a value, or null for "not found", replacing whatever
+	 * was cached for the key.
+	 *
+	 * @param key the key
+	 * @param value the value, or null if the row does not exist
+	 */
+	public synchronized void put(int key, V value) {
+		Node e = new Node(value == null ? ABSENT : value, value == null ? System.currentTimeMillis() + negativeMillis : 0);
+		if (window.containsKey(key)) {
+			window.put(key, e);
+		} else if (protect.containsKey(key)) {
+			protect.put(key, e);
+		} else if (probation.containsKey(key)) {
+			probation.put(key, e);
+		} else {
+			window.put(key, e);
+			if (window.size() > windowSize) {
+				admit();
+			}
+		}
+	}
+
+	/**
+	 * Method to forget a key, e.g. after the row was inserted or changed.
+	 */
+	public synchronized void invalidate(int key) {
+		if (window.remove(key) == null && protect.remove(key) == null) {
+			probation.remove(key);
+		}
+	}
+
+	public synchronized int size() {
+		return window.size() + probation.size() + protect.size();
+	}
+
+	public synchronized String toString() {
+		long total = hits + misses;
+		return String.format("%d cached, %d hits, %d misses (%.1f%% hit rate), %d evicted",
+			size(), hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, evictions);
+	}
+
+	/**
+	 * Moves a key hit on probation into the protected segment, demoting the
+	 * protected segment's least recently used key if it is full.
+	 */
+	private void promote(int key, Node e) {
+		protect.put(key, e);
+		if (protect.size() > protectedSize) {
+			Iterator<Map.Entry<Integer, Node>> it = protect.entrySet().iterator();
+			Map.Entry<Integer, Node> eldest = it.next();
+			it.remove();
+			probation.put(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	/**
+	 * Moves the window's least recently used key into the main space if it
+	 * is used more often than the main space's victim.
+	 */
+	private void admit() {
+		Iterator<Map.Entry<Integer, Node>> it = window.entrySet().iterator();
+		Map.Entry<Integer, Node> candidate = it.next();
+		it.remove();
+		if (probation.size() + protect.size() < mainSize) {
+			probation.put(candidate.getKey(), candidate.getValue());
+			return;
+		}
+		LinkedHashMap<Integer, Node> from = probation.isEmpty() ? protect : probation;
+		Iterator<Map.Entry<Integer, Node>> victims = from.entrySet().iterator();
+		Map.Entry<Integer, Node> victim = victims.next();
+		evictions++;
+		if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+			victims.remove();
+			probation.put(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	/**
+	 * Count-min sketch with 4 bit counters, 16 to a long, 4 rows.
+	 */
+	private static class FrequencySketch {
+		private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0x85EBCA77C2B2AE63L };
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(int capacity) {
+			int counters = 16;
+			while (counters < capacity * 4) {
+				counters <<= 1;
+			}
+			table = new long[counters / 16];
+			mask = counters - 1;
+			sampleSize = 10 * capacity;
+		}
+
+		private int index(int key, int row) {
+			long h = (key + SEEDS[row]) * SEEDS[(row + 1) & 3];
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+
+		int frequency(int key) {
+			int min = 15;
+			for (int row = 0; row < 4; row++) {
+				int i = index(key, row);
+				min = Math.min(min, (int) ((table[i >>> 4] >>> ((i & 15) << 2)) & 0xF));
+			}
+			return min;
+		}
+
+		void increment(int key) {
+			boolean added = false;
+			for (int row = 0; row < 4; row++) {
+				int i = index(key, row);
+				int shift = (i & 15) << 2;
+				if (((table[i >>> 4] >>> shift) & 0xF) < 15) {
+					table[i >>> 4] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		// halves every counter
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			}
+			additions /= 2;
+		}
+	}
+}
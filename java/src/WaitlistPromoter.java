@@ -0,0 +1,427 @@
+/*
+ * Waitlist promotion for DBproject
+ * =============================
+ *
+ * Moves waitlisted reservations ('W') to reserved ('R') in FIFO order
+ * whenever seats on a flight are freed.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps a FIFO queue of waitlisted reservation numbers for every
+ * flight, rebuilt from Reservation at startup in rnum order.
+ *
+ * Callers report a seat only after the status change that freed it has
+ * taken it off Flight.num_sold (FlightStore.updateReservationStatus does
+ * both in one transaction), so num_sold stays in step across promotions.
+ *
+ * seatsFreed() only adds to a per-flight counter and schedules the flight
+ * if it is not already scheduled, so any number of threads can report
+ * cancellations at once. A pool of workers, each with its own connection,
+ * then promotes every scheduled flight with a single UPDATE covering all
+ * the seats freed since its last run, and adds the promoted reservations
+ * to Flight.num_sold in the same transaction. A flight is only ever
+ * handled by one worker at a time; different flights are handled in
+ * parallel. promoteNow() goes through the same workers, so a promotion
+ * asked for from the menu cannot race one already running.
+ *
+ * If a run fails the seats it did not fill are added back to the counter,
+ * the reservations it took off the queue go back to the front, and the
+ * flight is tried again after RETRY_MILLIS.
+ *
+ * Queue entries whose reservation is no longer 'W' (changed by hand, or by
+ * another process) are skipped by the UPDATE's status guard and their
+ * seats go to the next entries in line.
+ *
+ */
+
+public class WaitlistPromoter {
+	private static final int WORKERS = 4;
+	static final long RETRY_MILLIS = 1000;
+	// how long promoteNow() waits for the workers
+	static final long PROMOTE_WAIT_MILLIS = 30000;
+
+	private static class FlightQueue {
+		// taken from the front by the one worker handling the flight, and
+		// put back there if the update fails
+		final ConcurrentLinkedDeque<Integer> waiting = new ConcurrentLinkedDeque<Integer>();
+		final AtomicInteger freed = new AtomicInteger();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		final AtomicLong promoted = new AtomicLong();
+		// runs that failed, and why the last one did; promoteNow() waits on the queue
+		volatile long failures = 0;
+		volatile String lastError = null;
+	}
+
+	private final DBproject esql;
+	private final ConcurrentHashMap<Integer, FlightQueue> flights = new ConcurrentHashMap<Integer, FlightQueue>();
+	private final ExecutorService workers;
+	private final ScheduledExecutorService retries;
+	private final ThreadLocal<Connection> connections = new ThreadLocal<Connection>();
+	private final List<Connection> opened = new ArrayList<Connection>();
+	private final AtomicLong promoted = new AtomicLong();
+
+	public WaitlistPromoter(DBproject esql) {
+		this.esql = esql;
+		this.workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "waitlist-promoter-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "waitlist-retry");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return the number of reservations promoted since startup
+	 */
+	public long getPromoted() {
+		return promoted.get();
+	}
+
+	private FlightQueue queue(int fid) {
+		FlightQueue q = flights.get(fid);
+		if (q == null) {
+			FlightQueue created = new FlightQueue();
+			q = flights.putIfAbsent(fid, created);
+			if (q == null) {
+				q = created;
+			}
+		}
+		return q;
+	}
+
+	/**
+	 * Method to rebuild the waitlists from the Reservation table.
+	 *
+	 * @param conn the connection to read from
+	 * @return the number of waitlisted reservations
+	 * @throws java.sql.SQLException when Reservation cannot be read
+	 */
+	public int load(Connection conn) throws SQLException {
+		AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.REPORT);
+		int count = 0;
+		try {
+			ResultSet rs = ticket.create(conn).executeQuery("SELECT rnum, fid FROM Reservation WHERE status = 'W' ORDER BY rnum");
+			while (rs.next()) {
+				queue(rs.getInt(2)).waiting.add(rs.getInt(1));
+				count++;
+			}
+		}finally{
+			ticket.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Method to put a reservation at the back of its flight's waitlist.
+	 */
+	public void waitlisted(int fid, int rnum) {
+		queue(fid).waiting.add(rnum);
+	}
+
+	/**
+	 * Method to waitlist a customer's existing reservation on a flight.
+	 */
+	public void waitlisted(Connection conn, int cid, int fid) throws SQLException {
+		AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+		try {
+			PreparedStatement stmt = ticket.prepare(conn, "SELECT rnum FROM Reservation WHERE cid = ? AND fid = ? AND status = 'W'");
+			stmt.setInt(1, cid);
+			stmt.setInt(2, fid);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				waitlisted(fid, rs.getInt(1));
+			}
+		}catch (SQLException e) {
+			esql.getKeeper().failed(conn, e);
+			throw e;
+		}finally{
+			ticket.close();
+		}
+	}
+
+	/**
+	 * Method to report that seats on a flight became available, through a
+	 * cancellation or added capacity. Promotion happens asynchronously.
+	 *
+	 * @param fid the flight number
+	 * @param seats the number of seats freed
+	 */
+	public void seatsFreed(int fid, int seats) {
+		if (seats <= 0) {
+			return;
+		}
+		final FlightQueue q = flights.get(fid);
+		if (q == null) {
+			return;			// nobody is waiting for this flight
+		}
+		q.freed.addAndGet(seats);
+		schedule(fid, q);
+	}
+
+	private void schedule(final int fid, final FlightQueue q) {
+		if (q.scheduled.compareAndSet(false, true)) {
+			workers.execute(new Runnable() {
+				public void run() {
+					drain(fid, q);
+				}
+			});
+		}
+	}
+
+	private void drain(final int fid, final FlightQueue q) {
+		boolean failed = false;
+		try {
+			int seats = q.freed.getAndSet(0);
+			if (seats > 0) {
+				// seats left over once the queue is empty simply stay free
+				promote(workerConnection(), fid, q, seats);
+			}
+		}catch (SQLException e) {
+			System.err.println("Waitlist: flight " + fid + ": " + e.getMessage() + ", retrying");
+			closeWorkerConnection();
+			q.lastError = e.getMessage();
+			q.failures++;
+			failed = true;
+		}finally{
+			q.scheduled.set(false);
+			synchronized (q) {
+				q.notifyAll();
+			}
+		}
+		if (failed) {
+			try {
+				retries.schedule(new Runnable() {
+					public void run() {
+						schedule(fid, q);
+					}
+				}, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+			}catch (RejectedExecutionException e) {
+				// shutting down, the seats are promoted at the next start
+			}
+		} else if (q.freed.get() > 0 && !q.waiting.isEmpty()) {
+			// seats freed while this run was in progress
+			schedule(fid, q);
+		}
+	}
+
+	/**
+	 * Method to look up the free seats on a flight, counted against
+	 * Flight.num_sold like every other availability check.
+	 *
+	 * @param fid the flight number
+	 * @return the free seats, null if the flight or its plane does not exist
+	 * @throws java.sql.SQLException when the lookup fails
+	 */
+	public Integer freeSeats(final int fid) throws SQLException {
+		return esql.getKeeper().call(new ConnectionKeeper.Call<Integer>() {
+			public Integer run() throws SQLException {
+				AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+				try {
+					PreparedStatement stmt = ticket.prepare(esql.getConnection(), "SELECT MIN(P.seats) - F.num_sold FROM Flight F, FlightInfo I, Plane P WHERE F.fnum = ? AND I.flight_id = F.fnum AND I.plane_id = P.id GROUP BY F.num_sold");
+					stmt.setInt(1, fid);
+					ResultSet rs = stmt.executeQuery();
+					return rs.next() ? rs.getInt(1) : null;
+				}finally{
+					ticket.close();
+				}
+			}
+		}, true);
+	}
+
+	/**
+	 * Method to promote waitlisted reservations on one flight now and wait
+	 * for the result. The promotion runs on the flight's worker like any
+	 * other, after whatever that worker is already doing for the flight.
+	 *
+	 * @param fid the flight number
+	 * @param seats the number of seats to fill
+	 * @return the number of reservations promoted
+	 * @throws java.sql.SQLException when the promotion failed or did not
+	 *         finish in time; it is retried in the background either way
+	 */
+	public int promoteNow(int fid, int seats) throws SQLException {
+		FlightQueue q = flights.get(fid);
+		if (q == null || seats <= 0) {
+			return 0;
+		}
+		long before = q.promoted.get();
+		long failures = q.failures;
+		long deadline = System.currentTimeMillis() + PROMOTE_WAIT_MILLIS;
+		q.freed.addAndGet(seats);
+		schedule(fid, q);
+		synchronized (q) {
+			while (q.scheduled.get() || (q.freed.get() > 0 && !q.waiting.isEmpty())) {
+				if (q.failures != failures) {
+					throw new SQLException("Promotion failed, retrying in the background: " + q.lastError);
+				}
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					throw new SQLException("Promotion is taking long, it continues in the background");
+				}
+				try {
+					q.wait(Math.min(left, RETRY_MILLIS));
+				}catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for the promotion");
+				}
+			}
+		}
+		return (int) (q.promoted.get() - before);
+	}
+
+	private void promote(Connection conn, int fid, FlightQueue q, int seats) throws SQLException {
+		int done = 0;
+		boolean autoCommit = conn.getAutoCommit();
+		AdmissionController.Ticket ticket;
+		try {
+			ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+		}catch (SQLException e) {
+			q.freed.addAndGet(seats);
+			throw e;
+		}
+		try {
+			PreparedStatement stmt = ticket.prepare(conn, "UPDATE Reservation SET status = 'R' WHERE rnum = ANY(?) AND fid = ? AND status = 'W' RETURNING rnum");
+			PreparedStatement sold = ticket.prepare(conn, "UPDATE Flight SET num_sold = num_sold + ? WHERE fnum = ?");
+			// normally one round; more only if some queue entries were stale
+			while (done < seats) {
+				List<Integer> batch = new ArrayList<Integer>();
+				Integer rnum;
+				while (batch.size() < seats - done && (rnum = q.waiting.pollFirst()) != null) {
+					batch.add(rnum);
+				}
+				if (batch.isEmpty()) {
+					break;
+				}
+				List<Integer> updated = new ArrayList<Integer>();
+				try {
+					conn.setAutoCommit(false);
+					stmt.setArray(1, conn.createArrayOf("integer", batch.toArray()));
+					stmt.setInt(2, fid);
+					ResultSet rs = stmt.executeQuery();
+					while (rs.next()) {
+						updated.add(rs.getInt(1));
+					}
+					sold.setInt(1, updated.size());
+					sold.setInt(2, fid);
+					sold.executeUpdate();
+					conn.commit();
+				}catch (SQLException e) {
+					try {
+						conn.rollback();
+					}catch (SQLException x) {
+						// the connection is closed by drain()
+					}
+					// put them back in front, in order, for the next attempt
+					for (int i = batch.size() - 1; i >= 0; i--) {
+						q.waiting.offerFirst(batch.get(i));
+					}
+					q.freed.addAndGet(seats - done);
+					throw e;
+				}finally{
+					conn.setAutoCommit(autoCommit);
+				}
+				// seats go in after the commit; a taken seat is simply skipped
+				assignSeats(conn, fid, updated);
+				done += updated.size();
+				q.promoted.addAndGet(updated.size());
+				promoted.addAndGet(updated.size());
+			}
+		}finally{
+			ticket.close();
+		}
+	}
+
+	private void assignSeats(Connection conn, int fid, List<Integer> rnums) {
+		SeatMaps seats = esql.getSeatMaps();
+		if (seats == null) {
+			return;
+		}
+		for (Integer rnum : rnums) {
+			try {
+				seats.assign(conn, rnum, fid, 0);
+			}catch (SQLException e) {
+				// the reservation stands; a seat can be picked later in BookFlight
+				System.err.println("Waitlist: no seat for reservation " + rnum + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private Connection workerConnection() throws SQLException {
+		Connection conn = connections.get();
+		if (conn == null) {
+			conn = esql.openConnection();
+			connections.set(conn);
+			synchronized (opened) {
+				opened.add(conn);
+			}
+		}
+		return conn;
+	}
+
+	private void closeWorkerConnection() {
+		Connection conn = connections.get();
+		connections.remove();
+		if (conn != null) {
+			synchronized (opened) {
+				opened.remove(conn);
+			}
+			try {
+				conn.close();
+			}catch (SQLException e) {
+				// already broken
+			}
+		}
+	}
+
+	/**
+	 * Method to stop the workers, letting queued promotions finish first.
+	 */
+	public void shutdown() {
+		retries.shutdownNow();
+		workers.shutdown();
+		try {
+			workers.awaitTermination(5, TimeUnit.SECONDS);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (opened) {
+			for (Connection conn : opened) {
+				try {
+					conn.close();
+				}catch (SQLException e) {
+					// ignored.
+				}
+			}
+			opened.clear();
+		}
+	}
+}
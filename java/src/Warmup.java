@@ -0,0 +1,308 @@
+/*
+ * Startup warmup for DBproject
+ * =============================
+ *
+ * Runs the startup steps (connecting, loading the in-memory state, priming
+ * statements and caches) either one after the other or in the background.
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs DBproject's startup steps. Normally every step runs on
+ * the main thread before the menu is shown, printing its progress, and a
+ * failing step aborts startup. In fast-start mode every step runs on its
+ * own thread, each loading through its own connection, and the menu is
+ * shown right away; the components a step produces are only handed out by
+ * DBproject once the step is over (see await()), so the first operation
+ * that needs one waits for it instead of seeing it half loaded. Failures
+ * are kept and reported with the timings after the first response.
+ *
+ * The origin of all timings is the start of the JVM.
+ *
+ */
+
+public class Warmup {
+	// step names
+	public static final String CONNECT = "connect";
+	public static final String STORE = "store";
+	public static final String JOURNAL = "journal";
+	public static final String SEATS = "seats";
+	public static final String WAITLIST = "waitlist";
+	public static final String PREPARE = "prepare";
+	public static final String CACHE = "cache";
+	public static final String NAMES = "names";
+
+	/**
+	 * A startup step.
+	 */
+	public interface Task {
+		/**
+		 * @param conn the connection to load through, null if the step did not ask for one
+		 * @return what the step did, e.g. "Done (12 flights)"
+		 */
+		String run(Connection conn) throws Exception;
+	}
+
+	private static class Step {
+		final String label;
+		final FutureTask<String> future;
+		volatile long millis = -1;
+
+		Step(String label, FutureTask<String> future) {
+			this.label = label;
+			this.future = future;
+		}
+	}
+
+	private final DBproject esql;
+	private final boolean parallel;
+	private final long origin;
+	private final ExecutorService pool;
+	private final Map<String, Step> steps = new LinkedHashMap<String, Step>();
+	// the step the current thread is running, which must not wait for itself
+	private final ThreadLocal<String> running = new ThreadLocal<String>();
+	private volatile long menuMillis = -1;
+	private volatile boolean responded = false;
+
+	/**
+	 * @param esql the database connection wrapper being started
+	 * @param parallel true to run the steps in the background
+	 */
+	public Warmup(DBproject esql, boolean parallel) {
+		this.esql = esql;
+		this.parallel = parallel;
+		this.origin = ManagementFactory.getRuntimeMXBean().getStartTime();
+		this.pool = !parallel ? null : Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "warmup-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * Method to run a startup step now, or in fast-start mode to queue it
+	 * for start().
+	 *
+	 * @param name the step's name, for await()
+	 * @param label what the step does, printed while it runs
+	 * @param ownConnection true to pass the step a connection: its own one
+	 *        in the background, the interactive one otherwise
+	 * @param task the step
+	 * @throws java.lang.Exception when a step run now fails
+	 */
+	public void run(final String name, String label, final boolean ownConnection, final Task task) throws Exception {
+		Step step = new Step(label, new FutureTask<String>(new Callable<String>() {
+			public String call() throws Exception {
+				return timed(name, ownConnection, task);
+			}
+		}));
+		synchronized (steps) {
+			steps.put(name, step);
+		}
+		if (parallel) {
+			return;
+		}
+		System.out.print(label + "...");
+		step.future.run();
+		try {
+			System.out.println(step.future.get());
+		}catch (ExecutionException e) {
+			System.out.println();
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Method to start the queued steps in the background. They are only
+	 * started once all are known, so a step waiting for another one cannot
+	 * miss it.
+	 */
+	public void start() {
+		if (!parallel) {
+			return;
+		}
+		synchronized (steps) {
+			for (Step step : steps.values()) {
+				pool.execute(step.future);
+			}
+		}
+	}
+
+	private String timed(String name, boolean ownConnection, Task task) throws Exception {
+		running.set(name);
+		long start = System.currentTimeMillis();
+		Connection conn = null;
+		try {
+			if (ownConnection) {
+				conn = parallel ? esql.openConnection() : esql.getConnection();
+			}
+			return task.run(conn);
+		}finally{
+			if (parallel && conn != null) {
+				try {
+					conn.close();
+				}catch (SQLException e) {
+					// ignored.
+				}
+			}
+			step(name).millis = System.currentTimeMillis() - start;
+			running.remove();
+		}
+	}
+
+	/**
+	 * Method to wait until the given steps are over, whether they succeeded
+	 * or not. Steps that were never run count as over.
+	 *
+	 * @param names the steps to wait for
+	 */
+	public void await(String... names) {
+		for (String name : names) {
+			Step step = step(name);
+			if (step == null || step.future.isDone() || name.equals(running.get())) {
+				continue;
+			}
+			boolean interrupted = false;
+			while (true) {
+				try {
+					step.future.get();
+					break;
+				}catch (InterruptedException e) {
+					interrupted = true;
+				}catch (ExecutionException e) {
+					break;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private Step step(String name) {
+		synchronized (steps) {
+			return steps.get(name);
+		}
+	}
+
+	/**
+	 * Method to note that the menu is on screen.
+	 */
+	public void menuShown() {
+		if (menuMillis < 0) {
+			menuMillis = System.currentTimeMillis() - origin;
+		}
+	}
+
+	/**
+	 * Method to note that a menu operation finished.
+	 *
+	 * @return the startup report the first time, null afterwards
+	 */
+	public String responded() {
+		if (responded) {
+			return null;
+		}
+		responded = true;
+		long first = System.currentTimeMillis() - origin;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("First response %d ms after start (menu shown after %d ms)", first, menuMillis));
+		if (!parallel) {
+			return sb.toString();
+		}
+		List<Map.Entry<String, Step>> all;
+		synchronized (steps) {
+			all = new ArrayList<Map.Entry<String, Step>>(steps.entrySet());
+		}
+		for (Map.Entry<String, Step> e : all) {
+			Step step = e.getValue();
+			sb.append(String.format("%n  %-32s", step.label));
+			if (!step.future.isDone()) {
+				sb.append("still running");
+				continue;
+			}
+			try {
+				sb.append(step.future.get());
+			}catch (ExecutionException x) {
+				sb.append("failed: ").append(x.getCause().getMessage());
+			}catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+			}
+			sb.append(" in ").append(step.millis).append(" ms");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Method to abandon the steps still running, at exit.
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Method to run every hot lookup once, with keys that match nothing, so
+	 * the first real one finds the driver's classes loaded and the catalog
+	 * and the tables' first pages cached on the server. It runs on a
+	 * connection of its own: the interactive one may already be in use by
+	 * the menu, and a JDBC connection must not run statements from two
+	 * threads. Server side prepared statements belong to the connection
+	 * that prepared them, so the interactive connection prepares its own on
+	 * first use; in fast-start mode DBproject sets its prepare threshold to
+	 * 1 as soon as it is connected.
+	 *
+	 * @param conn the connection to run the lookups on, not the interactive one
+	 * @return what was run
+	 * @throws java.sql.SQLException when a lookup fails
+	 */
+	public static String prepare(Connection conn) throws SQLException {
+		Object[][] lookups = {
+			{ PostgresFlightStore.RESERVATION_STATUS, -1, -1 },
+			{ PostgresFlightStore.AVAILABLE_SEATS, -1, "1970-01-01" },
+			{ PostgresFlightStore.FLIGHT_EXISTS, -1 },
+			{ PostgresFlightStore.PASSENGER_COUNT, -1, "R" },
+			{ EntityCache.LOOKUP_CUSTOMER, -1 },
+			{ EntityCache.LOOKUP_FLIGHT, -1 },
+			{ EntityCache.LOOKUP_PLANE, -1 },
+			{ EntityCache.LOOKUP_PILOT, -1 },
+		};
+		for (Object[] lookup : lookups) {
+			PreparedStatement stmt = conn.prepareStatement((String) lookup[0]);
+			try {
+				for (int i = 1; i < lookup.length; i++) {
+					stmt.setObject(i, lookup[i]);
+				}
+				stmt.executeQuery().close();
+			}finally{
+				stmt.close();
+			}
+		}
+		return "Done (" + lookups.length + " statements)";
+	}
+}
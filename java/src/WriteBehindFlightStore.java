@@ -0,0 +1,481 @@
+/*
+ * Write-behind storage backend for DBproject
+ * =============================
+ *
+ * Acknowledges Plane, Pilot and Technician inserts as soon as they are in
+ * a local journal and applies them to PostgreSQL in the background.
+ *
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class wraps another FlightStore. Reference data inserts (AddPlane,
+ * AddPilot, AddTechnician) are appended to an AppendJournal and return
+ * immediately; a background drainer applies them in batches, one
+ * transaction per batch admitted as a booking, and only then marks them
+ * applied in the journal.
+ * Anything left in the journal when the program stops is replayed by the
+ * drainer the next time it starts.
+ *
+ * A batch that fails is rolled back. If the error is transient (a lost
+ * connection, a deadlock, a timeout, anything but a data or constraint
+ * violation) the records stay in the journal and are tried again later.
+ * Otherwise the batch is applied one record at a time to find the records
+ * the database rejects. A record whose key already exists with the same
+ * values was applied before, e.g. by a batch that committed just before a
+ * crash, and counts as applied. Any other rejected record is reported on
+ * stderr and dropped, and the entity cache and name index entries made
+ * when it was acknowledged are taken back.
+ *
+ * When the wrapped store is not PostgresFlightStore (the in-memory store)
+ * the inserts are also made there before they are journaled, so the store
+ * serving the reads sees them and rejects duplicate ids right away.
+ *
+ * All other operations go straight to the wrapped store.
+ *
+ */
+
+public class WriteBehindFlightStore implements FlightStore {
+	private static final byte PLANE = 1;
+	private static final byte PILOT = 2;
+	private static final byte TECHNICIAN = 3;
+	private static final int BATCH_SIZE = 500;
+	private static final long DRAIN_INTERVAL_MS = 200;
+	private static final long FULL_WAIT_MS = 5000;
+	// SQLSTATE data_corrupted, for records that cannot be decoded
+	private static final String CORRUPT = "XX001";
+
+	private final FlightStore store;
+	private final DBproject esql;
+	private final AppendJournal journal;
+	private final Thread drainer;
+	private volatile boolean running = true;
+	private Connection conn = null;		// the drainer's own connection
+
+	/**
+	 * @param esql the database to apply journal records to
+	 * @param store the store that serves every other operation
+	 * @param path the journal file, replayed if it already has records
+	 * @param capacity the journal size in bytes
+	 */
+	public WriteBehindFlightStore(DBproject esql, FlightStore store, File path, int capacity) throws IOException {
+		this.esql = esql;
+		this.store = store;
+		this.journal = new AppendJournal(path, capacity);
+		this.drainer = new Thread(new Runnable() {
+			public void run() {
+				drainLoop();
+			}
+		}, "write-behind-drainer");
+		this.drainer.setDaemon(true);
+		this.drainer.start();
+	}
+
+	/**
+	 * @return the number of journal bytes not yet applied to the database
+	 */
+	public int getPendingBytes() {
+		return journal.pendingBytes();
+	}
+
+	public void addPlane(int id, String make, String model, int age, int seats) throws SQLException {
+		if (!(store instanceof PostgresFlightStore)) {
+			store.addPlane(id, make, model, age, seats);
+		}
+		append(PLANE, id, make, model, age, seats);
+	}
+
+	public void addPilot(int id, String fullname, String nationality) throws SQLException {
+		if (!(store instanceof PostgresFlightStore)) {
+			store.addPilot(id, fullname, nationality);
+		}
+		append(PILOT, id, fullname, nationality, 0, 0);
+	}
+
+	public void addTechnician(int id, String fullName) throws SQLException {
+		if (!(store instanceof PostgresFlightStore)) {
+			store.addTechnician(id, fullName);
+		}
+		append(TECHNICIAN, id, fullName, "", 0, 0);
+	}
+
+	private void append(byte type, int id, String a, String b, int c, int d) throws SQLException {
+		byte[] record;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(type);
+			out.writeInt(id);
+			out.writeUTF(a);
+			out.writeUTF(b);
+			out.writeInt(c);
+			out.writeInt(d);
+			out.close();
+			record = bytes.toByteArray();
+		}catch (IOException e) {
+			throw new SQLException("Unable to encode journal record: " + e.getMessage());
+		}
+
+		long deadline = System.currentTimeMillis() + FULL_WAIT_MS;
+		while (!journal.append(record)) {
+			// the journal only frees space once the drainer catches up
+			synchronized (this) {
+				notifyAll();
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new SQLException("Write-behind journal is full, the database is not keeping up");
+			}
+			try {
+				Thread.sleep(10);
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for journal space");
+			}
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	private void drainLoop() {
+		while (running || !journal.isEmpty()) {
+			try {
+				if (!drainOnce()) {
+					synchronized (this) {
+						if (running && journal.isEmpty()) {
+							wait(DRAIN_INTERVAL_MS);
+						}
+					}
+				}
+			}catch (InterruptedException e) {
+				return;
+			}catch (SQLException e) {
+				// database unavailable, keep the records and retry later
+				System.err.println("Write-behind: " + e.getMessage());
+				try {
+					Thread.sleep(DRAIN_INTERVAL_MS * 5);
+				}catch (InterruptedException ie) {
+					return;
+				}
+				if (!running) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to apply one batch of journal records.
+	 *
+	 * @return true if any records were applied
+	 * @throws java.sql.SQLException on a transient error, with the records
+	 *         left in the journal
+	 */
+	private boolean drainOnce() throws SQLException {
+		List<byte[]> records = journal.pending(BATCH_SIZE);
+		if (records.isEmpty()) {
+			return false;
+		}
+		if (conn == null || conn.isClosed()) {
+			conn = esql.openConnection();
+		}
+		AdmissionController.Ticket ticket = esql.getAdmission().enter(AdmissionController.OpClass.BOOKING);
+		try {
+			drain(ticket, records);
+		}finally{
+			ticket.close();
+		}
+		journal.markApplied(records.size());
+		return true;
+	}
+
+	/*
+	 * Applies the batch in one transaction, or record by record when the
+	 * database rejects some of it.
+	 */
+	private void drain(AdmissionController.Ticket ticket, List<byte[]> records) throws SQLException {
+		try {
+			conn.setAutoCommit(false);
+			apply(ticket, conn, records);
+			conn.commit();
+		}catch (SQLException e) {
+			rollback();
+			if (!isRejection(e)) {
+				throw transientFailure(e);
+			}
+			conn.setAutoCommit(true);
+			// find the bad records one by one, the rest still go in; if this
+			// stops half way the records applied so far are recognised as
+			// already applied when it runs again
+			for (byte[] record : records) {
+				try {
+					apply(ticket, conn, Collections.singletonList(record));
+				}catch (SQLException single) {
+					if (!isRejection(single)) {
+						throw transientFailure(single);
+					}
+					if (!alreadyApplied(ticket, conn, record, single)) {
+						dropped(record, single);
+					}
+				}
+			}
+		}
+	}
+
+	private void rollback() {
+		try {
+			conn.rollback();
+		}catch (SQLException e) {
+			// a broken connection is dropped by transientFailure
+		}
+	}
+
+	private SQLException transientFailure(SQLException e) {
+		if (isConnectionFailure(e)) {
+			closeConnection();
+		}
+		return e;
+	}
+
+	private void closeConnection() {
+		try {
+			conn.close();
+		}catch (SQLException e) {
+			// already broken
+		}
+		conn = null;
+	}
+
+	private static boolean isConnectionFailure(SQLException e) {
+		return e.getSQLState() != null && e.getSQLState().startsWith("08");
+	}
+
+	/*
+	 * Errors that running the same record again cannot fix: data exceptions
+	 * (class 22), constraint violations (class 23) and unreadable records.
+	 * Everything else, e.g. 40P01 deadlock or 57014 statement timeout, is
+	 * treated as transient.
+	 */
+	private static boolean isRejection(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && (state.startsWith("22") || state.startsWith("23") || state.equals(CORRUPT));
+	}
+
+	/*
+	 * A unique violation on a record whose row already holds the same values
+	 * is a replay of a record that was applied before.
+	 */
+	private static boolean alreadyApplied(AdmissionController.Ticket ticket, Connection conn, byte[] bytes, SQLException e) throws SQLException {
+		if (!"23505".equals(e.getSQLState())) {
+			return false;
+		}
+		Record r = Record.decode(bytes);
+		String sql = r.type == PLANE ? "SELECT make, model, age, seats FROM Plane WHERE id = ?"
+			: r.type == PILOT ? "SELECT fullname, nationality FROM Pilot WHERE id = ?"
+			: "SELECT full_name FROM Technician WHERE id = ?";
+		PreparedStatement stmt = ticket.prepare(conn, sql);
+		try {
+			stmt.setInt(1, r.id);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next() || !same(rs.getString(1), r.a)) {
+				return false;
+			}
+			if (r.type == PLANE) {
+				return same(rs.getString(2), r.b) && rs.getInt(3) == r.c && rs.getInt(4) == r.d;
+			}
+			return r.type != PILOT || same(rs.getString(2), r.b);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static boolean same(String column, String value) {
+		return column == null ? value.isEmpty() : column.trim().equals(value.trim());
+	}
+
+	/*
+	 * Reports a record the database rejected and takes back what the menu
+	 * did when it was acknowledged.
+	 */
+	private void dropped(byte[] bytes, SQLException e) {
+		String what = describe(bytes);
+		System.err.println("Write-behind: " + what + " was acknowledged but rejected by the database, dropped: " + e.getMessage());
+		Record r;
+		try {
+			r = Record.decode(bytes);
+		}catch (SQLException x) {
+			return;
+		}
+		EntityCache cache = esql.getCache();
+		if (cache != null && r.type == PLANE) {
+			cache.dropPlane(r.id);
+		}
+		if (cache != null && r.type == PILOT) {
+			cache.dropPilot(r.id);
+		}
+		NameIndex names = esql.getNames();
+		if (names != null && r.type != PLANE) {
+			names.remove(r.type == PILOT ? NameIndex.Kind.PILOT : NameIndex.Kind.TECHNICIAN, r.id, r.a);
+		}
+	}
+
+	/**
+	 * A decoded journal record.
+	 */
+	private static class Record {
+		byte type;
+		int id;
+		String a;
+		String b;
+		int c;
+		int d;
+
+		static Record decode(byte[] bytes) throws SQLException {
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+				Record r = new Record();
+				r.type = in.readByte();
+				r.id = in.readInt();
+				r.a = in.readUTF();
+				r.b = in.readUTF();
+				r.c = in.readInt();
+				r.d = in.readInt();
+				if (r.type != PLANE && r.type != PILOT && r.type != TECHNICIAN) {
+					throw new SQLException("Unknown journal record type " + r.type, CORRUPT);
+				}
+				return r;
+			}catch (IOException e) {
+				throw new SQLException("Corrupt journal record: " + e.getMessage(), CORRUPT);
+			}
+		}
+	}
+
+	private static void apply(AdmissionController.Ticket ticket, Connection conn, List<byte[]> records) throws SQLException {
+		PreparedStatement planes = ticket.prepare(conn, "INSERT INTO Plane (id, make, model, age, seats) VALUES (?, ?, ?, ?, ?)");
+		PreparedStatement pilots = ticket.prepare(conn, "INSERT INTO Pilot (id, fullname, nationality) VALUES (?, ?, ?)");
+		PreparedStatement technicians = ticket.prepare(conn, "INSERT INTO Technician (id, full_name) VALUES (?, ?)");
+		int[] counts = new int[4];
+		try {
+			for (byte[] record : records) {
+				Record r = Record.decode(record);
+				switch (r.type) {
+					case PLANE:
+						planes.setInt(1, r.id);
+						planes.setString(2, r.a);
+						planes.setString(3, r.b);
+						planes.setInt(4, r.c);
+						planes.setInt(5, r.d);
+						planes.addBatch();
+						break;
+					case PILOT:
+						pilots.setInt(1, r.id);
+						pilots.setString(2, r.a);
+						pilots.setString(3, r.b);
+						pilots.addBatch();
+						break;
+					default:
+						technicians.setInt(1, r.id);
+						technicians.setString(2, r.a);
+						technicians.addBatch();
+						break;
+				}
+				counts[r.type]++;
+			}
+			if (counts[PLANE] > 0) planes.executeBatch();
+			if (counts[PILOT] > 0) pilots.executeBatch();
+			if (counts[TECHNICIAN] > 0) technicians.executeBatch();
+		}finally{
+			planes.close();
+			pilots.close();
+			technicians.close();
+		}
+	}
+
+	private static String describe(byte[] record) {
+		try {
+			Record r = Record.decode(record);
+			return (r.type == PLANE ? "Plane " : r.type == PILOT ? "Pilot " : "Technician ") + r.id;
+		}catch (SQLException e) {
+			return "(unreadable record)";
+		}
+	}
+
+	/**
+	 * Method to stop the drainer. It first applies whatever is still in the
+	 * journal, waiting up to the given time; anything left is replayed on
+	 * the next start.
+	 *
+	 * @param waitMillis how long to wait for the journal to drain
+	 */
+	public void close(long waitMillis) {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		try {
+			drainer.join(waitMillis);
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!drainer.isAlive()) {
+			try {
+				if (conn != null) {
+					conn.close();
+				}
+				journal.close();
+			}catch (Exception e) {
+				System.err.println("Write-behind: " + e.getMessage());
+			}
+		}
+	}
+
+	public String findReservationStatus(int cid, int fid) throws SQLException {
+		return store.findReservationStatus(cid, fid);
+	}
+
+	public void addFlight(int fnum, int cost, int numSold, int numStops, String departure, String arrival,
+		String arrivalAirport, String departureAirport) throws SQLException {
+		store.addFlight(fnum, cost, numSold, numStops, departure, arrival, arrivalAirport, departureAirport);
+	}
+
+	public void addReservation(int rnum, int cid, int fid, String status) throws SQLException {
+		store.addReservation(rnum, cid, fid, status);
+	}
+
+	public void updateReservationStatus(int cid, int fid, String status) throws SQLException {
+		store.updateReservationStatus(cid, fid, status);
+	}
+
+	public Integer availableSeats(int fnum, String departure) throws SQLException {
+		return store.availableSeats(fnum, departure);
+	}
+
+	public List<int[]> repairsPerPlane() throws SQLException {
+		return store.repairsPerPlane();
+	}
+
+	public List<int[]> repairsPerYear() throws SQLException {
+		return store.repairsPerYear();
+	}
+
+	public boolean flightExists(int fnum) throws SQLException {
+		return store.flightExists(fnum);
+	}
+
+	public int passengerCount(int fid, String status) throws SQLException {
+		return store.passengerCount(fid, status);
+	}
+}
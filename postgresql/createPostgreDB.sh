@@ -1,12 +1,16 @@
 #! /bin/bash
+# usage: source postgresql/createPostgreDB.sh [sql/create_partitioned.sql]
+# set DATA to load the csv files from another directory, e.g. CsvValidator's output
+SCHEMA=${1:-sql/create.sql}
+DATA=${DATA:-data}
 echo "creating db named ... "$USER"_DB"
 createdb -h localhost -p $PGPORT $USER"_DB"
 pg_ctl status
 
 echo "Copying csv files ... "
 sleep 1
-cp data/*.csv /tmp/$USER/myDB/data/.
+cp $DATA/*.csv /tmp/$USER/myDB/data/.
 
 echo "Initializing tables .. "
 sleep 1
-psql -h localhost -p $PGPORT $USER"_DB" < sql/create.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $SCHEMA
@@ -0,0 +1,23 @@
+#! /bin/bash
+DBNAME=$1
+ROUNDS=${2:-3}
+DOWN=${3:-2}
+folder=/tmp/$USER
+
+# Kills and restarts the server from startPostgreSQL.sh while RestartDrill reads
+# through the program's connection, then prints how long each recovery took.
+# Run from the project folder after compiling.
+# Example: source ./postgresql/restartDrill.sh flightDB 3 2
+TOTAL=$(( ROUNDS * (DOWN + 5) + 5 ))
+java -cp "java/lib/*:java/bin/" RestartDrill $DBNAME $PGPORT $USER $TOTAL &
+DRILL=$!
+sleep 3
+for i in $(seq 1 $ROUNDS); do
+	echo "restart $i: server down for $DOWN s"
+	# immediate mode kills every backend, like a crash
+	pg_ctl -D $PGDATA -m immediate stop
+	sleep $DOWN
+	pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT -c wal_level=logical -c max_replication_slots=4 -c max_wal_senders=4" -D $PGDATA -l $folder/logfile start
+	sleep 5
+done
+wait $DRILL
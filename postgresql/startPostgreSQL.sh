@@ -22,5 +22,6 @@ initdb
 sleep 1
 #Start folder
 export PGPORT=9999
-pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT" -D $PGDATA -l $folder/logfile start
+# wal_level=logical and the slot/sender limits are for the change stream (menu option 16)
+pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT -c wal_level=logical -c max_replication_slots=4 -c max_wal_senders=4" -D $PGDATA -l $folder/logfile start
 
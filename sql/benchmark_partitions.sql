@@ -0,0 +1,90 @@
+----------------------------------------------------------
+-- Scaled benchmark: plain vs. partitioned schema       --
+----------------------------------------------------------
+-- Run against two scratch databases, one created with create.sql and one
+-- with create_partitioned.sql, and compare the timings and plans:
+--
+--   psql -h localhost -p $PGPORT -v scale=100 <db> < sql/benchmark_partitions.sql
+--
+-- scale is the number of thousands of flights to add (default 50). Every
+-- flight gets about 20 reservations and every plane about 1 repair per
+-- 10 flights, spread over 2013-2016. The script adds rows to the database,
+-- so do not run it against data you want to keep.
+--
+-- No plans or timings from this script have been recorded yet, so there is
+-- no measured speedup for the partitioned schema. To record them, run it
+-- with psql -a -o <file> on both databases and keep the output next to this
+-- script. The comments on each query
+-- say which partitions the plan should touch; check them against the
+-- EXPLAIN output before drawing conclusions.
+
+\if :{?scale}
+\else
+\set scale 50
+\endif
+\timing on
+
+SET enable_partitionwise_aggregate = on;
+
+INSERT INTO Customer (id, fname, lname, gtype, dob, address, phone, zipcode)
+SELECT 1000000 + g, 'Bench', 'Customer' || g, CASE WHEN g % 2 = 0 THEN 'F' ELSE 'M' END, DATE '1970-01-01' + (g % 15000), NULL, NULL, NULL
+FROM generate_series(1, 1000 * :scale) g;
+
+INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport)
+SELECT 1000000 + g, 100 + g % 900, 0, g % 4, DATE '2013-01-01' + (g % 1460), DATE '2013-01-01' + (g % 1460) + 1, 'AAAAA', 'BBBBB'
+FROM generate_series(1, 1000 * :scale) g;
+
+INSERT INTO FlightInfo (fiid, flight_id, pilot_id, plane_id)
+SELECT 1000000 + g, 1000000 + g, (SELECT min(id) FROM Pilot), (SELECT min(id) FROM Plane) + g % 10
+FROM generate_series(1, 1000 * :scale) g;
+
+INSERT INTO Reservation (rnum, cid, fid, status)
+SELECT 1000000 + g, 1000000 + (g % (1000 * :scale)) + 1, 1000000 + (g / 20) % (1000 * :scale) + 1, (ARRAY['W', 'C', 'R'])[1 + g % 3]
+FROM generate_series(0, 20000 * :scale - 1) g;
+
+INSERT INTO Repairs (rid, repair_date, repair_code, pilot_id, plane_id, technician_id)
+SELECT 1000000 + g, DATE '2013-01-01' + (g % 1460), (ARRAY['MJ', 'MN', 'SV'])[1 + g % 3], (SELECT min(id) FROM Pilot), (SELECT min(id) FROM Plane) + g % 10, (SELECT min(id) FROM Technician)
+FROM generate_series(1, 100 * :scale) g;
+
+ANALYZE;
+
+-- ListNumberOfAvailableSeats: should scan only the departure month's Flight partition
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT P.seats - F.num_sold FROM Flight F, FlightInfo I, Plane P
+WHERE F.fnum = 1000042 AND F.actual_departure_date = DATE '2013-02-12' AND I.flight_id = F.fnum AND I.plane_id = P.id;
+
+-- Repairs per year as the app runs it on create.sql: one pass, grouped on
+-- EXTRACT(year ...). Run on both databases; there is no repair_date index,
+-- so this is a single sequential scan of Repairs (all partitions)
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT CAST(EXTRACT (year FROM R.repair_date) AS INTEGER) as "Year", count(R.rid)
+FROM Repairs R GROUP BY "Year" ORDER BY count ASC;
+
+-- Repairs per year as the app runs it on create_partitioned.sql. Each year
+-- is a range on repair_date, so each year should read only its own Repairs
+-- partition (runtime pruning, "Subplans Removed"). On create.sql it scans
+-- Repairs for min, max and once per year, which is why the app uses it
+-- only on the partitioned schema
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT Y.year as "Year", count(R.rid)
+FROM generate_series((SELECT CAST(EXTRACT (year FROM min(repair_date)) AS INTEGER) FROM Repairs),
+	(SELECT CAST(EXTRACT (year FROM max(repair_date)) AS INTEGER) FROM Repairs)) AS Y(year)
+JOIN Repairs R ON R.repair_date >= make_date(Y.year, 1, 1) AND R.repair_date < make_date(Y.year + 1, 1, 1)
+GROUP BY Y.year ORDER BY count ASC;
+
+-- ... and restricted to recent years (older Repairs partitions should be pruned)
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT Y.year as "Year", count(R.rid)
+FROM generate_series(2016, 2019) AS Y(year)
+JOIN Repairs R ON R.repair_date >= make_date(Y.year, 1, 1) AND R.repair_date < make_date(Y.year + 1, 1, 1)
+GROUP BY Y.year ORDER BY count ASC;
+
+-- Seats sold per flight for one departure month (should touch one Flight partition)
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT F.fnum, count(*) FROM Flight F JOIN Reservation R ON R.fid = F.fnum
+WHERE F.actual_departure_date >= DATE '2016-06-01' AND F.actual_departure_date < DATE '2016-07-01' AND R.status = 'R'
+GROUP BY F.fnum;
+
+-- FindPassengersCountWithStatus
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT COUNT(*) FROM Reservation WHERE fid = 1000042 AND status = 'R';
@@ -8,6 +8,8 @@ DROP TABLE IF EXISTS Reservation CASCADE;--OK
 DROP TABLE IF EXISTS FlightInfo CASCADE;--OK
 DROP TABLE IF EXISTS Repairs CASCADE;--OK
 DROP TABLE IF EXISTS Schedule CASCADE;--OK
+DROP TABLE IF EXISTS ReservationSeat CASCADE;--OK
+DROP TABLE IF EXISTS ReservationChange CASCADE;--OK
 
 -------------
 ---DOMAINS---
@@ -126,6 +128,27 @@ CREATE TABLE Schedule
 	FOREIGN KEY (flightNum) REFERENCES Flight(fnum)
 );
 
+CREATE TABLE ReservationSeat
+(
+	rnum INTEGER NOT NULL,
+	fid INTEGER NOT NULL,
+	seat _PINTEGER NOT NULL,
+	PRIMARY KEY (rnum),
+	CONSTRAINT seat_taken UNIQUE (fid, seat),
+	FOREIGN KEY (rnum) REFERENCES Reservation(rnum),
+	FOREIGN KEY (fid) REFERENCES Flight(fnum)
+);
+
+-- flights whose reserved seat count may have changed, consumed by NumSoldReconciler
+CREATE TABLE ReservationChange
+(
+	seq BIGSERIAL NOT NULL,
+	fid INTEGER NOT NULL,
+	PRIMARY KEY (seq)
+);
+
+CREATE INDEX reservation_fid ON Reservation (fid, status);
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -217,4 +240,47 @@ COPY Schedule (
 	arrival_time
 )
 FROM 'schedule.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
+
+--------------
+---TRIGGERS---
+--------------
+-- Created after the data is loaded so the COPY above does not fill the
+-- change log. Reconcile the loaded data once with the reconciler's "all".
+
+-- log every flight whose number of 'R' reservations changes
+CREATE OR REPLACE FUNCTION log_reservation_change() RETURNS TRIGGER AS $$
+BEGIN
+	-- OLD is not assigned for INSERT nor NEW for DELETE, and AND does not
+	-- stop at its first false operand, so TG_OP is tested on its own
+	IF TG_OP <> 'INSERT' THEN
+		IF OLD.status = 'R' THEN
+			INSERT INTO ReservationChange (fid) VALUES (OLD.fid);
+		END IF;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		IF NEW.status = 'R' THEN
+			INSERT INTO ReservationChange (fid) VALUES (NEW.fid);
+		END IF;
+	ELSIF TG_OP = 'UPDATE' THEN
+		IF NEW.status = 'R' AND (OLD.status IS DISTINCT FROM 'R' OR OLD.fid <> NEW.fid) THEN
+			INSERT INTO ReservationChange (fid) VALUES (NEW.fid);
+		END IF;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER reservation_change AFTER INSERT OR UPDATE OR DELETE ON Reservation
+	FOR EACH ROW EXECUTE PROCEDURE log_reservation_change();
+
+-- num_sold of a new flight is typed in by hand, so check it too
+CREATE OR REPLACE FUNCTION log_new_flight() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO ReservationChange (fid) VALUES (NEW.fnum);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER flight_change AFTER INSERT ON Flight
+	FOR EACH ROW EXECUTE PROCEDURE log_new_flight();
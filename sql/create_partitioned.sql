@@ -0,0 +1,458 @@
+-----------------------------------------------------------------
+-- Partitioned variant of create.sql (PostgreSQL 13 or newer) --
+-----------------------------------------------------------------
+-- Flight and Reservation are range partitioned by departure month and
+-- Repairs by repair_date year, so old months/years can be detached into
+-- the archive schema (see PartitionArchiver.java) and queries that filter
+-- on those dates only touch the partitions they need.
+--
+-- Differences from create.sql that the application relies on:
+--   * Flight's key is (fnum, actual_departure_date). FlightNumber keeps
+--     flight numbers unique across partitions and is what FlightInfo,
+--     Schedule and ReservationSeat reference, so they survive archival.
+--   * Reservation is a view over Reservation_part, which carries the
+--     flight's departure date (flight_date) as its partition key. Inserts
+--     through the view look the date up from FlightNumber, so the application
+--     and the COPY below insert (rnum, cid, fid, status) exactly as before.
+--   * ReservationSeat.rnum has no foreign key, since rnum alone is no
+--     longer a key of a partitioned table.
+--
+-- For ListTotalNumberOfRepairsPerYear to aggregate partition by partition,
+-- enable partitionwise aggregation for the database:
+--   ALTER DATABASE <dbname> SET enable_partitionwise_aggregate = on;
+
+-- Reservation is a table in create.sql and a view here
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM pg_views WHERE viewname = 'reservation' AND schemaname = current_schema()) THEN
+		DROP VIEW Reservation CASCADE;
+	ELSE
+		DROP TABLE IF EXISTS Reservation CASCADE;
+	END IF;
+END;
+$$;
+DROP TABLE IF EXISTS Reservation_part CASCADE;--OK
+DROP TABLE IF EXISTS Customer CASCADE;--OK
+DROP TABLE IF EXISTS Flight CASCADE;--OK
+DROP TABLE IF EXISTS FlightNumber CASCADE;--OK
+DROP TABLE IF EXISTS Pilot CASCADE;--OK
+DROP TABLE IF EXISTS Plane CASCADE;--OK
+DROP TABLE IF EXISTS Technician CASCADE;--OK
+
+DROP TABLE IF EXISTS FlightInfo CASCADE;--OK
+DROP TABLE IF EXISTS Repairs CASCADE;--OK
+DROP TABLE IF EXISTS Schedule CASCADE;--OK
+DROP TABLE IF EXISTS ReservationSeat CASCADE;--OK
+DROP TABLE IF EXISTS ReservationChange CASCADE;--OK
+
+DROP DOMAIN IF EXISTS us_postal_code CASCADE;
+DROP DOMAIN IF EXISTS _STATUS CASCADE;
+DROP DOMAIN IF EXISTS _GENDER CASCADE;
+DROP DOMAIN IF EXISTS _CODE CASCADE;
+DROP DOMAIN IF EXISTS _PINTEGER CASCADE;
+DROP DOMAIN IF EXISTS _PZEROINTEGER CASCADE;
+DROP DOMAIN IF EXISTS _YEAR_1970 CASCADE;
+DROP DOMAIN IF EXISTS _SEATS CASCADE;
+
+CREATE SCHEMA IF NOT EXISTS archive;
+
+-------------
+---DOMAINS---
+-------------
+CREATE DOMAIN us_postal_code AS TEXT CHECK(VALUE ~ '^\d{5}$' OR VALUE ~ '^\d{5}-\d{4}$');
+CREATE DOMAIN _STATUS CHAR(1) CHECK (value IN ( 'W' , 'C', 'R' ) );
+CREATE DOMAIN _GENDER CHAR(1) CHECK (value IN ( 'F' , 'M' ) );
+CREATE DOMAIN _CODE CHAR(2) CHECK (value IN ( 'MJ' , 'MN', 'SV' ) ); --Major, Minimum, Service
+CREATE DOMAIN _PINTEGER AS int4 CHECK(VALUE > 0);
+CREATE DOMAIN _PZEROINTEGER AS int4 CHECK(VALUE >= 0);
+CREATE DOMAIN _YEAR_1970 AS int4 CHECK(VALUE >= 0);
+CREATE DOMAIN _SEATS AS int4 CHECK(VALUE > 0 AND VALUE < 500);--Plane Seats
+
+------------
+---TABLES---
+------------
+CREATE TABLE Customer
+(
+	id INTEGER NOT NULL,
+	fname CHAR(24) NOT NULL,
+	lname CHAR(24) NOT NULL,
+	gtype _GENDER NOT NULL,
+	dob DATE NOT NULL,
+	address CHAR(256),
+	phone CHAR(10),
+	zipcode char(10),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE Pilot
+(
+	id INTEGER NOT NULL,
+	fullname CHAR(128),
+	nationality CHAR(24),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE FlightNumber
+(
+	fnum INTEGER NOT NULL,
+	departure_date DATE NOT NULL,
+	PRIMARY KEY (fnum)
+);
+
+CREATE TABLE Flight
+(
+	fnum INTEGER NOT NULL,
+	cost _PINTEGER NOT NULL,
+	num_sold _PZEROINTEGER NOT NULL,
+	num_stops _PZEROINTEGER NOT NULL,
+	actual_departure_date DATE NOT NULL,
+	actual_arrival_date DATE NOT NULL,
+	arrival_airport CHAR(5) NOT NULL,-- AIRPORT CODE --
+	departure_airport CHAR(5) NOT NULL,-- AIRPORT CODE --
+	PRIMARY KEY (fnum, actual_departure_date)
+) PARTITION BY RANGE (actual_departure_date);
+
+CREATE TABLE Plane
+(
+	id INTEGER NOT NULL,
+	make CHAR(32) NOT NULL,
+	model CHAR(64) NOT NULL,
+	age _YEAR_1970 NOT NULL,
+	seats _SEATS NOT NULL,
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE Technician
+(
+	id INTEGER NOT NULL,
+	full_name CHAR(128) NOT NULL,
+	PRIMARY KEY (id)
+);
+
+---------------
+---RELATIONS---
+---------------
+
+CREATE TABLE Reservation_part
+(
+	rnum INTEGER NOT NULL,
+	cid INTEGER NOT NULL,
+	fid INTEGER NOT NULL,
+	status _STATUS,
+	flight_date DATE NOT NULL,
+	PRIMARY KEY (rnum, flight_date),
+	FOREIGN KEY (cid) REFERENCES Customer(id),
+	FOREIGN KEY (fid, flight_date) REFERENCES Flight(fnum, actual_departure_date)
+) PARTITION BY RANGE (flight_date);
+
+CREATE INDEX reservation_part_fid ON Reservation_part (fid, status);
+
+CREATE TABLE FlightInfo
+(
+	fiid INTEGER NOT NULL,
+	flight_id INTEGER NOT NULL,
+	pilot_id INTEGER NOT NULL,
+	plane_id INTEGER NOT NULL,
+	PRIMARY KEY (fiid),
+	FOREIGN KEY (flight_id) REFERENCES FlightNumber(fnum),
+	FOREIGN KEY (pilot_id) REFERENCES Pilot(id),
+	FOREIGN KEY (plane_id) REFERENCES Plane(id)
+);
+
+CREATE TABLE Repairs
+(
+	rid INTEGER NOT NULL,
+	repair_date DATE NOT NULL,
+	repair_code _CODE,
+	pilot_id INTEGER NOT NULL,
+	plane_id INTEGER NOT NULL,
+	technician_id INTEGER NOT NULL,
+	PRIMARY KEY (rid, repair_date),
+	FOREIGN KEY (pilot_id) REFERENCES Pilot(id),
+	FOREIGN KEY (plane_id) REFERENCES Plane(id),
+	FOREIGN KEY (technician_id) REFERENCES Technician(id)
+) PARTITION BY RANGE (repair_date);
+
+CREATE TABLE Schedule
+(
+	id INTEGER NOT NULL,
+	flightNum INTEGER NOT NULL,
+	departure_time DATE NOT NULL,
+	arrival_time DATE NOT NULL,
+	PRIMARY KEY (id),
+	FOREIGN KEY (flightNum) REFERENCES FlightNumber(fnum)
+);
+
+CREATE TABLE ReservationSeat
+(
+	rnum INTEGER NOT NULL,
+	fid INTEGER NOT NULL,
+	seat _PINTEGER NOT NULL,
+	PRIMARY KEY (rnum),
+	CONSTRAINT seat_taken UNIQUE (fid, seat),
+	FOREIGN KEY (fid) REFERENCES FlightNumber(fnum)
+);
+
+-- flights whose reserved seat count may have changed, consumed by NumSoldReconciler
+CREATE TABLE ReservationChange
+(
+	seq BIGSERIAL NOT NULL,
+	fid INTEGER NOT NULL,
+	PRIMARY KEY (seq)
+);
+
+------------------
+---PARTITIONING---
+------------------
+
+-- PostgreSQL refuses to create a partition while the DEFAULT partition
+-- holds rows of its range. stage_partition copies those rows into a new,
+-- not yet attached table shaped like the parent (false if the partition
+-- already exists); attach_partition deletes them from the DEFAULT
+-- partition and attaches the table. Before the DEFAULT partitions exist
+-- this is just CREATE TABLE ... PARTITION OF.
+CREATE OR REPLACE FUNCTION stage_partition(parent TEXT, part TEXT, default_part TEXT, key TEXT, lo DATE, hi DATE) RETURNS BOOLEAN AS $$
+BEGIN
+	IF to_regclass(part) IS NOT NULL THEN
+		RETURN FALSE;
+	END IF;
+	EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part, parent);
+	IF to_regclass(default_part) IS NOT NULL THEN
+		EXECUTE format('INSERT INTO %I SELECT * FROM %I WHERE %I >= %L AND %I < %L',
+			part, default_part, key, lo, key, hi);
+	END IF;
+	RETURN TRUE;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION attach_partition(parent TEXT, part TEXT, default_part TEXT, key TEXT, lo DATE, hi DATE) RETURNS VOID AS $$
+BEGIN
+	IF to_regclass(default_part) IS NOT NULL THEN
+		EXECUTE format('DELETE FROM %I WHERE %I >= %L AND %I < %L', default_part, key, lo, key, hi);
+	END IF;
+	EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', parent, part, lo, hi);
+END;
+$$ LANGUAGE plpgsql;
+
+-- Creates the monthly Flight and Reservation_part partitions for the
+-- given range of months, e.g. SELECT create_month_partitions('2014-01-01', 12);
+-- Reservations are taken out of the DEFAULT partition before the flights
+-- they reference, and attached after them.
+CREATE OR REPLACE FUNCTION create_month_partitions(first_month DATE, months INTEGER) RETURNS VOID AS $$
+DECLARE
+	m DATE;
+	n DATE;
+	suffix TEXT;
+	flights BOOLEAN;
+	reservations BOOLEAN;
+BEGIN
+	FOR i IN 0 .. months - 1 LOOP
+		m := date_trunc('month', first_month)::DATE + (i || ' month')::INTERVAL;
+		n := (m + INTERVAL '1 month')::DATE;
+		suffix := to_char(m, '"y"YYYY"m"MM');
+		flights := stage_partition('flight', 'flight_' || suffix, 'flight_default', 'actual_departure_date', m, n);
+		reservations := stage_partition('reservation_part', 'reservation_' || suffix, 'reservation_default', 'flight_date', m, n);
+		IF reservations THEN
+			EXECUTE format('DELETE FROM reservation_default WHERE flight_date >= %L AND flight_date < %L', m, n);
+		END IF;
+		IF flights THEN
+			PERFORM attach_partition('flight', 'flight_' || suffix, 'flight_default', 'actual_departure_date', m, n);
+		END IF;
+		IF reservations THEN
+			PERFORM attach_partition('reservation_part', 'reservation_' || suffix, 'reservation_default', 'flight_date', m, n);
+		END IF;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Creates the yearly Repairs partitions, e.g. SELECT create_year_partitions(2013, 4);
+CREATE OR REPLACE FUNCTION create_year_partitions(first_year INTEGER, years INTEGER) RETURNS VOID AS $$
+BEGIN
+	FOR y IN first_year .. first_year + years - 1 LOOP
+		IF stage_partition('repairs', 'repairs_y' || y, 'repairs_default', 'repair_date', make_date(y, 1, 1), make_date(y + 1, 1, 1)) THEN
+			PERFORM attach_partition('repairs', 'repairs_y' || y, 'repairs_default', 'repair_date', make_date(y, 1, 1), make_date(y + 1, 1, 1));
+		END IF;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT create_month_partitions('2013-01-01', 48);
+SELECT create_year_partitions(2010, 10);
+
+-- anything outside the ranges above lands here until its partition is created
+CREATE TABLE flight_default PARTITION OF Flight DEFAULT;
+CREATE TABLE reservation_default PARTITION OF Reservation_part DEFAULT;
+CREATE TABLE repairs_default PARTITION OF Repairs DEFAULT;
+
+--------------
+---TRIGGERS---
+--------------
+
+-- keep flight numbers unique across Flight partitions
+CREATE OR REPLACE FUNCTION register_flight_number() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO FlightNumber (fnum, departure_date) VALUES (NEW.fnum, NEW.actual_departure_date);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER flight_number AFTER INSERT ON Flight
+	FOR EACH ROW EXECUTE FUNCTION register_flight_number();
+
+-- Reservation keeps the column list of create.sql; flight_date is filled in on insert
+CREATE VIEW Reservation AS
+	SELECT rnum, cid, fid, status, flight_date FROM Reservation_part;
+
+CREATE OR REPLACE FUNCTION insert_reservation() RETURNS TRIGGER AS $$
+BEGIN
+	IF NEW.flight_date IS NULL THEN
+		SELECT departure_date INTO NEW.flight_date FROM FlightNumber WHERE fnum = NEW.fid;
+		IF NOT FOUND THEN
+			RAISE foreign_key_violation USING MESSAGE = format(
+				'insert or update on table "reservation" violates foreign key constraint: Key (fid)=(%s) is not present in table "flight".', NEW.fid);
+		END IF;
+	END IF;
+	INSERT INTO Reservation_part (rnum, cid, fid, status, flight_date)
+		VALUES (NEW.rnum, NEW.cid, NEW.fid, NEW.status, NEW.flight_date);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER reservation_insert INSTEAD OF INSERT ON Reservation
+	FOR EACH ROW EXECUTE FUNCTION insert_reservation();
+
+----------------------------
+-- INSERT DATA STATEMENTS --
+----------------------------
+
+COPY Customer (
+	id,
+	fname,
+	lname,
+	gtype,
+	dob,
+	address,
+	phone,
+	zipcode
+)
+FROM 'customer.csv'
+WITH DELIMITER ',';
+
+COPY Pilot (
+	id,
+	fullname,
+	nationality
+)
+FROM 'pilots.csv'
+WITH DELIMITER ',';
+
+COPY Plane (
+	id,
+	make,
+	model,
+	age,
+	seats
+)
+FROM 'planes.csv'
+WITH DELIMITER ',';
+
+COPY Technician (
+	id,
+	full_name
+)
+FROM 'technician.csv'
+WITH DELIMITER ',';
+
+COPY Flight (
+	fnum,
+	cost,
+	num_sold,
+	num_stops,
+	actual_departure_date,
+	actual_arrival_date,
+	arrival_airport,
+	departure_airport
+)
+FROM 'flights.csv'
+WITH DELIMITER ',';
+
+COPY Reservation (
+	rnum,
+	cid,
+	fid,
+	status
+)
+FROM 'reservation.csv'
+WITH DELIMITER ',';
+
+COPY FlightInfo (
+	fiid,
+	flight_id,
+	pilot_id,
+	plane_id
+)
+FROM 'flightinfo.csv'
+WITH DELIMITER ',';
+
+COPY Repairs (
+	rid,
+	repair_date,
+	repair_code,
+	pilot_id,
+	plane_id,
+	technician_id
+)
+FROM 'repairs.csv'
+WITH DELIMITER ',';
+
+COPY Schedule (
+	id,
+	flightNum,
+	departure_time,
+	arrival_time
+)
+FROM 'schedule.csv'
+WITH DELIMITER ',';
+
+---------------------
+---CHANGE TRIGGERS---
+---------------------
+-- Created after the data is loaded so the COPY above does not fill the
+-- change log. Reconcile the loaded data once with the reconciler's "all".
+
+-- log every flight whose number of 'R' reservations changes
+CREATE OR REPLACE FUNCTION log_reservation_change() RETURNS TRIGGER AS $$
+BEGIN
+	-- OLD is not assigned for INSERT nor NEW for DELETE, and AND does not
+	-- stop at its first false operand, so TG_OP is tested on its own
+	IF TG_OP <> 'INSERT' THEN
+		IF OLD.status = 'R' THEN
+			INSERT INTO ReservationChange (fid) VALUES (OLD.fid);
+		END IF;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		IF NEW.status = 'R' THEN
+			INSERT INTO ReservationChange (fid) VALUES (NEW.fid);
+		END IF;
+	ELSIF TG_OP = 'UPDATE' THEN
+		IF NEW.status = 'R' AND (OLD.status IS DISTINCT FROM 'R' OR OLD.fid <> NEW.fid) THEN
+			INSERT INTO ReservationChange (fid) VALUES (NEW.fid);
+		END IF;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER reservation_change AFTER INSERT OR UPDATE OR DELETE ON Reservation_part
+	FOR EACH ROW EXECUTE FUNCTION log_reservation_change();
+
+-- num_sold of a new flight is typed in by hand, so check it too
+CREATE OR REPLACE FUNCTION log_new_flight() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO ReservationChange (fid) VALUES (NEW.fnum);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER flight_change AFTER INSERT ON Flight
+	FOR EACH ROW EXECUTE FUNCTION log_new_flight();